@@ -0,0 +1,306 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import benchmarks.Pipeline;
+import benchmarks.Stage;
+
+/**
+ * The stages of the droplet analysis as the JMH suite in the benchmarks package runs them, on synthetic frames.
+ *
+ * The frames come from a SyntheticDropletSource with shape oscillation and noise, cycling through a fixed set so the results
+ * are reproducible. Frames smaller than the camera's are cropped around the droplet, like a tracking window. Every stage gets
+ * its own analyzer, so no stage's settings or scratch buffers carry over into another's numbers.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class PipelineStages implements Pipeline {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final int distinctFrames = 16;
+	private static final double frameRate = 25.4;
+	private static final int displayWidth = 1024; // size of the live feed on screen
+	private static final int displayHeight = 576;
+	private static final int measurementLimit = 10000; // rows a stage's measurement table may grow to before it is cleared
+
+	private final Mat[] frames = new Mat[distinctFrames];
+	private final Rect[] found = new Rect[distinctFrames];
+
+	static {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+	}
+
+	/**
+	 * Constructor. Renders the frames and finds the droplet in each, for the stages that start from a known bounding rectangle.
+	 *
+	 * @param size - "WIDTHxHEIGHT", at most the camera's 1920x1080.
+	 */
+	public PipelineStages(String size) {
+
+		String[] dimensions = size.split("x");
+		int width = Integer.parseInt(dimensions[0]);
+		int height = Integer.parseInt(dimensions[1]);
+
+		SyntheticDropletSource source = new SyntheticDropletSource(frameRate);
+		source.setOscillation(frameRate / distinctFrames, 0.05, frameRate / distinctFrames, 10);
+
+		Mat color = new Mat();
+		Mat gray = new Mat();
+
+		for (int z = 0; z < distinctFrames; z++) {
+
+			source.read(color);
+			Imgproc.cvtColor(color, gray, Imgproc.COLOR_BGR2GRAY);
+
+			Mat crop = gray.submat(new Rect((gray.cols() - width) / 2, (gray.rows() - height) / 2, width, height));
+			frames[z] = crop.clone();
+			crop.release();
+
+		} // end for
+
+		color.release();
+		gray.release();
+		source.release();
+
+		DropletAnalyzer locator = newAnalyzer();
+
+		for (int z = 0; z < distinctFrames; z++)
+			found[z] = locator.findDropletProfile(frames[z]);
+
+		locator.release();
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	@Override
+	public int getFrameCount() {
+		return distinctFrames;
+	} // end getFrameCount
+
+	@Override
+	public Stage getStage(String name) {
+
+		final DropletAnalyzer analyzer = newAnalyzer();
+
+		switch (name) {
+
+			case "prepFrame":
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+
+						Mat edges = analyzer.prepFrame(frames[frame]);
+						edges.release();
+
+						return edges;
+
+					}
+				};
+
+			case "findLargestContour":
+				final Mat[] edges = new Mat[distinctFrames];
+
+				for (int z = 0; z < distinctFrames; z++) {
+
+					Mat view = analyzer.prepFrame(frames[z]);
+					edges[z] = view.clone();
+					view.release();
+
+				} // end for
+
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+						return analyzer.findLargestContour(edges[frame]);
+					}
+					public void release() {
+
+						for (Mat image : edges)
+							image.release();
+
+						super.release();
+
+					}
+				};
+
+			case "findDropletProfile":
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+						return analyzer.findDropletProfile(frames[frame]);
+					}
+				};
+
+			case "locateDropletL1":
+			case "locateDropletL2":
+				analyzer.setPyramidLevel(name.endsWith("L1") ? 1 : 2);
+				return locateDroplet(analyzer);
+
+			case "locateDropletBG":
+				analyzer.setBackgroundSubtraction(true);
+
+				for (int z = 0; z < distinctFrames; z++)
+					analyzer.locateDroplet(frames[z]); // learn the background first
+
+				return locateDroplet(analyzer);
+
+			case "measureDropletAxes":
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+
+						clearMeasurements();
+						analyzer.measureDropletAxes(found[frame]);
+
+						return analyzer.getMeasurements();
+
+					}
+				};
+
+			case "ellipseFit":
+				final EllipseFitter fitter = new EllipseFitter();
+
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+						return fitter.fit(frames[frame], found[frame]);
+					}
+					public void release() {
+
+						fitter.release();
+						super.release();
+
+					}
+				};
+
+			case "analyzeFrame":
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+
+						clearMeasurements();
+						return analyzer.analyzeFrame(frames[frame], System.nanoTime());
+
+					}
+				};
+
+			case "drawRectangle":
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+						return analyzer.drawRectangle(found[frame], frames[frame]);
+					}
+				};
+
+			case "toBufferedImage":
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+						return TulaneAcousticTensiometer.toBufferedImage(frames[frame]);
+					}
+				};
+
+			case "liveFeedRender":
+				final LiveFeedView view = new LiveFeedView();
+				view.setSize(displayWidth, displayHeight);
+
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+
+						view.render(frames[frame]);
+						return view;
+
+					}
+					public void release() {
+
+						view.release();
+						super.release();
+
+					}
+				};
+
+			case "rawPngL0":
+			case "rawPngL1":
+			case "rawPngL6":
+				final MatOfInt parameters = new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, name.charAt(name.length() - 1) - '0');
+				final MatOfByte encoded = new MatOfByte();
+
+				return new AnalyzerStage(analyzer) {
+					public Object run(int frame) {
+						return Imgcodecs.imencode(".png", frames[frame], encoded, parameters);
+					}
+					public void release() {
+
+						parameters.release();
+						encoded.release();
+						super.release();
+
+					}
+				};
+
+			default:
+				analyzer.release();
+				throw new IllegalArgumentException("No stage named " + name + ".");
+
+		} // end switch
+
+	} // end getStage
+
+	@Override
+	public void release() {
+
+		for (Mat frame : frames)
+			frame.release();
+
+	} // end release
+
+	private Stage locateDroplet(final DropletAnalyzer analyzer) {
+
+		return new AnalyzerStage(analyzer) {
+			public Object run(int frame) {
+				return analyzer.locateDroplet(frames[frame]);
+			}
+		};
+
+	} // end locateDroplet
+
+	private static DropletAnalyzer newAnalyzer() {
+
+		DropletAnalyzer analyzer = new DropletAnalyzer();
+		analyzer.setRecordingEnabled(false);
+
+		return analyzer;
+
+	} // end newAnalyzer
+
+	/**
+	 * A stage that owns an analyzer and releases it with the stage.
+	 */
+	private static abstract class AnalyzerStage implements Stage {
+
+		private final DropletAnalyzer analyzer;
+
+		private AnalyzerStage(DropletAnalyzer analyzer) {
+			this.analyzer = analyzer;
+		} // end constructor
+
+		/**
+		 * Empties the analyzer's measurement table now and then, so it doesn't grow through a whole trial. Clearing keeps the
+		 * table's capacity and costs next to nothing, so it can stay inside the measured call.
+		 */
+		protected void clearMeasurements() {
+
+			if (analyzer.getMeasurements().size() >= measurementLimit)
+				analyzer.getMeasurements().clear();
+
+		} // end clearMeasurements
+
+		public void release() {
+			analyzer.release();
+		} // end release
+
+	} // end AnalyzerStage
+
+} // end PipelineStages
@@ -0,0 +1,23 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * The stages that find and measure the droplet. findLargestContour is the contour search alone, on frames that were already
+ * run through prepFrame; findDropletProfile is both. analyzeFrame is everything the live loop does with a frame, recording off.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class AnalysisBenchmark extends StageBenchmark {
+
+	@Param({"prepFrame", "findLargestContour", "findDropletProfile", "locateDropletL1", "locateDropletL2", "locateDropletBG",
+			"measureDropletAxes", "ellipseFit", "analyzeFrame"})
+	public String stage;
+
+	@Override
+	protected String getStageName() {
+		return stage;
+	} // end getStageName
+
+} // end AnalysisBenchmark
@@ -0,0 +1,21 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * The stages that put the analyzed frame on screen: annotating it, converting it for Swing and scaling it into the live feed.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class DisplayBenchmark extends StageBenchmark {
+
+	@Param({"drawRectangle", "toBufferedImage", "liveFeedRender"})
+	public String stage;
+
+	@Override
+	protected String getStageName() {
+		return stage;
+	} // end getStageName
+
+} // end DisplayBenchmark
@@ -0,0 +1,45 @@
+package benchmarks;
+
+/**
+ * The set of frames the stages are benchmarked on, and the stages themselves.
+ *
+ * The application's classes are in the default package, which code in a named package cannot refer to - and JMH does not
+ * accept benchmarks in the default package. So the implementation, PipelineStages, is in the default package next to the
+ * application and is only loaded by name here; the benchmarks see it through this interface.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public interface Pipeline {
+
+	/**
+	 * Renders the frames.
+	 *
+	 * @param size - "WIDTHxHEIGHT": the full camera frame, or a crop around the droplet the size of a tracking window.
+	 * @return The pipeline.
+	 * @throws ReflectiveOperationException If PipelineStages cannot be loaded.
+	 */
+	public static Pipeline open(String size) throws ReflectiveOperationException {
+		return (Pipeline) Class.forName("PipelineStages").getConstructor(String.class).newInstance(size);
+	} // end open
+
+	/**
+	 * @return The number of distinct frames the stages cycle through.
+	 */
+	public int getFrameCount();
+
+	/**
+	 * Sets up a stage.
+	 *
+	 * @param name - The stage's name, as listed in the benchmarks' stage parameter.
+	 * @return The stage.
+	 * @throws IllegalArgumentException If there is no stage of that name.
+	 */
+	public Stage getStage(String name);
+
+	/**
+	 * Frees the frames.
+	 */
+	public void release();
+
+} // end Pipeline
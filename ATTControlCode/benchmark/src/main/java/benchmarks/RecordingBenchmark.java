@@ -0,0 +1,22 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * PNG compression of a frame for the raw frame recorder, at the levels worth considering. Each encoder thread of the recorder
+ * does one of these per frame.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class RecordingBenchmark extends StageBenchmark {
+
+	@Param({"rawPngL0", "rawPngL1", "rawPngL6"})
+	public String stage;
+
+	@Override
+	protected String getStageName() {
+		return stage;
+	} // end getStageName
+
+} // end RecordingBenchmark
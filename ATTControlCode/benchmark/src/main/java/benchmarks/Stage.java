@@ -0,0 +1,24 @@
+package benchmarks;
+
+/**
+ * One stage of the droplet analysis, set up with everything it needs and bound to the frames of a Pipeline.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public interface Stage {
+
+	/**
+	 * Runs the stage once.
+	 *
+	 * @param frame - Frame number, from 0 to Pipeline.getFrameCount() - 1.
+	 * @return The stage's result, so the JIT can't optimize the call away.
+	 */
+	public Object run(int frame);
+
+	/**
+	 * Frees whatever the stage set up.
+	 */
+	public void release();
+
+} // end Stage
@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs one stage of the pipeline per call, cycling through the frames. Subclasses list their stages in a stage parameter; each
+ * stage is set up afresh for its own trial, on full 1080p frames and on frames cropped to the size of a tracking window.
+ *
+ * Sample-time mode reports the latency distribution of each stage (p50 to p99.99 and the maximum). Run with -prof gc for the
+ * allocation rate and the bytes allocated per call. Only the Java heap is counted there - OpenCV's native allocations are not.
+ *
+ * @author Jarrod Risley
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public abstract class StageBenchmark {
+
+	/*
+	 * Local Class Variables
+	 */
+	@Param({"1920x1080", "400x400"})
+	public String size;
+
+	private Pipeline pipeline;
+	private Stage stage;
+	private int frames;
+	private int frame = 0;
+
+	/**
+	 * @return The name of the stage to run, from the subclass's stage parameter.
+	 */
+	protected abstract String getStageName();
+
+	@Setup(Level.Trial)
+	public void setUp() throws ReflectiveOperationException {
+
+		pipeline = Pipeline.open(size);
+		stage = pipeline.getStage(getStageName());
+		frames = pipeline.getFrameCount();
+
+	} // end setUp
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		stage.release();
+		pipeline.release();
+
+	} // end tearDown
+
+	@Benchmark
+	public Object run() {
+
+		Object result = stage.run(frame);
+		frame = (frame + 1) % frames;
+
+		return result;
+
+	} // end run
+
+} // end StageBenchmark
@@ -1,62 +1,124 @@
 import java.io.IOException;
-import java.util.Enumeration;
-
-import be.ac.ulb.gpib.GPIBDevice;
-import be.ac.ulb.gpib.GPIBDeviceIdentifier;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Agilent 33220A function generator on the GPIB bus.
+ *
+ * The amplitude and frequency are mirrored in memory: every value written is remembered, so getAmplitude() and getFrequency()
+ * answer without a bus transaction. Every verifyInterval the mirror is checked against the instrument with a pair of queries;
+ * a mismatch (the front panel was touched, the instrument clipped a value, a write was lost) is reported and the instrument's
+ * value is taken over.
+ *
  * @author Jarrod Risley
  *
  */
-public class AgilentFunctionGenerator {
+public class AgilentFunctionGenerator implements FunctionGenerator {
 
 	/*
 	 * Local Class Variables
 	 */
-	private GPIBDevice agilent;
-	private GPIBDeviceIdentifier devId;
-	private Enumeration<?> devList;
+	public static final String defaultDriver = "be.ac.ulb.gpib.WindowsGPIBDriver";
+	public static final int defaultAddress = 10; // Address of the function generator.
+	
+	private SCPIDevice agilent;
+	private GPIBCommandQueue commandQueue;
+	
+	private volatile boolean sweepInProgress = false;
+	private volatile boolean isCompressing;
+	private final CopyOnWriteArrayList<SweepListener> sweepListeners = new CopyOnWriteArrayList<SweepListener>();
+	private volatile double commandedAmplitude; // the state mirror - guarded by mirrorLock for writes
+	private volatile double commandedFrequency;
+	private final Object mirrorLock = new Object();
+	private long mirrorGeneration = 0; // bumped on every write to the mirror - guarded by mirrorLock
+	private volatile long driftCount = 0;
+	private volatile double sweepRate = 0.025; // Volts per second. A 75 mV sweep leg takes 3 seconds.
 	
-	private final int address = 10; // Address of the function generator.
-	private boolean sweepInProgress = false;
-	private boolean isCompressing;
+	private final double defaultCommandRate = 50; // GPIB transactions per second
+	private final double amplitudeSteps = 100000; // Amplitudes are rounded to 1 / amplitudeSteps Volts - the 10 uV step the sweeps used to be written in
+	private final int rampPoints = 1000; // points in the uploaded triangle envelope
+	private final long verifyInterval = TimeUnit.SECONDS.toNanos(2); // between background reads of the instrument's state
+	private final double amplitudeTolerance = 0.001; // Volts - the instrument keeps 4 digits
+	private final double frequencyTolerance = 0.001; // Hz
+	
+	/*
+	 * Hardware-Timed Sweep State
+	 */
+	private volatile boolean hardwareSweepMode = false;
+	private volatile long hardwareSweepStart; // System.nanoTime() when the instrument started the ramp
+	private volatile long hardwareLeg; // nanoseconds per sweep leg
+	private volatile boolean hardwareSweepRunning = false;
+	private double hardwareMin;
+	private double hardwareMax;
+	private boolean envelopeUploaded = false;
+	private ScheduledExecutorService timer;
 	
 	/**
-	 * Constructor
+	 * Constructor. Uses the Windows GPIB driver and the default address.
 	 */
 	public AgilentFunctionGenerator() {
+		this(defaultDriver, defaultAddress);
+	} // end constructor
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param driver - Fully qualified class name of the JPIB driver.
+	 * @param address - GPIB address of the function generator.
+	 */
+	public AgilentFunctionGenerator(String driver, int address) {
+		this(openDevice(driver, address));
+	} // end constructor
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param device - The instrument to control, or null if none could be found.
+	 */
+	public AgilentFunctionGenerator(SCPIDevice device) {
 		
-		GPIBDeviceIdentifier.initialize("be.ac.ulb.gpib.WindowsGPIBDriver", true);
-		
-		devList = GPIBDeviceIdentifier.getDevices();
-		
-		while (devList.hasMoreElements()) {
-			
-			devId = (GPIBDeviceIdentifier) devList.nextElement();
-			
-			if (devId.getAddress() == address) {
-				
-				agilent = new GPIBDevice(address, devId.getDriver());
-				
-			} // end if
-			
-		} // end while
+		agilent = device;
 		
 		if (agilent != null) {
 			
 			try {
 				
-				agilent.open();
-				agilent.getVendor();
+				commandedAmplitude = Double.parseDouble(agilent.query("voltage?"));
+				commandedFrequency = Double.parseDouble(agilent.query("frequency?"));
 				
 			} catch (IOException e) {
 				e.printStackTrace();
 			} // end try-catch
 			
+			commandQueue = new GPIBCommandQueue(agilent, defaultCommandRate);
+			
+			getTimer().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					verifyState();
+				}
+			}, verifyInterval, verifyInterval, TimeUnit.NANOSECONDS);
+			
 		} // end if
 		
 	} // end constructor
 	
+	private static SCPIDevice openDevice(String driver, int address) {
+		
+		try {
+			return new GPIBSCPIDevice(driver, address);
+		} catch (IOException e) {
+			
+			e.printStackTrace();
+			return null;
+			
+		} // end try-catch
+		
+	} // end openDevice
+	
 	/**
 	 * Basic, untriggered sweep. Still in beta, use at own risk :P
 	 */
@@ -65,20 +127,18 @@ public class AgilentFunctionGenerator {
 		if (agilent == null)
 			System.out.println("I done goofed.");
 		
-		try {
-			
-			isCompressing = true;
-			for (double z = 0.400; z <= 0.475; z = z + 0.00001)
-				agilent.writeCommand("voltage " + z + " VPP");
+		if (hardwareSweepMode) {
 			
-			isCompressing = false;
-			for (double z = 0.475; z >= 0.400; z = z - 0.00001)
-				agilent.writeCommand("voltage " + z + " VPP");
+			startHardwareSweep(0.400, 0.475);
+			return;
 			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} // end try-catch
+		} // end if
+		
+		setCompressing(true);
+		ramp(0.400, 0.475);
+		
+		setCompressing(false);
+		ramp(0.475, 0.400);
 		
 		setSweeping(false);
 		
@@ -95,59 +155,237 @@ public class AgilentFunctionGenerator {
 		if (agilent == null)
 			System.out.println("I done goofed.");
 		
-		try {
+		if (hardwareSweepMode) {
+			
+			startHardwareSweep(min, max);
+			return;
+			
+		} // end if
+		
+		ramp(min, max);
+		ramp(max, min);
+		
+		setSweeping(false);
+		
+	} // end amplitudeSweep
+	
+	/**
+	 * Commands the function generator to sweep from the specified start value to the specified end value or vice-versa. start is
+	 * always the lower bound and end the upper one, whichever way the sweep runs.
+	 * 
+	 * @param start - The lower voltage value. Must be less than @param end.
+	 * @param end - The upper voltage value. Must be greater than @param start.
+	 * @param reverse - Boolean flag to state whether or not to run the sweep from end down to start.
+	 */
+	public void sweepTo(double start, double end, boolean reverse) {
+		
+		if (!reverse)
+			ramp(start, end);
+		else
+			ramp(end, start);
+		
+	} // end sweepTo
+	
+	/**
+	 * Ramps the amplitude linearly from one voltage to another at the sweep rate. The amplitude is computed from the elapsed time and
+	 * posted to the command queue once per bus slot, so the ramp takes |to - from| / sweepRate seconds however slow the bus is.
+	 * Returns once the final amplitude has been written.
+	 * 
+	 * @param from - Starting amplitude, in Volts.
+	 * @param to - Final amplitude, in Volts.
+	 */
+	private void ramp(double from, double to) {
+		
+		if (commandQueue == null)
+			return;
+		
+		long duration = (long) (Math.abs(to - from) / sweepRate * TimeUnit.SECONDS.toNanos(1));
+		long start = System.nanoTime();
+		long elapsed;
+		
+		while ((elapsed = System.nanoTime() - start) < duration) {
+			
+			postAmplitude(from + (to - from) * elapsed / duration);
+			LockSupport.parkNanos(commandQueue.getInterval());
+			
+		} // end while
+		
+		postAmplitude(to);
+		commandQueue.flush();
+		
+	} // end ramp
+	
+	/**
+	 * Selects how amplitudeSweep() runs. In hardware-timed mode the whole up-and-down ramp is uploaded to the function generator as an
+	 * amplitude-modulation envelope and executed by the instrument; amplitudeSweep() then returns as soon as the ramp has started, and
+	 * isSweeping(), isCompressing() and getCommandedAmplitude() follow the ramp by the clock.
+	 * 
+	 * @param enabled - True for hardware-timed sweeps, false to step the amplitude from Java.
+	 */
+	public void setHardwareSweep(boolean enabled) {
+		hardwareSweepMode = enabled;
+	} // end setHardwareSweep
+	
+	/**
+	 * Starts a hardware-timed sweep from min up to max and back down, each leg taking (max - min) / sweepRate seconds.
+	 * 
+	 * The envelope is a triangle uploaded once into volatile arbitrary-waveform memory and used as the internal AM source. With AM on,
+	 * the output amplitude is A/2 * (1 + depth * m(t)) for an envelope m between -1 and 1, so a carrier amplitude of max + min and a depth
+	 * of (max - min) / (max + min) sweeps exactly between min and max. The modulation frequency is set so one envelope period is one
+	 * full sweep; AM is switched off again after that period. This assumes the instrument starts the envelope at its first point when AM
+	 * is switched on, which is worth confirming on a scope for a new instrument.
+	 * 
+	 * The envelope, the AM configuration and the start are sent as separate transactions, each flushed before the next, and the start is
+	 * confirmed with *OPC? before the sweep is timed, so the clock-driven state never runs ahead of the instrument. If the instrument
+	 * does not confirm, the sweep is abandoned.
+	 * 
+	 * @param min - The minimum voltage, in Volts.
+	 * @param max - The maximum voltage, in Volts.
+	 */
+	public void startHardwareSweep(double min, double max) {
+		
+		if (commandQueue == null)
+			return;
+		
+		long leg = (long) ((max - min) / sweepRate * TimeUnit.SECONDS.toNanos(1));
+		double carrier = max + min;
+		double depth = 100 * (max - min) / (max + min);
+		
+		if (!envelopeUploaded) {
+			
+			// Far longer than a message, so it goes out on its own and has to be in memory before it is selected below.
+			commandQueue.post(buildEnvelope());
+			commandQueue.flush();
+			envelopeUploaded = true;
 			
-			for (double z = min; z <= max; z = z + 0.00001)
-				agilent.writeCommand("voltage " + z + " VPP");
+		} // end if
+		
+		commandQueue.post("function:user volatile");
+		commandQueue.post("am:source internal");
+		commandQueue.post("am:internal:function user");
+		commandQueue.post("am:internal:frequency " + (TimeUnit.SECONDS.toNanos(1) / (2.0 * leg)));
+		commandQueue.post("am:depth " + depth);
+		postAmplitude(min);
+		commandQueue.flush();
+		
+		hardwareMin = min;
+		hardwareMax = max;
+		hardwareLeg = leg;
+		
+		// AM goes on before the carrier is raised so the momentary glitch between the two commands is downward, not upward.
+		commandQueue.post("am:state on;:voltage " + carrier + " VPP");
+		
+		try {
 			
-			for (double z = max; z >= min; z = z - 0.00001)
-				agilent.writeCommand("voltage " + z + " VPP");
+			// Only answered once the instrument has carried out everything before it, so the ramp has started.
+			commandQueue.query("*opc?");
 			
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
+			
 			e.printStackTrace();
+			System.out.println("WARNING: the function generator did not confirm the start of the sweep; sweep abandoned.");
+			stopHardwareSweep();
+			
+			return;
+			
 		} // end try-catch
 		
+		hardwareSweepStart = System.nanoTime();
+		hardwareSweepRunning = true;
+		setSweeping(true);
+		setCompressing(true);
+		
+		getTimer().schedule(new Runnable() {
+			public void run() {
+				setCompressing(false);
+			}
+		}, leg, TimeUnit.NANOSECONDS);
+		
+		getTimer().schedule(new Runnable() {
+			public void run() {
+				stopHardwareSweep();
+			}
+		}, 2 * leg, TimeUnit.NANOSECONDS);
+		
+	} // end startHardwareSweep
+	
+	/**
+	 * Ends a hardware-timed sweep: drops the carrier back to the minimum and switches AM off. Again, lowering first keeps the
+	 * glitch between the two commands downward.
+	 */
+	private void stopHardwareSweep() {
+		
+		commandQueue.post("voltage " + hardwareMin + " VPP;:am:state off");
+		commandQueue.flush();
+		setMirror(GPIBCommandQueue.AMPLITUDE, hardwareMin);
+		hardwareSweepRunning = false;
 		setSweeping(false);
 		
-	} // end amplitudeSweep
+	} // end stopHardwareSweep
 	
 	/**
-	 * Commands the function generator to sweep from the specified start value to the specified end value or vice-versa.
-	 * 
-	 * @param start - The starting voltage value. Must be less than @param end.
-	 * @param end - The ending voltage value. Must be greater than @param start.
-	 * @param reverse - Boolean flag to state whether or not to run the sweep from end to start.
+	 * @return The SCPI command that uploads a triangle from -1 up to 1 and back to -1 into volatile arbitrary-waveform memory.
 	 */
-	public void sweepTo(double start, double end, boolean reverse) {
+	private String buildEnvelope() {
 		
-		if (!reverse) {
+		StringBuilder command = new StringBuilder("data volatile");
+		
+		for (int z = 0; z < rampPoints; z++) {
 			
-			try {
-				
-				for (double z = start; z <= end; z = z + 0.00001)
-					agilent.writeCommand("voltage " + z + " VPP");
-				
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} // end try-catch
+			double phase = (double) z / rampPoints;
+			double value = phase < 0.5 ? -1 + 4 * phase : 3 - 4 * phase;
+			command.append(", ").append(Math.round(value * 10000) / 10000.0);
 			
-		} else {
+		} // end for
+		
+		return command.toString();
+		
+	} // end buildEnvelope
+	
+	/**
+	 * @return The thread that times hardware sweeps and runs the state verification.
+	 */
+	private synchronized ScheduledExecutorService getTimer() {
+		
+		if (timer == null) {
 			
-			try {
-				
-				for (double z = end; z >= start; z = z - 0.00001)
-					agilent.writeCommand("voltage " + z + " VPP");
-				
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} // end try-catch
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					
+					Thread thread = new Thread(task, "Function Generator Timer");
+					thread.setDaemon(true);
+					return thread;
+					
+				}
+			});
 			
-		} // end if-else
+		} // end if
 		
-	} // end sweepTo
+		return timer;
+		
+	} // end getTimer
+	
+	/**
+	 * Gets the amplitude a hardware-timed sweep is at right now, worked out from the time since it started.
+	 * 
+	 * @return The amplitude in Volts, or the last commanded amplitude if no hardware sweep is running.
+	 */
+	public double getSweepAmplitude() {
+		
+		if (!hardwareSweepRunning)
+			return commandedAmplitude;
+		
+		long elapsed = System.nanoTime() - hardwareSweepStart;
+		long leg = hardwareLeg;
+		
+		if (elapsed < leg)
+			return hardwareMin + (hardwareMax - hardwareMin) * elapsed / leg;
+		else if (elapsed < 2 * leg)
+			return hardwareMax - (hardwareMax - hardwareMin) * (elapsed - leg) / leg;
+		else
+			return hardwareMin;
+		
+	} // end getSweepAmplitude
 	
 	/**
 	 * Method to check if the function generator is currently being commanded to sweep amplitudes - returns true if a sweep is in progress.
@@ -155,7 +393,12 @@ public class AgilentFunctionGenerator {
 	 * @return sweepInProgress - Boolean value that tracks if a sweep is currently in progress.
 	 */
 	public boolean isSweeping() {
+		
+		if (hardwareSweepRunning)
+			return System.nanoTime() - hardwareSweepStart < 2 * hardwareLeg;
+		
 		return sweepInProgress;
+		
 	} // end isSweeping
 	
 	/**
@@ -163,46 +406,128 @@ public class AgilentFunctionGenerator {
 	 * 
 	 * @param value - Set to true if starting a sweep and to false if finishing a sweep.
 	 */
-	public void setSweeping(boolean value) {
+	public synchronized void setSweeping(boolean value) {
+		
+		if (value == sweepInProgress)
+			return;
+		
 		sweepInProgress = value;
+		
+		for (SweepListener listener : sweepListeners) {
+			
+			try {
+				
+				if (value)
+					listener.sweepStarted();
+				else
+					listener.sweepFinished();
+				
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} // end try-catch
+			
+		} // end for
+		
 	} // end setSweeping
 	
 	/**
-	 * Commands the function generator to set the amplitude to the desired voltage.
+	 * Registers a listener for sweep progress.
 	 * 
-	 * @param voltage - Desired amplitude voltage, in Volts. Note: Function generator should only be commanded between 600 - 750 mV if you are not engaging modulation mode.
+	 * @param listener - The listener.
 	 */
-	public void setAmplitude(double voltage) {
+	public void addSweepListener(SweepListener listener) {
+		sweepListeners.add(listener);
+	} // end addSweepListener
+	
+	/**
+	 * @param listener - A listener registered with addSweepListener().
+	 */
+	public void removeSweepListener(SweepListener listener) {
+		sweepListeners.remove(listener);
+	} // end removeSweepListener
+	
+	/**
+	 * Records whether the sweep is compressing or relaxing the droplet and tells the listeners when that changes.
+	 */
+	private synchronized void setCompressing(boolean compressing) {
 		
-		if (agilent != null) {
-
+		if (compressing == isCompressing)
+			return;
+		
+		isCompressing = compressing;
+		
+		for (SweepListener listener : sweepListeners) {
+			
 			try {
-				agilent.writeCommand("voltage " + voltage + " VPP");
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
+				listener.phaseChanged(compressing);
+			} catch (RuntimeException e) {
 				e.printStackTrace();
 			} // end try-catch
-
-		} // end if
+			
+		} // end for
+		
+	} // end setCompressing
+	
+	/**
+	 * Sets how fast the amplitude sweeps run.
+	 * 
+	 * @param voltsPerSecond - Sweep rate in Volts per second.
+	 */
+	public void setSweepRate(double voltsPerSecond) {
+		sweepRate = voltsPerSecond;
+	} // end setSweepRate
+	
+	/**
+	 * Sets the maximum number of GPIB transactions per second. Setpoints posted faster than this are coalesced.
+	 * 
+	 * @param transactionsPerSecond - Bus transactions per second.
+	 */
+	public void setCommandRate(double transactionsPerSecond) {
+		
+		if (commandQueue != null)
+			commandQueue.setRate(transactionsPerSecond);
+		
+	} // end setCommandRate
+	
+	/**
+	 * Commands the function generator to set the amplitude to the desired voltage. Returns immediately; the command is sent by the command queue.
+	 * 
+	 * @param voltage - Desired amplitude voltage, in Volts. Note: Function generator should only be commanded between 600 - 750 mV if you are not engaging modulation mode.
+	 */
+	public void setAmplitude(double voltage) {
+		
+		if (commandQueue != null)
+			postAmplitude(voltage);
 		
 	} // end setAmplitude
 	
 	/**
-	 * Commands the function generator to set the freqency.
+	 * Commands the function generator to set the freqency. Returns immediately; the command is sent by the command queue.
 	 * 
 	 * @param freq - The desired frequency in Hz.
 	 */
 	public void setFrequecy(double freq) {
+		setFrequecy(freq, 0);
+	} // end setFrequency
+	
+	/**
+	 * Commands the function generator to set the frequency computed from a camera frame. The time from the frame to the command going
+	 * out on the bus is recorded as the loop's end-to-end latency.
+	 * 
+	 * @param freq - The desired frequency in Hz.
+	 * @param frameTimestamp - Capture time of the frame, from System.nanoTime(). 0 if the setpoint doesn't come from a frame.
+	 */
+	public void setFrequecy(double freq, long frameTimestamp) {
 		
-		if (agilent != null) {
-
-			try {
-				agilent.writeCommand("frequency " + freq);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} // end try-catch
-
+		if (commandQueue != null) {
+			
+			synchronized (mirrorLock) {
+				
+				commandQueue.post(GPIBCommandQueue.FREQUENCY, freq, frameTimestamp);
+				setMirror(GPIBCommandQueue.FREQUENCY, freq);
+				
+			} // end synchronized
+			
 		} // end if
 		
 	} // end setFrequency
@@ -212,62 +537,164 @@ public class AgilentFunctionGenerator {
 	 */
 	public void beep() {
 		
-		if (agilent != null) {
-
-			try {
-				agilent.writeCommand("system:beep");
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} // end try-catch
-
-		} // end if
+		if (commandQueue != null)
+			commandQueue.post("system:beep");
 		
 	} // end beep
 	
 	/**
-	 *  Asks the function generator for the current frequency. Returns zero if something is amiss.
+	 * Gets the function generator's frequency from the state mirror. Does not touch the bus.
 	 *  
-	 * @return The funcion generator's frequency in Hz.
+	 * @return The funcion generator's frequency in Hz, or zero if there is no function generator.
 	 */
 	public double getFrequency() {
-		
-		if (agilent != null) {
-
-			try {
-				return Double.parseDouble(agilent.sendCommand("frequency?"));
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} // end try-catch
-
-		} // end if
-		
-		return 0;
-		
+		return commandedFrequency;
 	} // end getFrequency
 	
 	/**
-	 *  Asks the function generator for the current amplitude. Returns zero if something is amiss.
+	 * Gets the function generator's amplitude from the state mirror. Does not touch the bus. During a hardware-timed sweep this is
+	 * where the sweep is right now.
 	 *  
-	 * @return The funcion generator's amplitude in Volts.
+	 * @return The funcion generator's amplitude in Volts, or zero if there is no function generator.
 	 */
 	public double getAmplitude() {
+		return getSweepAmplitude();
+	} // end getAmplitude
+	
+	/**
+	 * Reads the amplitude and frequency back from the instrument and compares them to the state mirror. Runs in the background
+	 * every verifyInterval, and can be called at any time. Skipped while a sweep is running, since the amplitude is moving (or, for
+	 * a hardware sweep, is not what the instrument reports). If a value was written while the queries were out, that value is
+	 * not judged against the old answer.
+	 * 
+	 * @return False if the instrument disagreed with the mirror. The mirror now holds the instrument's values.
+	 */
+	public boolean verifyState() {
 		
-		if (agilent != null) {
-
-			try {
-				return Double.parseDouble(agilent.sendCommand("voltage?"));
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} // end try-catch
-
-		} // end if
+		if (commandQueue == null || isSweeping())
+			return true;
 		
-		return 0;
+		long generation;
 		
-	} // end getFrequency
+		synchronized (mirrorLock) {
+			generation = mirrorGeneration;
+		} // end synchronized
+		
+		double amplitude;
+		double frequency;
+		
+		try {
+			
+			// Queries go out after everything posted before them, so unless the mirror changed meanwhile, these must match it.
+			amplitude = Double.parseDouble(commandQueue.query("voltage?"));
+			frequency = Double.parseDouble(commandQueue.query("frequency?"));
+			
+		} catch (IOException | NumberFormatException e) {
+			
+			e.printStackTrace();
+			return true;
+			
+		} // end try-catch
+		
+		synchronized (mirrorLock) {
+			
+			if (generation != mirrorGeneration || isSweeping())
+				return true;
+			
+			boolean inSync = true;
+			
+			if (Math.abs(amplitude - commandedAmplitude) > amplitudeTolerance) {
+				
+				System.out.println("Function generator amplitude drifted: commanded " + commandedAmplitude + " V, instrument reports " + amplitude + " V.");
+				inSync = false;
+				
+			} // end if
+			
+			if (Math.abs(frequency - commandedFrequency) > frequencyTolerance) {
+				
+				System.out.println("Function generator frequency drifted: commanded " + commandedFrequency + " Hz, instrument reports " + frequency + " Hz.");
+				inSync = false;
+				
+			} // end if
+			
+			if (!inSync) {
+				
+				commandedAmplitude = amplitude;
+				commandedFrequency = frequency;
+				mirrorGeneration++;
+				driftCount++;
+				
+			} // end if
+			
+			return inSync;
+			
+		} // end synchronized
+		
+	} // end verifyState
+	
+	/**
+	 * @return The number of times verifyState() found the instrument out of step with the state mirror.
+	 */
+	public long getDriftCount() {
+		return driftCount;
+	} // end getDriftCount
+	
+	/**
+	 * Gets the amplitude most recently written to the function generator. Unlike getAmplitude(), this does not touch the bus.
+	 * 
+	 * @return The last commanded amplitude in Volts.
+	 */
+	public double getCommandedAmplitude() {
+		return getSweepAmplitude();
+	} // end getCommandedAmplitude
+	
+	/**
+	 * Gets the frequency most recently written to the function generator. Unlike getFrequency(), this does not touch the bus.
+	 * 
+	 * @return The last commanded frequency in Hz.
+	 */
+	public double getCommandedFrequency() {
+		return commandedFrequency;
+	} // end getCommandedFrequency
+	
+	/**
+	 * Posts an amplitude setpoint, rounded to the amplitude resolution, and remembers the value.
+	 * 
+	 * @param voltage - Amplitude in Volts.
+	 */
+	private void postAmplitude(double voltage) {
+		
+		double rounded = Math.round(voltage * amplitudeSteps) / amplitudeSteps;
+		
+		synchronized (mirrorLock) {
+			
+			commandQueue.post(GPIBCommandQueue.AMPLITUDE, rounded);
+			setMirror(GPIBCommandQueue.AMPLITUDE, rounded);
+			
+		} // end synchronized
+		
+	} // end postAmplitude
+	
+	/**
+	 * Records a value written to the instrument in the state mirror.
+	 * 
+	 * @param setpoint - GPIBCommandQueue.AMPLITUDE or GPIBCommandQueue.FREQUENCY.
+	 * @param value - The value written.
+	 */
+	private void setMirror(int setpoint, double value) {
+		
+		synchronized (mirrorLock) {
+			
+			if (setpoint == GPIBCommandQueue.AMPLITUDE)
+				commandedAmplitude = value;
+			else
+				commandedFrequency = value;
+			
+			mirrorGeneration++;
+			
+		} // end synchronized
+		
+	} // end setMirror
 	
 	/**
 	 * Checks to see if we are currently compressing or relaxing the droplet. Returns true if we are compressing.
@@ -275,7 +702,13 @@ public class AgilentFunctionGenerator {
 	 * @return True if compressing, false if relaxing.
 	 */
 	public boolean isCompressing() {
+		
+		// During a hardware-timed sweep this is purely a function of time: the first leg compresses.
+		if (hardwareSweepRunning)
+			return System.nanoTime() - hardwareSweepStart < hardwareLeg;
+		
 		return isCompressing;
+		
 	} // end isCompressing
 	
 } // end AgilentFunctionGenerator
@@ -0,0 +1,372 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Headless entry point that re-analyzes every recorded video under a directory tree. Nothing here touches AWT, the camera
+ * or the GPIB bus, so it runs on any machine that has the OpenCV native library.
+ *
+ * Usage: java BatchReprocessor &lt;directory&gt; [--parallel N] [--frame-workers N] [--format csv|binary|both] [--complete-only]
+ *
+ * A video archive directory is re-analyzed as one video, through VideoArchiveReader, so its frames keep their order and capture
+ * times. Lossless raw frame files (".attraw") are re-analyzed too, and count as complete videos. The compression and relaxation
+ * videos of a run are skipped where the run's complete video is beside them, since their frames are in it already, and files
+ * still under a RunJournal staging name (".part") are always skipped.
+ *
+ * Each video gets its results written next to it as "&lt;video name&gt; Reanalysis.csv" and/or an experiment log ending in
+ * ".attlog", and a summary of the whole batch is written to "Reanalysis Summary.csv" in the root directory.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class BatchReprocessor {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final String completePrefix = "Complete Video Output";
+	private static final String compressionPrefix = "Compression Video Output";
+	private static final String relaxationPrefix = "Relaxation Video Output";
+
+	private final File root;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int frameWorkers = 1;
+	private boolean writeCSV = true;
+	private boolean writeBinary = false;
+	private boolean completeOnly = false;
+
+	/**
+	 * @param args - See the class description.
+	 */
+	public static void main(String[] args) {
+
+		System.setProperty("java.awt.headless", "true");
+
+		if (args.length == 0) {
+
+			System.out.println("Usage: java BatchReprocessor <directory> [--parallel N] [--frame-workers N] [--format csv|binary|both] [--complete-only]");
+			System.exit(1);
+
+		} // end if
+
+		BatchReprocessor batch = new BatchReprocessor(new File(args[0]));
+
+		try {
+
+			for (int z = 1; z < args.length; z++) {
+
+				if (args[z].equals("--parallel"))
+					batch.setParallelism(Integer.parseInt(args[++z]));
+				else if (args[z].equals("--frame-workers"))
+					batch.setFrameWorkers(Integer.parseInt(args[++z]));
+				else if (args[z].equals("--format"))
+					batch.setFormat(args[++z]);
+				else if (args[z].equals("--complete-only"))
+					batch.setCompleteOnly(true);
+				else
+					throw new IllegalArgumentException("Unknown option: " + args[z]);
+
+			} // end for
+
+		} catch (RuntimeException e) {
+
+			System.out.println(e.getMessage());
+			System.exit(1);
+
+		} // end try-catch
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		try {
+			System.exit(batch.run() ? 0 : 2);
+		} catch (IOException e) {
+
+			e.printStackTrace();
+			System.exit(1);
+
+		} // end try-catch
+
+	} // end main
+
+	/**
+	 * Constructor
+	 *
+	 * @param root - Directory searched, recursively, for .avi and .attraw files and video archives.
+	 */
+	public BatchReprocessor(File root) {
+		this.root = root;
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Re-analyzes every video found and writes the per-video results and the batch summary.
+	 *
+	 * @return True if every video was processed successfully.
+	 * @throws IOException If the directory cannot be searched or the summary cannot be written.
+	 */
+	public boolean run() throws IOException {
+
+		List<File> videos = findVideos();
+		System.out.println("Found " + videos.size() + " videos under " + root.getAbsolutePath() + ".");
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+		List<Future<Result>> pending = new ArrayList<Future<Result>>();
+
+		for (final File video : videos)
+			pending.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					return process(video);
+				}
+			}));
+
+		List<Result> results = new ArrayList<Result>();
+		boolean allSucceeded = true;
+
+		try {
+
+			for (Future<Result> future : pending) {
+
+				Result result = future.get();
+				results.add(result);
+				allSucceeded &= result.error == null;
+
+			} // end for
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch was interrupted.", e);
+
+		} catch (ExecutionException e) {
+			throw new IOException("Batch failed.", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		} // end try-catch-finally
+
+		writeSummary(results);
+
+		return allSucceeded;
+
+	} // end run
+
+	/**
+	 * Sets which result files are written per video.
+	 *
+	 * @param format - "csv", "binary" or "both".
+	 */
+	public void setFormat(String format) {
+
+		if (format.equals("csv")) {
+
+			writeCSV = true;
+			writeBinary = false;
+
+		} else if (format.equals("binary")) {
+
+			writeCSV = false;
+			writeBinary = true;
+
+		} else if (format.equals("both")) {
+
+			writeCSV = true;
+			writeBinary = true;
+
+		} else
+			throw new IllegalArgumentException("Unknown format: " + format);
+
+	} // end setFormat
+
+	/**
+	 * @param videos - Number of videos processed at once.
+	 */
+	public void setParallelism(int videos) {
+		parallelism = videos;
+	} // end setParallelism
+
+	/**
+	 * @param workers - Number of analysis threads used within each video. 1 analyzes each video sequentially.
+	 */
+	public void setFrameWorkers(int workers) {
+		frameWorkers = workers;
+	} // end setFrameWorkers
+
+	/**
+	 * @param complete - True to skip every compression and relaxation video, even where there is no complete video beside it.
+	 */
+	public void setCompleteOnly(boolean complete) {
+		completeOnly = complete;
+	} // end setCompleteOnly
+
+	private List<File> findVideos() throws IOException {
+
+		if (!root.isDirectory())
+			throw new IOException(root.getAbsolutePath() + " is not a directory.");
+
+		List<File> videos = new ArrayList<File>();
+		collectVideos(root, videos);
+		Collections.sort(videos);
+
+		return videos;
+
+	} // end findVideos
+
+	private void collectVideos(File directory, List<File> videos) {
+
+		File[] files = directory.listFiles();
+
+		if (files == null)
+			return;
+
+		for (File file : files) {
+
+			if (RunJournal.isStaged(file))
+				continue; // recovered under its final name the next time its session is opened
+
+			if (file.isDirectory()) {
+
+				if (new File(file, VideoArchive.indexName).exists())
+					videos.add(file);
+				else
+					collectVideos(file, videos);
+
+			} else if (file.getName().toLowerCase().endsWith(".avi")) {
+
+				if (completeOnly ? isCompleteVideo(file) : !hasCompleteVideo(file))
+					videos.add(file);
+
+			} else if (file.getName().toLowerCase().endsWith(".attraw"))
+				videos.add(file);
+
+		} // end for
+
+	} // end collectVideos
+
+	private static boolean isCompleteVideo(File file) {
+		return file.getName().startsWith(completePrefix);
+	} // end isCompleteVideo
+
+	/**
+	 * @return True for a compression or relaxation video whose run's complete video, file or archive, is in the same directory.
+	 */
+	private static boolean hasCompleteVideo(File file) {
+
+		String name = file.getName();
+		String suffix;
+
+		if (name.startsWith(compressionPrefix))
+			suffix = name.substring(compressionPrefix.length(), name.lastIndexOf('.'));
+		else if (name.startsWith(relaxationPrefix))
+			suffix = name.substring(relaxationPrefix.length(), name.lastIndexOf('.'));
+		else
+			return false;
+
+		return new File(file.getParentFile(), completePrefix + suffix).isDirectory()
+				|| new File(file.getParentFile(), completePrefix + suffix + ".avi").isFile();
+
+	} // end hasCompleteVideo
+
+	/**
+	 * Analyzes a single video and writes its result files. Errors are recorded in the result rather than thrown, so one bad
+	 * file doesn't stop the rest of the batch.
+	 */
+	private Result process(File video) {
+
+		Result result = new Result(video);
+		OfflineAnalysisEngine engine = new OfflineAnalysisEngine(frameWorkers);
+
+		try {
+
+			MeasurementTable measurements = frameWorkers > 1 ? engine.analyze(video.getPath()) : engine.analyzeSequential(video.getPath());
+			MeasurementTable.View all = measurements.view();
+			// An archive's results go beside its directory, not among its segments.
+			String base = (video.isDirectory() ? video.getPath() : video.getPath().substring(0, video.getPath().lastIndexOf('.')))
+					+ " Reanalysis";
+
+			if (writeCSV)
+				MeasurementTable.writeCSV(new File(base + ".csv"), all);
+
+			if (writeBinary)
+				ExperimentLog.write(new File(base + ".attlog"), all, System.currentTimeMillis());
+
+			result.frames = engine.getFramesAnalyzed();
+			result.rows = all.size();
+			result.framesPerSecond = engine.getFramesPerSecond();
+
+			for (int z = 0; z < all.size(); z++) {
+
+				double ratio = all.get(MeasurementTable.BA_RATIO, z);
+				result.meanRatio += ratio / all.size();
+				result.maxRatio = Math.max(result.maxRatio, ratio);
+
+			} // end for
+
+			System.out.println("Done: " + video.getPath());
+
+		} catch (IOException | RuntimeException e) {
+
+			result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+			System.out.println("FAILED: " + video.getPath() + " - " + result.error);
+
+		} // end try-catch
+
+		return result;
+
+	} // end process
+
+	private void writeSummary(List<Result> results) throws IOException {
+
+		File summary = new File(root, "Reanalysis Summary.csv");
+		CSVWriter csvOutput = new CSVWriter(new FileWriter(summary.getAbsolutePath()), '\t', ',');
+
+		try {
+
+			csvOutput.writeNext("Video#Frames#Frames With Droplet#Frames per Second#Mean B/A#Max B/A#Error".split("#"));
+
+			for (Result result : results)
+				csvOutput.writeNext(new String[] {result.video.getPath(), Long.toString(result.frames), Integer.toString(result.rows),
+						Double.toString(result.framesPerSecond), Double.toString(result.meanRatio), Double.toString(result.maxRatio),
+						result.error == null ? "" : result.error});
+
+		} finally {
+			csvOutput.close();
+		} // end try-finally
+
+		System.out.println("Summary written to " + summary.getAbsolutePath());
+
+	} // end writeSummary
+
+	/**
+	 * Outcome of re-analyzing one video.
+	 */
+	private static class Result {
+
+		private final File video;
+		private long frames;
+		private int rows;
+		private double framesPerSecond;
+		private double meanRatio;
+		private double maxRatio;
+		private String error;
+
+		private Result(File video) {
+			this.video = video;
+		} // end constructor
+
+	} // end Result
+
+} // end BatchReprocessor
@@ -0,0 +1,237 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opencv.core.Mat;
+
+/**
+ * Runs a control task at a fixed rate on frames from a FramePipeline, on a thread of its own.
+ *
+ * Ticks are scheduled against absolute deadlines, so the rate doesn't drift however long the task takes. At each tick the task
+ * is run on the newest frame - but only if that frame is new. If no new frame has arrived by the tick, the loop waits for one
+ * until the next tick is due and otherwise skips the tick, so the same frame is never controlled on twice. If the task overruns a tick,
+ * the missed ticks are dropped rather than run back to back.
+ *
+ * While stopped the thread sleeps on a monitor and uses no CPU.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class ControlLoopScheduler {
+
+	/*
+	 * Local Class Variables
+	 */
+	private final FramePipeline.Reader frames;
+	private final Task task;
+	private final Object lock = new Object();
+	private final Thread loopThread;
+
+	private volatile long period; // nanoseconds
+	private boolean engaged = false; // guarded by lock
+	private boolean closed = false; // guarded by lock
+
+	private volatile long ticks;
+	private volatile long skippedTicks;
+	private volatile long overruns;
+
+	/**
+	 * Constructor. The loop starts out stopped.
+	 *
+	 * @param pipeline - Where the frames come from.
+	 * @param rate - Loop rate in Hz.
+	 * @param task - What to run on each new frame.
+	 * @param name - Name of the loop's thread.
+	 */
+	public ControlLoopScheduler(FramePipeline pipeline, double rate, Task task, String name) {
+
+		this.frames = pipeline.newReader(false);
+		this.task = task;
+		setRate(rate);
+
+		loopThread = new Thread(new Runnable() {
+			public void run() {
+				runLoop();
+			}
+		}, name);
+		loopThread.setDaemon(true);
+		loopThread.start();
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Engages the loop. The task's start() is called on the loop thread before the first tick.
+	 */
+	public void start() {
+
+		synchronized (lock) {
+
+			engaged = true;
+			lock.notifyAll();
+
+		} // end synchronized
+
+	} // end start
+
+	/**
+	 * Disengages the loop after the current tick.
+	 */
+	public void stop() {
+
+		synchronized (lock) {
+			engaged = false;
+		} // end synchronized
+
+	} // end stop
+
+	/**
+	 * Stops the loop for good and ends its thread.
+	 */
+	public void close() {
+
+		synchronized (lock) {
+
+			engaged = false;
+			closed = true;
+			lock.notifyAll();
+
+		} // end synchronized
+
+		loopThread.interrupt();
+
+	} // end close
+
+	/**
+	 * @return True while the loop is engaged.
+	 */
+	public boolean isRunning() {
+
+		synchronized (lock) {
+			return engaged;
+		} // end synchronized
+
+	} // end isRunning
+
+	/**
+	 * @param rate - Loop rate in Hz. Takes effect at the next tick.
+	 */
+	public void setRate(double rate) {
+		period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+	} // end setRate
+
+	/**
+	 * @return The number of times the task was run.
+	 */
+	public long getTicks() {
+		return ticks;
+	} // end getTicks
+
+	/**
+	 * @return The number of ticks skipped because no new frame arrived in time.
+	 */
+	public long getSkippedTicks() {
+		return skippedTicks;
+	} // end getSkippedTicks
+
+	/**
+	 * @return The number of ticks dropped because the task ran past them.
+	 */
+	public long getOverruns() {
+		return overruns;
+	} // end getOverruns
+
+	/**
+	 * Body of the loop thread.
+	 */
+	private void runLoop() {
+
+		while (awaitEngaged()) {
+
+			task.start();
+			long deadline = System.nanoTime();
+
+			while (isRunning()) {
+
+				long wait = deadline - System.nanoTime();
+
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+
+				if (Thread.interrupted())
+					break;
+
+				// Run on the newest frame, waiting until the next tick at most for a new one.
+				if (frames.next(Math.max(0, deadline + period - System.nanoTime()))) {
+
+					task.run(frames.getFrame(), frames.getTimestamp());
+					ticks++;
+
+				} else
+					skippedTicks++;
+
+				deadline += period;
+				long now = System.nanoTime();
+
+				if (now - deadline > 0) {
+
+					long missed = (now - deadline) / period + 1;
+					overruns += missed;
+					deadline += missed * period;
+
+				} // end if
+
+			} // end while
+
+		} // end while
+
+	} // end runLoop
+
+	/**
+	 * Sleeps until the loop is engaged.
+	 *
+	 * @return False if the loop was closed instead.
+	 */
+	private boolean awaitEngaged() {
+
+		synchronized (lock) {
+
+			try {
+
+				while (!engaged && !closed)
+					lock.wait();
+
+			} catch (InterruptedException e) {
+				return false;
+			} // end try-catch
+
+			return !closed;
+
+		} // end synchronized
+
+	} // end awaitEngaged
+
+	/**
+	 * The work done each tick.
+	 */
+	public static abstract class Task {
+
+		/**
+		 * Called on the loop thread each time the loop is engaged, before the first tick.
+		 */
+		public void start() {
+		} // end start
+
+		/**
+		 * Called on the loop thread once per tick with a frame that has not been seen before.
+		 *
+		 * @param frame - The frame. Only valid until run() returns.
+		 * @param timestamp - Capture time of the frame, from System.nanoTime().
+		 */
+		public abstract void run(Mat frame, long timestamp);
+
+	} // end Task
+
+} // end ControlLoopScheduler
@@ -1,12 +1,13 @@
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
@@ -19,27 +20,74 @@ import org.opencv.videoio.VideoCapture;
 import org.opencv.videoio.VideoWriter;
 import org.opencv.videoio.Videoio;
 
-import com.opencsv.CSVWriter;
-
 /**
+ * Finds and measures the droplet in camera frames and records the runs.
+ * 
+ * Not thread-safe: the analysis reuses scratch buffers from frame to frame, so threads sharing an analyzer must not run
+ * analyzeFrame(), performFeedbackAnalysis() or the save methods at the same time.
+ * 
  * @author Jarrod Risley
  *
  */
 public class DropletAnalyzer {
 
+	/**
+	 * How the droplet's axes and centroid are measured once it has been found.
+	 */
+	public enum MeasurementMode {
+		
+		/** Half the sides of the bounding rectangle of the droplet contour. Quick, but quantized to whole pixels. */
+		BOUNDING_BOX,
+		
+		/** An ellipse fitted to the droplet's edge located to a fraction of a pixel - see EllipseFitter. */
+		ELLIPSE_FIT
+		
+	} // end MeasurementMode
+	
 	/*
 	 * Local Class Variables
 	 */
 	private Rect boundingRectangle;
-	private ArrayList<double[]> compressionData = new ArrayList<double[]>(); // Data is stored as [a, b, a/b, height, relativeToNode]
-	private ArrayList<double[]> relaxationData = new ArrayList<double[]>(); // Data is stored as [a, b, a/b, height, relativeToNode]
-	private ArrayList<Mat> analyzedVideo = new ArrayList<Mat>();
-	private ArrayList<Mat> analyzedCompressionVideo = new ArrayList<Mat>();
-	private ArrayList<Mat> analyzedRelaxationVideo = new ArrayList<Mat>();
+	private volatile Rect trackingWindow; // Region searched in tracking mode. Null while the droplet has to be (re-)acquired.
+	private final MeasurementTable measurements = new MeasurementTable();
+	private StreamingVideoRecorder recorder;
+	private ExperimentLog experimentLog; // open while the recorder is
+	private RawFrameRecorder rawRecorder; // open while the recorder is, if raw capture is on
+	private RunJournal journal; // stages and finishes the files of the current session's runs
+	private long frameIndex; // frames queued in the current run's complete video
+	private StreamingVideoRecorder.OverflowPolicy recordingPolicy = StreamingVideoRecorder.OverflowPolicy.BLOCK;
 	private VideoCapture videoSource;
-	private VideoWriter videoWriter;
 	private Mat currentFrame;
 	
+	/*
+	 * Scratch Buffers - reused for every frame so steady-state analysis does not allocate pixel memory.
+	 */
+	private final Mat grayFrame = new Mat(); // grayscale copy of the frame handed to performFeedbackAnalysis
+	private final Mat edgeBuffer = new Mat(); // output of prepFrame, searched in place by findContours
+	private final Mat annotatedFrame = new Mat(); // output of drawRectangle
+	private final Mat pyramidFrame = new Mat(); // downsampled frame searched in pyramid mode
+	private final Mat background = new Mat(); // running average of the static scene, CV_32F, full frame
+	private final Mat backgroundImage = new Mat(); // the background model as an 8-bit image, what frames are compared with
+	private final Mat pyramidBackground = new Mat(); // the background model downsampled to match pyramidFrame
+	private final Mat learningMask = new Mat(); // everything but the droplet - only that is learned into the background
+	private final Mat foregroundBuffer = new Mat(); // pixels that differ from the background, used to mask the edges
+	private final Mat foregroundKernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(7, 7));
+	private final Mat hierarchy = new Mat();
+	private final List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+	private final EllipseFitter ellipseFitter = new EllipseFitter();
+	private final Rect trackingRectangle = new Rect();
+	private final Rect refinementRectangle = new Rect();
+	private final Rect lastDroplet = new Rect(); // where the droplet was found in the last frame, in full-frame coordinates
+	private final Rect backgroundExclusion = new Rect();
+	private final Rect foregroundWindow = new Rect(); // always passed through background suppression
+	private final Size pyramidSize = new Size();
+	private final Size blurKernel = new Size(3, 3);
+	private final Point boxTopLeft = new Point();
+	private final Point boxBottomRight = new Point();
+	private final Scalar boxColor = new Scalar(0, 255, 0);
+	private final Scalar maskOn = new Scalar(255);
+	private final Scalar maskOff = new Scalar(0);
+	
 	private final double calibrationConstant = 0.81915/129.67; // 0.351; // pixels/mircons
 	private final double nodeLocation = 1718; // microns above the bottom of the field of view
 	private final double heightAboveHorn = 1206; // microns above the horn to the bottom of the field of view
@@ -47,11 +95,36 @@ public class DropletAnalyzer {
 	private double startLocation;
 	private long startTime;
 	private long endTime;
+	private long startNanos = System.nanoTime();
+	private long frameTimestamp;
+	private double amplitude;
+	private double frequency;
 	private double x;
 	private double y;
+	private double axisA;
+	private double axisB;
+	private double orientation; // degrees
+	private boolean ellipseFitted; // true if the last measurement came from an ellipse fit
 	private boolean startLocationMeasured = false;
 	private boolean isCompressing;
 	private boolean multiFlag;
+	private volatile boolean trackingMode = false;
+	private volatile boolean latencyRecording = true; // feed the shared LoopLatency histograms - only the live analyzer does
+	private volatile MeasurementMode measurementMode = MeasurementMode.BOUNDING_BOX;
+	private volatile int pyramidLevel = 0; // 0 searches the full frame; each level halves the search resolution
+	private volatile boolean backgroundSubtraction = false;
+	private volatile double backgroundLearningRate = 0.02; // weight of each new frame in the background model
+	private volatile double foregroundThreshold = 15; // gray levels a pixel must differ from the background by to be searched
+	private volatile boolean backgroundReset = false;
+	private boolean lastDropletFound = false;
+	private boolean searchedFullFrame = false; // the last search covered the whole frame, at full resolution or in the pyramid
+	private Mat searchBackground; // background matching the frame being searched, or null to search without suppression
+	private int frameRows = 1080; // height of the frames analyzed - measurements are taken from the bottom of the frame
+	private final double xReference = 1080; // x is reported as xReference - centerX whatever the frame size, as it always has been
+	private boolean recordingEnabled = true;
+	private boolean rawCaptureEnabled = false;
+	private int rawCompressionLevel = 1; // PNG compression, 0 (fastest) to 9 (smallest)
+	private int rawEncoderThreads = 2;
 	
 	private String path;
 	private String filename;
@@ -59,8 +132,16 @@ public class DropletAnalyzer {
 	private final int scale = 1;
 	private final int delta = 0;
 	private final int depth = CvType.CV_8UC1;
-	private int runCounter = 0;
+	private int runCounter = 0; // number of the run being recorded in a multi-run session
+	private int savedRuns = 0; // runs saved so far in the multi-run session
 	private int maxNumberOfRuns = 0;
+	private final int recorderCapacity = 32; // frames buffered ahead of the video encoder
+	private int videoCodec = VideoWriter.fourcc('M','S','V','C');
+	private double videoFrameRate = 25.4;
+	private double segmentDuration = 10; // seconds of video per segment of the complete video archive
+	private final double trackingPadding = 0.5; // fraction of the droplet's size added on each side of the tracking window
+	private final int minimumTrackingPadding = 32; // pixels
+	private final int maximumPyramidLevel = 4;
 	
 	/*
 	 * Test Parameters
@@ -91,7 +172,6 @@ public class DropletAnalyzer {
 //			System.out.println(index[z]);
 		
 		videoSource = new VideoCapture(target);
-		videoWriter = new VideoWriter();
 		
 		videoSource.set(Videoio.CV_CAP_PROP_FRAME_WIDTH, 1920);
 		videoSource.set(Videoio.CV_CAP_PROP_FRAME_HEIGHT, 1080);
@@ -121,12 +201,10 @@ public class DropletAnalyzer {
 	public DropletAnalyzer(String target) {
 		
 		videoSource = new VideoCapture(target);
-		videoWriter = new VideoWriter();
 		
 		
 		currentFrame = new Mat();
 		videoSource.read(currentFrame);
-		videoWriter.open("D:\\Google Drive\\Lutchen Fellowship 2015\\Data\\OpenCV Calibration\\Video\\Test Video Output.avi", VideoWriter.fourcc('M','S','V','C'), 25.4, currentFrame.size());
 		
 		if (!videoSource.isOpened()) {
 			
@@ -141,6 +219,41 @@ public class DropletAnalyzer {
 		
 	} // end constructor
 	
+	/**
+	 * Constructor that uses an already opened video source, e.g. a SyntheticDropletSource.
+	 * @param source The video source
+	 */
+	
+	public DropletAnalyzer(VideoCapture source) {
+		
+		videoSource = source;
+		currentFrame = new Mat();
+		
+		if (!videoSource.isOpened()) {
+			
+			try {
+				Exception e = new Exception("Error opening video source.");
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
+			} // end try-catch
+			
+		} // end if
+		
+	} // end constructor
+	
+	/**
+	 * Constructor for an analyzer without a video source of its own, e.g. one of the workers of the offline analysis engine.
+	 * Frames are supplied by the caller through analyzeFrame(). Such an analyzer is not part of the live loop, so it doesn't
+	 * record into LoopLatency - see setLatencyRecording().
+	 */
+	public DropletAnalyzer() {
+		
+		currentFrame = new Mat();
+		latencyRecording = false;
+		
+	} // end constructor
+	
 	/*
 	 * Methods
 	 */
@@ -153,26 +266,31 @@ public class DropletAnalyzer {
 	 * @return The frequency setpoint of the function generator.
 	 */
 	public double performFeedbackAnalysis(PIDSubsystem pid, Mat currentFrame) {
+		return performFeedbackAnalysis(pid, currentFrame, System.nanoTime());
+	} // end performAnalysis
+	
+	/**
+	 * Performs the analysis for the PID subsystem to act upon, for a frame whose capture time is known. The PID subsystem's time step is
+	 * measured between capture times, so it is right however long the analysis took.
+	 * 
+	 * @param pid - The PID subsystem dedicated to performing this feedback analysis.
+	 * @param currentFrame - the current frame from the camera.
+	 * @param timestamp - Capture time of the frame, from System.nanoTime().
+	 * @return The frequency setpoint of the function generator.
+	 */
+	public double performFeedbackAnalysis(PIDSubsystem pid, Mat currentFrame, long timestamp) {
 		
-		Mat clone = new Mat();
-		Mat output = new Mat();
-		Rect rectangle;
-		double aspRat;
-		
-		// Start timer
-		pid.setTime();
-		
-		
-		Imgproc.cvtColor(currentFrame, clone, Imgproc.COLOR_BGR2GRAY);
+		long start = System.nanoTime();
+		Imgproc.cvtColor(currentFrame, grayFrame, Imgproc.COLOR_BGR2GRAY);
+		recordLatency(LoopLatency.GRAY, start);
 		//Imgproc.HoughCircles(clone, output, Imgproc.CV_HOUGH_GRADIENT, 1, 800);
-		analyzeFrame(clone);
-//		rectangle = findDropletProfile(output);
-//		
-//		aspRat = rectangle.x / rectangle.y;
+		analyzeFrame(grayFrame, timestamp);
 		
-		System.out.println("Aspect Ratio: " + baRatio);
+		start = System.nanoTime();
+		double output = pid.calculateOutput(baRatio, timestamp);
+		recordLatency(LoopLatency.PID, start);
 		
-		return pid.calculateOutput(baRatio);
+		return output;
 		
 	} // end performAnalysis
 	
@@ -182,8 +300,23 @@ public class DropletAnalyzer {
 	 * 
 	 * @param input An OpenCV Mat object from the camera's live stream containing the droplet.
 	 * @return A modified Mat object that contains a bounding rectangle around the droplet from the original image. If the droplet was not found, returns the orignal image.
+	 * The annotated frame is a buffer owned by the analyzer and is overwritten by the next call.
 	 */
 	public Mat analyzeFrame(Mat input) {
+		return analyzeFrame(input, System.nanoTime());
+	} // end analyzeFrame
+	
+	/**
+	 * Same as {@link #analyzeFrame(Mat)}, for frames whose capture time is known.
+	 * 
+	 * @param input An OpenCV Mat object from the camera's live stream containing the droplet.
+	 * @param timestamp Capture time of the frame, from System.nanoTime().
+	 * @return A modified Mat object that contains a bounding rectangle around the droplet from the original image. If the droplet was not found, returns the orignal image.
+	 */
+	public Mat analyzeFrame(Mat input, long timestamp) {
+		
+		frameTimestamp = timestamp;
+		Mat raw = input;
 		
 		// Error Checking
 		if (input.empty())
@@ -194,11 +327,11 @@ public class DropletAnalyzer {
 				e.printStackTrace();
 			} // end try-catch
 			
-		boundingRectangle = findDropletProfile(prepFrame(input));
+		boundingRectangle = locateDroplet(input);
 		
 		if (boundingRectangle != null) {
 			
-			measureDropletAxes(boundingRectangle);
+			measureDropletAxes(input, boundingRectangle);
 			//generateCSV();
 			//input.convertTo(input, Imgproc.COLOR_BayerGR2RGB);
 			input = drawRectangle(boundingRectangle, input);
@@ -208,79 +341,87 @@ public class DropletAnalyzer {
 			System.out.println("WARNING: TARGET NOT FOUND.");
 		} // end if-else
 		
-		analyzedVideo.add(input);
-		
-		if (isCompressing) 
-			analyzedCompressionVideo.add(input);
-		else
-			analyzedRelaxationVideo.add(input);
+		if (recordingEnabled) {
+			
+			if (recorder == null)
+				openRecorder();
+			
+			long record = experimentLog != null ? experimentLog.size() : -1; // the record logFrame() is about to append
+			boolean queued = recorder.record(input, isCompressing, frameTimestamp - startNanos, record);
+			
+			if (rawRecorder != null)
+				rawRecorder.record(raw, frameTimestamp - startNanos, record);
+
+			logFrame(queued ? frameIndex++ : -1, boundingRectangle != null);
+			
+		} // end if
 		
 		return input;
 		
 	} // end analyze
 	
 	/**
-	 * Saves the analyzed images as a video and outputs the data to a CSV file for further analysis.
-	 * Evertyhing is saved to a brand-new directory determined by the user's specified save location and the local time stamp.
+	 * Appends the current frame to the experiment log, if one is open. A failed write is reported and ends the log for the run;
+	 * the measurement table still has the data.
+	 * 
+	 * @param frame - The frame's index in the complete video, or -1 if the recorder dropped it.
+	 * @param found - True if the droplet was found and measured in the frame.
 	 */
-	public void saveData() {
-		
-		// Set up directory information
-		filename = LocalDateTime.now().toString();
-		filename = filename.replaceAll(":", "_");
+	private void logFrame(long frame, boolean found) {
 		
+		if (experimentLog == null)
+			return;
 		
-		String savePath;
+		double phase = isCompressing ? MeasurementTable.PHASE_COMPRESSION : MeasurementTable.PHASE_RELAXATION;
 		
-		if (path != null)
-			savePath = path + "\\" + filename;
-		else
-			savePath = defaultPath + "\\" + filename;
+		try {
 			
-		File directory = new File(savePath);
-		directory.mkdir();
-		
-		// Save CSV file
-		generateCSV(savePath, compressionData, "Compression Data");
-		generateCSV(savePath, relaxationData, "Relaxation Data");
-		
-		// Save Complete Video:
-		videoWriter.open(savePath + "\\Complete Video Output.avi", VideoWriter.fourcc('M','S','V','C'), 25.4, currentFrame.size());
+			if (found)
+				experimentLog.append(frame, frameTimestamp - startNanos, runCounter, phase, measurements.last(MeasurementTable.A),
+						measurements.last(MeasurementTable.B), measurements.last(MeasurementTable.BA_RATIO),
+						measurements.last(MeasurementTable.HEIGHT), measurements.last(MeasurementTable.LOC_REL_FRAME),
+						measurements.last(MeasurementTable.LOC_REL_START), orientation, amplitude, frequency);
+			else
+				experimentLog.append(frame, frameTimestamp - startNanos, runCounter, phase, Double.NaN, Double.NaN, Double.NaN,
+						Double.NaN, Double.NaN, Double.NaN, Double.NaN, amplitude, frequency);
+			
+		} catch (IOException e) {
+			
+			e.printStackTrace();
+			closeLog();
+			
+		} // end try-catch
 		
-		if (!analyzedVideo.isEmpty())
-			for (int z = 0; z < analyzedVideo.size(); z++)
-				videoWriter.write(analyzedVideo.get(z));
+	} // end logFrame
+	
+	/**
+	 * Saves the analyzed images as a video and outputs the data to a CSV file for further analysis.
+	 * Evertyhing is saved to a brand-new directory determined by the user's specified save location and the local time stamp.
+	 * The files are finished in the background; this returns right away.
+	 */
+	public void saveData() {
 		
-		videoWriter.release();
-		analyzedVideo.clear();
+		// Set up directory information. If frames were recorded the directory already exists.
+		if (filename == null) {
+			
+			filename = LocalDateTime.now().toString();
+			filename = filename.replaceAll(":", "_");
+			
+		} // end if
 		
-		// Save Compression Video:
-		videoWriter.open(savePath + "\\Compression Video Output.avi", VideoWriter.fourcc('M','S','V','C'), 25.4, currentFrame.size());
-
-		if (!analyzedCompressionVideo.isEmpty())
-			for (int z = 0; z < analyzedCompressionVideo.size(); z++)
-				videoWriter.write(analyzedCompressionVideo.get(z));
-
-		videoWriter.release();
-		analyzedCompressionVideo.clear();
+		String savePath = getSavePath();
 		
-		// Save Compression Video:
-		videoWriter.open(savePath + "\\Relaxation Video Output.avi", VideoWriter.fourcc('M','S','V','C'), 25.4, currentFrame.size());
-
-		if (!analyzedRelaxationVideo.isEmpty())
-			for (int z = 0; z < analyzedRelaxationVideo.size(); z++)
-				videoWriter.write(analyzedRelaxationVideo.get(z));
-
-		videoWriter.release();
-		analyzedRelaxationVideo.clear();
+		finishRun(savePath, "Compression Data", "Relaxation Data");
+		clearMeasurements();
+		saveLatency(savePath, "Loop Latency");
 		
 		filename = null;
 		
 	} // end saveData
 	
 	/**
-	 * Saves the analyzed images as a video and outputs the data to a CSV file for further analysis.
-	 * Evertyhing is saved to a brand-new directory determined by the user's specified save location and the local time stamp.
+	 * Saves the current run of a multi-run session and moves on to the next. The files are finished in the background, so the
+	 * next run can start right away; it gets the next free run number in the session's directory when its first frame is recorded.
 	 */
 	public void multiRunSave() {
 		
@@ -292,60 +433,309 @@ public class DropletAnalyzer {
 			
 		} // end if
 		
-		runCounter = runCounter++;
-		String savePath;
+		// Nothing was recorded, so the run was never given a number - it gets one now, or every run would be saved as run 0.
+		if (recorder == null && experimentLog == null) {
+			
+			openJournal();
+			runCounter = journal.nextRun();
+			
+		} // end if
+		
+		String savePath = getSavePath();
 		
-		if (path != null)
-			savePath = path + "\\" + filename;
-		else
-			savePath = defaultPath + "\\" + filename;
+		finishRun(savePath, "Compression Data Run " + runCounter, "Relaxation Data " + runCounter);
+		clearMeasurements();
+		saveLatency(savePath, "Loop Latency Run " + runCounter);
+		
+		savedRuns++;
+		
+		if (savedRuns == maxNumberOfRuns) {
+			
+			filename = null;
+			runCounter = 0;
+			savedRuns = 0;
+			multiFlag = false;
+			
+		} // end if
+		
+	} // end saveData
+	
+	/**
+	 * Continues a multi-run session in an existing directory, e.g. after a crash. Files left staged by the interrupted run are
+	 * recovered, and the run numbers carry on after the highest one in the directory.
+	 * 
+	 * @param directory - The session's directory.
+	 * @param runs - The number of runs still to be done.
+	 */
+	public void resumeSession(String directory, int runs) {
+		
+		File session = new File(directory);
+		
+		closeRecorder();
+		setMaxRuns(runs);
+		path = session.getParent();
+		filename = session.getName();
+		
+	} // end resumeSession
+	
+	/**
+	 * Hands the run's recorder and experiment log to the journal, which closes them, exports the compression and relaxation data
+	 * from the log as CSV files and moves every file of the run to its final name in the background. If there is no log - recording
+	 * is off or the log failed - the CSV files are written from the measurement table instead, right away.
+	 * 
+	 * @param savePath - The run's directory.
+	 * @param compressionName - Name of the compression data file, without extension.
+	 * @param relaxationName - Name of the relaxation data file, without extension.
+	 */
+	private void finishRun(String savePath, String compressionName, String relaxationName) {
 		
 		File directory = new File(savePath);
+		
 		if (!directory.exists())
-			directory.mkdir();
+			directory.mkdirs();
+		
+		if (experimentLog == null) {
+			
+			generateCSV(savePath, measurements.phaseView(MeasurementTable.PHASE_COMPRESSION), compressionName);
+			generateCSV(savePath, measurements.phaseView(MeasurementTable.PHASE_RELAXATION), relaxationName);
+			
+		} // end if
 		
-		// Save CSV file
-		generateCSV(savePath, compressionData, "Compression Data Run " + runCounter);
-		generateCSV(savePath, relaxationData, "Relaxation Data " + runCounter);
+		if (journal != null)
+			journal.finishRun(recorder, rawRecorder, experimentLog, compressionName, relaxationName);
+		else if (recorder != null)
+			recorder.close();
 		
-		// Save Complete Video:
-		videoWriter.open(savePath + "\\Complete Video Output of Run " + runCounter + ".avi", VideoWriter.fourcc('M','S','V','C'), 25.4, currentFrame.size());
+		recorder = null;
+		rawRecorder = null;
+		experimentLog = null;
 		
-		if (!analyzedVideo.isEmpty())
-			for (int z = 0; z < analyzedVideo.size(); z++)
-				videoWriter.write(analyzedVideo.get(z));
+	} // end finishRun
+	
+	/**
+	 * Writes the loop latency histograms collected during the run next to its data and starts new ones for the next run.
+	 * 
+	 * @param savePath - The run's directory.
+	 * @param name - Base name of the latency files.
+	 */
+	private void saveLatency(String savePath, String name) {
 		
-		videoWriter.release();
-		analyzedVideo.clear();
+		if (!latencyRecording)
+			return;
 		
-		// Save Compression Video:
-		videoWriter.open(savePath + "\\Compression Video Output of Run " + runCounter + ".avi", VideoWriter.fourcc('M','S','V','C'), 25.4, currentFrame.size());
-
-		if (!analyzedCompressionVideo.isEmpty())
-			for (int z = 0; z < analyzedCompressionVideo.size(); z++)
-				videoWriter.write(analyzedCompressionVideo.get(z));
-
-		videoWriter.release();
-		analyzedCompressionVideo.clear();
+		try {
+			LoopLatency.writeCSV(savePath + "\\", name);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} // end try-catch
 		
-		// Save Compression Video:
-		videoWriter.open(savePath + "\\Relaxation Video Output of Run " + runCounter + ".avi", VideoWriter.fourcc('M','S','V','C'), 25.4, currentFrame.size());
-
-		if (!analyzedRelaxationVideo.isEmpty())
-			for (int z = 0; z < analyzedRelaxationVideo.size(); z++)
-				videoWriter.write(analyzedRelaxationVideo.get(z));
-
-		videoWriter.release();
-		analyzedRelaxationVideo.clear();
+		LoopLatency.reset();
+		
+	} // end saveLatency
+	
+	/**
+	 * Opens the streaming recorder and the experiment log for the current run. The output directory is created now rather than
+	 * at save time so the videos and the log can be written while the run is in progress.
+	 */
+	private void openRecorder() {
+		
+		openJournal();
+		
+		if (multiFlag)
+			runCounter = journal.nextRun();
+		
+		String suffix = multiFlag ? " of Run " + runCounter : "";
+		measurements.setRun(runCounter);
 		
-		if (runCounter == maxNumberOfRuns) {
+		recorder = new StreamingVideoRecorder(journal.stage("Complete Video Output" + suffix),
+				journal.stage("Compression Video Output" + suffix + ".avi").getPath(),
+				journal.stage("Relaxation Video Output" + suffix + ".avi").getPath(),
+				videoCodec, videoFrameRate, segmentDuration, recorderCapacity, recordingPolicy);
+		
+		frameIndex = 0;
+		
+		try {
 			
-			filename = null;
-			runCounter = 0;
+			experimentLog = new ExperimentLog(journal.stage("Experiment Log" + suffix + ".attlog"), startTime);
+			journal.watch(experimentLog);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+		} // end try-catch
+		
+		if (rawCaptureEnabled) {
+			
+			try {
+				rawRecorder = new RawFrameRecorder(journal.stage("Raw Frames" + suffix + ".attraw"), rawCompressionLevel,
+						rawEncoderThreads, recorderCapacity, recordingPolicy);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try-catch
 			
 		} // end if
 		
-	} // end saveData
+	} // end openRecorder
+	
+	/**
+	 * Makes sure there is a journal for the current session's directory, naming the session first if it has no directory yet.
+	 */
+	private void openJournal() {
+		
+		if (filename == null) {
+			
+			filename = LocalDateTime.now().toString();
+			filename = filename.replaceAll(":", "_");
+			
+		} // end if
+		
+		File directory = new File(getSavePath());
+		
+		// One journal per session directory. The previous one still finishes the runs it was given.
+		if (journal == null || !journal.getDirectory().equals(directory)) {
+			
+			if (journal != null)
+				journal.close();
+			
+			journal = new RunJournal(directory);
+			
+		} // end if
+		
+	} // end openJournal
+	
+	/**
+	 * Ends the run being recorded, if there is one, without going on to another. Its files are finished through the journal under
+	 * the names a save would have given them, so none is left staged and the next run starts with nothing left over.
+	 */
+	private void closeRecorder() {
+		
+		if (recorder == null && rawRecorder == null && experimentLog == null)
+			return;
+		
+		if (multiFlag)
+			finishRun(getSavePath(), "Compression Data Run " + runCounter, "Relaxation Data " + runCounter);
+		else
+			finishRun(getSavePath(), "Compression Data", "Relaxation Data");
+		
+	} // end closeRecorder
+	
+	/**
+	 * Flushes and closes the experiment log, if one is open.
+	 */
+	private void closeLog() {
+		
+		if (experimentLog != null) {
+			
+			try {
+				experimentLog.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try-catch
+			
+			experimentLog = null;
+			
+		} // end if
+		
+	} // end closeLog
+	
+	/**
+	 * @return The directory the current run is saved to.
+	 */
+	private String getSavePath() {
+		
+		if (path != null)
+			return path + "\\" + filename;
+		else
+			return defaultPath + "\\" + filename;
+		
+	} // end getSavePath
+	
+	/**
+	 * Turns the video recording and experiment log of analyzed frames on or off. Offline re-analysis has no use for another copy
+	 * of the video. Without a log the CSV files are written from the measurement table.
+	 * 
+	 * @param enabled - False to analyze without writing any video or log.
+	 */
+	public void setRecordingEnabled(boolean enabled) {
+		
+		recordingEnabled = enabled;
+		
+		if (!enabled)
+			closeRecorder();
+		
+	} // end setRecordingEnabled
+	
+	/**
+	 * @return The capture timestamp the analyzer measures measurement times from, in System.nanoTime() units.
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	} // end getStartNanos
+	
+	/**
+	 * Sets what the video recorder does when the encoder cannot keep up with the analysis. Takes effect at the next run.
+	 * 
+	 * @param policy - BLOCK to keep every frame, DROP_NEWEST or DROP_OLDEST to never stall the analysis.
+	 */
+	public void setRecordingPolicy(StreamingVideoRecorder.OverflowPolicy policy) {
+		recordingPolicy = policy;
+	} // end setRecordingPolicy
+	
+	/**
+	 * Sets the frame rate written into the recorded videos. It should match the camera's, or the videos play at the wrong speed.
+	 * Takes effect at the next run.
+	 * 
+	 * @param fps - Frames per second.
+	 */
+	public void setVideoFrameRate(double fps) {
+		videoFrameRate = fps;
+	} // end setVideoFrameRate
+	
+	/**
+	 * Sets the codec of the recorded videos. Takes effect at the next run.
+	 * 
+	 * @param fourcc - Codec, as given by VideoWriter.fourcc(). Intra-frame codecs such as MSVC keep seeking in the archive exact.
+	 */
+	public void setVideoCodec(int fourcc) {
+		videoCodec = fourcc;
+	} // end setVideoCodec
+	
+	/**
+	 * Sets the length of the segments the complete video is archived in. Takes effect at the next run.
+	 * 
+	 * @param seconds - Seconds of video per segment.
+	 */
+	public void setSegmentDuration(double seconds) {
+		segmentDuration = seconds;
+	} // end setSegmentDuration
+	
+	/**
+	 * Turns lossless capture of the frames as they are analyzed - without the annotations - on or off, for re-analysis with
+	 * OfflineAnalysisEngine. The frames are stored as PNGs in "Raw Frames.attraw" beside the videos. Takes effect at the next run.
+	 * 
+	 * @param enabled - True to store the raw frames.
+	 */
+	public void setRawCapture(boolean enabled) {
+		rawCaptureEnabled = enabled;
+	} // end setRawCapture
+	
+	/**
+	 * Sets how hard the raw frames are compressed, trading CPU for disk bandwidth. Takes effect at the next run.
+	 * 
+	 * @param level - PNG compression level, from 0 (fastest, largest) to 9 (slowest, smallest).
+	 */
+	public void setRawCompressionLevel(int level) {
+		rawCompressionLevel = level;
+	} // end setRawCompressionLevel
+	
+	/**
+	 * Sets how many raw frames are compressed at once. Use enough threads that the camera's frame rate is kept up at the chosen
+	 * compression level. Takes effect at the next run.
+	 * 
+	 * @param threads - Number of encoder threads.
+	 */
+	public void setRawEncoderThreads(int threads) {
+		rawEncoderThreads = threads;
+	} // end setRawEncoderThreads
 	
 	/**
 	 * Method to extract the camera from this class. Use the VideoCapture object contained within
@@ -381,41 +771,560 @@ public class DropletAnalyzer {
 	 * * Minimum Threshold Value: 50
 	 * * Maximum Value: 255
 	 * 
+	 * Background Suppression (only during locateDroplet(), when enabled - see setBackgroundSubtraction()):
+	 * * Edges where the frame matches the learned background are zeroed
+	 * 
 	 * @param input OpenCV Matrix input frame to be prepped for futher analysis.
-	 * @return A clone of the original input frame with the above operations applied.
+	 * @return A copy of the input frame with the above operations applied. The copy is a view onto a buffer owned by the analyzer: it is overwritten
+	 * by the next call, and the caller should release() the view once done with it.
 	 */
 	public Mat prepFrame(Mat input) {
 		
-		Mat clone = new Mat(input.size(), CvType.CV_8UC1);
+		Mat clone = scratchView(edgeBuffer, input.rows(), input.cols(), depth);
 		//low pass here!
-		Imgproc.GaussianBlur(input, clone, new Size(3, 3), 0); // Apply Guassian blur, reduces noise.
+		Imgproc.GaussianBlur(input, clone, blurKernel, 0); // Apply Guassian blur, reduces noise.
 		Imgproc.Laplacian(clone, clone, depth, 5, scale, delta, 0); // Apply Laplacian edge-finding algorithm
 		Imgproc.threshold(clone, clone, 25, 255, Imgproc.THRESH_TOZERO); // Apply Binary threshold.
 		
+		if (searchBackground != null)
+			suppressBackground(input, clone);
+		
 		return clone;
 		
 	} // end prepFrame
 	
 	/**
-	 * Finds the droplet in the binary image and places a bounding rectangle around it. The droplet contour is assumed to be the largest contour in the binary image.
-	 * @param input An OpenCV Matrix that has previously been modified with a call to prepFrame()
-	 * @return The information pertaining to the bounding rectangle around the droplet's profile.
+	 * Returns a view of the top-left corner of a scratch buffer, growing the buffer only when it is too small. The tracking window changes
+	 * size from frame to frame, so sizing the buffer exactly would reallocate it on nearly every frame.
 	 */
-	private Rect findDropletProfile(Mat input) {
-		List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-		Mat clone = input.clone();
+	private Mat scratchView(Mat buffer, int rows, int cols, int type) {
 		
-		Imgproc.findContours(clone, contours, new Mat(), Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+		if (buffer.rows() < rows || buffer.cols() < cols || buffer.type() != type)
+			buffer.create(Math.max(rows, buffer.rows()), Math.max(cols, buffer.cols()), type);
 		
-		if (contours.size() != 0) {
-			
-			/*
-			 * TODO: Optimize for loop. Right now seach is linear - needs to be faster.
-			 */
-			double largestArea = 0;
-			int index = 0;
-			for (int z = 0; z < contours.size(); z++) {
-
+		return buffer.submat(0, rows, 0, cols);
+		
+	} // end scratchView
+	
+	/**
+	 * Finds the droplet in a grayscale frame. In tracking mode only a padded window around the last known position is searched;
+	 * the full frame is only searched to acquire the droplet in the first place, or again after it was lost.
+	 * 
+	 * @param input The grayscale frame.
+	 * @return The bounding rectangle around the droplet in full-frame coordinates, or null if it was not found.
+	 */
+	Rect locateDroplet(Mat input) {
+		
+		frameRows = input.rows();
+		Rect found = searchDroplet(input);
+		
+		if (backgroundSubtraction)
+			learnBackground(input, found, searchedFullFrame);
+		
+		return found;
+		
+	} // end locateDroplet
+	
+	/**
+	 * Body of locateDroplet().
+	 */
+	private Rect searchDroplet(Mat input) {
+		
+		Rect searchWindow = trackingWindow;
+		searchedFullFrame = false;
+		
+		if (trackingMode && searchWindow != null) {
+			
+			Mat window = input.submat(searchWindow); // No copy - a view onto the frame.
+			Rect found = findDropletProfile(window);
+			window.release();
+			
+			if (found != null && !touchesWindowEdge(found, searchWindow, input)) {
+				
+				found.x += searchWindow.x;
+				found.y += searchWindow.y;
+				trackingWindow = padRectangle(found, input, trackingRectangle);
+				
+				return found;
+				
+			} // end if
+			
+			// Lost the droplet, or it grew out of the window. Fall back to a full-frame search.
+			
+		} // end if
+		
+		Rect found;
+		searchedFullFrame = true;
+		
+		if (pyramidLevel > 0)
+			found = findDropletInPyramid(input, pyramidLevel);
+		else {
+			
+			useBackground(input, backgroundImage, 1);
+			
+			try {
+				found = findDropletProfile(input);
+			} finally {
+				searchBackground = null;
+			} // end try-finally
+			
+		} // end if-else
+		
+		trackingWindow = (trackingMode && found != null) ? padRectangle(found, input, trackingRectangle) : null;
+		
+		return found;
+		
+	} // end searchDroplet
+	
+	/**
+	 * Finds the droplet on a downsampled copy of the frame, then searches again at full resolution, but only inside a padded window
+	 * around what was found. The full-resolution pass is what makes the result as accurate as a full-frame search - the bounding
+	 * rectangle, and everything measured from it, is in full-frame pixels whatever the level, so the calibration holds.
+	 * 
+	 * @param input The grayscale frame.
+	 * @param level The pyramid level: the search runs on a frame 2^level times smaller on each side.
+	 * @return The bounding rectangle around the droplet in full-frame coordinates, or null if it was not found.
+	 */
+	private Rect findDropletInPyramid(Mat input, int level) {
+		
+		int factor = 1 << level;
+		pyramidSize.width = Math.max(1, input.cols() / factor);
+		pyramidSize.height = Math.max(1, input.rows() / factor);
+		
+		Imgproc.resize(input, pyramidFrame, pyramidSize, 0, 0, Imgproc.INTER_AREA);
+		
+		if (useBackground(input, pyramidBackground, factor))
+			Imgproc.resize(backgroundImage, pyramidBackground, pyramidSize, 0, 0, Imgproc.INTER_AREA);
+		
+		Rect coarse;
+		
+		try {
+			coarse = findDropletProfile(pyramidFrame);
+		} finally {
+			searchBackground = null;
+		} // end try-finally
+		
+		if (coarse == null)
+			return null;
+		
+		// Back to full-frame pixels. The scale is measured rather than assumed, as the division above rounds down.
+		double scaleX = (double) input.cols() / pyramidFrame.cols();
+		double scaleY = (double) input.rows() / pyramidFrame.rows();
+		
+		coarse.x = (int) Math.floor(coarse.x * scaleX);
+		coarse.y = (int) Math.floor(coarse.y * scaleY);
+		coarse.width = (int) Math.ceil(coarse.width * scaleX);
+		coarse.height = (int) Math.ceil(coarse.height * scaleY);
+		
+		padRectangle(coarse, input, refinementRectangle);
+		Mat window = input.submat(refinementRectangle);
+		Rect found = findDropletProfile(window);
+		window.release();
+		
+		if (found == null || touchesWindowEdge(found, refinementRectangle, input))
+			return coarse; // the full-resolution pass lost it - the coarse outline is still the best there is
+		
+		found.x += refinementRectangle.x;
+		found.y += refinementRectangle.y;
+		
+		return found;
+		
+	} // end findDropletInPyramid
+	
+	/**
+	 * Selects the resolution the droplet is searched for at. At level n the full frame is only searched at 1/2^n of its width and
+	 * height, and the droplet is then found again at full resolution in a window around it, so the search costs roughly 1/4^n of
+	 * a full-resolution one plus the window. The measurements keep full resolution. In tracking mode the pyramid is only used
+	 * to (re-)acquire the droplet.
+	 * 
+	 * @param level - 0 to search at full resolution, up to 4.
+	 */
+	public void setPyramidLevel(int level) {
+		pyramidLevel = Math.max(0, Math.min(maximumPyramidLevel, level));
+	} // end setPyramidLevel
+	
+	/**
+	 * @return The pyramid level - see setPyramidLevel().
+	 */
+	public int getPyramidLevel() {
+		return pyramidLevel;
+	} // end getPyramidLevel
+	
+	/**
+	 * Turns background subtraction on or off. When on, the analyzer learns what the static scene - the horn, the reflector, dust
+	 * on the optics - looks like, as a running average of the frames, and edges where the frame matches that background are dropped
+	 * before the contours are searched. The edges of those features then no longer compete with the droplet for the largest
+	 * contour, and findContours has far fewer contours to trace.
+	 * 
+	 * The droplet itself is never learned: a padded window around where it was last found is left out of the average and always
+	 * searched, so a droplet that hangs still is not mistaken for background. Until the droplet has been found, and whenever it is
+	 * lost, the full frame is searched as usual. Only full-frame and pyramid searches are suppressed - the tracking window is all
+	 * droplet neighbourhood anyway - and only the frames of those searches are learned, so tracking does not pay for a model it
+	 * doesn't use; the model is left as it was until the droplet has to be found again. Turning it on starts a new background
+	 * model.
+	 * 
+	 * @param subtraction - True to enable background subtraction.
+	 */
+	public void setBackgroundSubtraction(boolean subtraction) {
+		
+		if (subtraction && !backgroundSubtraction)
+			backgroundReset = true;
+		
+		backgroundSubtraction = subtraction;
+		
+	} // end setBackgroundSubtraction
+	
+	/**
+	 * @return True if background subtraction is on.
+	 */
+	public boolean isBackgroundSubtraction() {
+		return backgroundSubtraction;
+	} // end isBackgroundSubtraction
+	
+	/**
+	 * Sets how quickly the background model follows the scene. At rate r a change to the scene is half learned after about
+	 * 0.7 / r frames, so the default of 0.02 takes a little over a second at 25 fps. Slower rates are steadier against noise;
+	 * faster ones forget a moved horn or a speck of dust sooner.
+	 * 
+	 * @param rate - Weight of each new frame, from 0.001 to 1.
+	 */
+	public void setBackgroundLearningRate(double rate) {
+		backgroundLearningRate = Math.max(0.001, Math.min(1, rate));
+	} // end setBackgroundLearningRate
+	
+	/**
+	 * @return The background learning rate - see setBackgroundLearningRate().
+	 */
+	public double getBackgroundLearningRate() {
+		return backgroundLearningRate;
+	} // end getBackgroundLearningRate
+	
+	/**
+	 * Sets how far a pixel must differ from the background model for edges near it to be kept.
+	 * 
+	 * @param threshold - Difference in gray levels, from 1 to 255.
+	 */
+	public void setForegroundThreshold(double threshold) {
+		foregroundThreshold = Math.max(1, Math.min(255, threshold));
+	} // end setForegroundThreshold
+	
+	/**
+	 * Forgets the background model; the next frame starts a new one. Use after the camera or the setup has been moved.
+	 */
+	public void resetBackground() {
+		backgroundReset = true;
+	} // end resetBackground
+	
+	/**
+	 * Points prepFrame() at the background to suppress for the next search, if there is a model and the droplet's last position is
+	 * known. The window around that position is scaled down by the same factor as the frame being searched.
+	 * 
+	 * @param frame - The full frame.
+	 * @param matching - The background image the search will compare with.
+	 * @param factor - How many times smaller than the full frame the searched frame is on each side.
+	 * @return True if the background will be suppressed.
+	 */
+	private boolean useBackground(Mat frame, Mat matching, int factor) {
+		
+		searchBackground = null;
+		
+		if (!backgroundSubtraction || backgroundReset || !lastDropletFound || backgroundImage.empty()
+				|| backgroundImage.rows() != frame.rows() || backgroundImage.cols() != frame.cols())
+			return false;
+		
+		padRectangle(lastDroplet, frame, foregroundWindow);
+		
+		int left = foregroundWindow.x / factor;
+		int top = foregroundWindow.y / factor;
+		foregroundWindow.width = (foregroundWindow.x + foregroundWindow.width + factor - 1) / factor - left;
+		foregroundWindow.height = (foregroundWindow.y + foregroundWindow.height + factor - 1) / factor - top;
+		foregroundWindow.x = left;
+		foregroundWindow.y = top;
+		
+		searchBackground = matching;
+		
+		return true;
+		
+	} // end useBackground
+	
+	/**
+	 * Drops the edges that lie where the frame matches the background. The difference is dilated first, so the edges along the
+	 * boundary of anything that has changed are kept whole.
+	 * 
+	 * @param input - The frame being searched.
+	 * @param edges - Its edge image, masked in place.
+	 */
+	private void suppressBackground(Mat input, Mat edges) {
+		
+		int rows = input.rows();
+		int cols = input.cols();
+		
+		if (searchBackground.rows() != rows || searchBackground.cols() != cols)
+			return;
+		
+		// The pyramid search rounds the frame size down, so clip the window to what was actually searched.
+		int right = Math.min(cols, foregroundWindow.x + foregroundWindow.width);
+		int bottom = Math.min(rows, foregroundWindow.y + foregroundWindow.height);
+		
+		Mat foreground = scratchView(foregroundBuffer, rows, cols, CvType.CV_8UC1);
+		Core.absdiff(input, searchBackground, foreground);
+		Imgproc.threshold(foreground, foreground, foregroundThreshold, 255, Imgproc.THRESH_BINARY);
+		Imgproc.dilate(foreground, foreground, foregroundKernel);
+		
+		if (right > foregroundWindow.x && bottom > foregroundWindow.y) {
+			
+			Mat window = foreground.submat(foregroundWindow.y, bottom, foregroundWindow.x, right);
+			window.setTo(maskOn);
+			window.release();
+			
+		} // end if
+		
+		Core.bitwise_and(edges, foreground, edges);
+		foreground.release();
+		
+	} // end suppressBackground
+	
+	/**
+	 * Folds the frame into the background model, leaving out a padded window around the droplet. Nothing is learned while the
+	 * droplet is lost, as it could be anywhere in the frame, or from frames only the tracking window was searched in.
+	 * 
+	 * @param input - The full frame.
+	 * @param found - Where the droplet was found in it, or null.
+	 * @param learn - True if the whole frame was searched, so the model is in use and worth updating.
+	 */
+	private void learnBackground(Mat input, Rect found, boolean learn) {
+		
+		lastDropletFound = (found != null);
+		
+		if (found != null) {
+			
+			lastDroplet.x = found.x;
+			lastDroplet.y = found.y;
+			lastDroplet.width = found.width;
+			lastDroplet.height = found.height;
+			
+		} // end if
+		
+		if (backgroundReset || background.empty() || background.rows() != input.rows() || background.cols() != input.cols()) {
+			
+			// Start from the frame as it is. The droplet in it fades out of the model once it moves away.
+			input.convertTo(background, CvType.CV_32F);
+			input.copyTo(backgroundImage);
+			backgroundReset = false;
+			
+			return;
+			
+		} // end if
+		
+		if (found == null || !learn)
+			return;
+		
+		if (learningMask.rows() != input.rows() || learningMask.cols() != input.cols()) {
+			
+			learningMask.create(input.rows(), input.cols(), CvType.CV_8UC1);
+			learningMask.setTo(maskOn);
+			
+		} else {
+			
+			// Only the last exclusion window is off, so put that back rather than filling the whole mask again.
+			Mat previous = learningMask.submat(backgroundExclusion);
+			previous.setTo(maskOn);
+			previous.release();
+			
+		} // end if-else
+		
+		Mat exclusion = learningMask.submat(padRectangle(found, input, backgroundExclusion));
+		exclusion.setTo(maskOff);
+		exclusion.release();
+		
+		Imgproc.accumulateWeighted(input, background, backgroundLearningRate, learningMask);
+		background.convertTo(backgroundImage, CvType.CV_8U);
+		
+	} // end learnBackground
+	
+	/**
+	 * Sets the height of the frames the measurements are taken from, for analyzers that are handed bounding rectangles located
+	 * elsewhere (see measureDroplet()). Analyzers that see the frames pick it up themselves.
+	 * 
+	 * @param rows - Frame height in pixels.
+	 */
+	public void setFrameRows(int rows) {
+		frameRows = rows;
+	} // end setFrameRows
+	
+	/**
+	 * Grows a rectangle on every side by the tracking padding and clips it to the frame.
+	 * 
+	 * @param output - Rectangle that receives the result.
+	 * @return The output rectangle.
+	 */
+	private Rect padRectangle(Rect rectangle, Mat frame, Rect output) {
+		
+		int padX = Math.max(minimumTrackingPadding, (int) (rectangle.width * trackingPadding));
+		int padY = Math.max(minimumTrackingPadding, (int) (rectangle.height * trackingPadding));
+		
+		int left = Math.max(0, rectangle.x - padX);
+		int top = Math.max(0, rectangle.y - padY);
+		int right = Math.min(frame.cols(), rectangle.x + rectangle.width + padX);
+		int bottom = Math.min(frame.rows(), rectangle.y + rectangle.height + padY);
+		
+		output.x = left;
+		output.y = top;
+		output.width = right - left;
+		output.height = bottom - top;
+		
+		return output;
+		
+	} // end padRectangle
+	
+	/**
+	 * Checks whether a contour found inside the tracking window runs into one of the window's edges. Edges that coincide with the edge
+	 * of the frame don't count, since the full-frame search couldn't see any further either.
+	 * 
+	 * @param found - Bounding rectangle in window coordinates.
+	 */
+	private boolean touchesWindowEdge(Rect found, Rect window, Mat frame) {
+		
+		return (found.x <= 0 && window.x > 0)
+				|| (found.y <= 0 && window.y > 0)
+				|| (found.x + found.width >= window.width && window.x + window.width < frame.cols())
+				|| (found.y + found.height >= window.height && window.y + window.height < frame.rows());
+		
+	} // end touchesWindowEdge
+	
+	/**
+	 * Selects whether this analyzer's stages (grayscale conversion, prepFrame, contour search, PID compute) are recorded into the
+	 * LoopLatency histograms, and whether it resets and saves them with its runs. The histograms describe the live loop and are
+	 * shared by the whole program, so only the analyzer of the live camera should feed them; it is on for analyzers constructed
+	 * with a video source and off for the rest (offline re-analysis, benchmarks, checks).
+	 * 
+	 * @param recording - True to record into LoopLatency.
+	 */
+	public void setLatencyRecording(boolean recording) {
+		latencyRecording = recording;
+	} // end setLatencyRecording
+	
+	/**
+	 * @return True if this analyzer records into LoopLatency.
+	 */
+	public boolean isLatencyRecording() {
+		return latencyRecording;
+	} // end isLatencyRecording
+	
+	/**
+	 * Records a stage of the loop into LoopLatency if this analyzer feeds it.
+	 * 
+	 * @return The end of the stage, from System.nanoTime().
+	 */
+	private long recordLatency(int stage, long start) {
+		return latencyRecording ? LoopLatency.recordSince(stage, start) : System.nanoTime();
+	} // end recordLatency
+	
+	/**
+	 * Turns region-of-interest tracking on or off. When on, the full frame is only searched until the droplet is found; after that each
+	 * frame is processed only inside a padded window around the droplet's last position, which is far cheaper at 1080p.
+	 * 
+	 * @param tracking - True to enable tracking mode.
+	 */
+	public void setTrackingMode(boolean tracking) {
+		
+		trackingMode = tracking;
+		
+		if (!tracking)
+			trackingWindow = null;
+		
+	} // end setTrackingMode
+	
+	/**
+	 * @return True if tracking mode is on.
+	 */
+	public boolean isTrackingMode() {
+		return trackingMode;
+	} // end isTrackingMode
+	
+	/**
+	 * Selects how the droplet is measured once it has been found. Takes effect from the next frame.
+	 * 
+	 * @param mode - BOUNDING_BOX or ELLIPSE_FIT.
+	 */
+	public void setMeasurementMode(MeasurementMode mode) {
+		measurementMode = mode;
+	} // end setMeasurementMode
+	
+	/**
+	 * @return The current measurement mode.
+	 */
+	public MeasurementMode getMeasurementMode() {
+		return measurementMode;
+	} // end getMeasurementMode
+	
+	/**
+	 * Finds the droplet in the grayscale image and places a bounding rectangle around it. The droplet contour is assumed to be the largest contour in the binary image
+	 * produced by prepFrame().
+	 * @param input An OpenCV Matrix holding the grayscale frame (or the part of it to search).
+	 * @return The information pertaining to the bounding rectangle around the droplet's profile.
+	 */
+	Rect findDropletProfile(Mat input) {
+		
+		long start = System.nanoTime();
+		Mat edges = prepFrame(input);
+		recordLatency(LoopLatency.PREP, start);
+		
+		try {
+			return findLargestContour(edges);
+		} finally {
+			edges.release();
+		} // end try-finally
+		
+	} // end findDropletProfile
+	
+	/**
+	 * The contour search half of findDropletProfile(): finds the largest contour in an edge image produced by prepFrame().
+	 * @param edges The edge image. Since OpenCV 3.2 findContours works on a bordered copy, so the image is left as it was.
+	 * @return The bounding rectangle around the largest contour, or null if there is none.
+	 */
+	Rect findLargestContour(Mat edges) {
+		
+		long start = System.nanoTime();
+		Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+		
+		try {
+			return largestContourBounds();
+		} finally {
+			
+			releaseContours();
+			recordLatency(LoopLatency.CONTOURS, start);
+			
+		} // end try-finally
+		
+	} // end findLargestContour
+	
+	/**
+	 * Releases the native memory of the contours found in the last frame right away instead of waiting for the garbage collector.
+	 */
+	private void releaseContours() {
+		
+		for (int z = 0; z < contours.size(); z++)
+			contours.get(z).release();
+		
+		contours.clear();
+		
+	} // end releaseContours
+	
+	/**
+	 * @return The bounding rectangle of the largest contour in the contour list, or null if the list is empty.
+	 */
+	private Rect largestContourBounds() {
+		
+		if (contours.size() != 0) {
+			
+			/*
+			 * TODO: Optimize for loop. Right now seach is linear - needs to be faster.
+			 */
+			double largestArea = 0;
+			int index = 0;
+			for (int z = 0; z < contours.size(); z++) {
+
 				double area = Imgproc.contourArea(contours.get(z));
 				if (area > largestArea) {
 
@@ -432,23 +1341,78 @@ public class DropletAnalyzer {
 			return null;
 		} // end if-else
 		
-	} // end findDropletProfile
+	} // end largestContourBounds
+	
+	/**
+	 * Records the measurement of a droplet that was located elsewhere - the second half of analyzeFrame(), for callers that
+	 * split locating the droplet from measuring it (see OfflineAnalysisEngine).
+	 * 
+	 * @param rectangle The bounding rectangle returned by locateDroplet(), or null if the droplet was not found.
+	 * @param timestamp Capture time of the frame, in System.nanoTime() units.
+	 */
+	void measureDroplet(Rect rectangle, long timestamp) {
+		
+		frameTimestamp = timestamp;
+		boundingRectangle = rectangle;
+		
+		if (rectangle != null)
+			measureDropletAxes(null, rectangle);
+		
+	} // end measureDroplet
 	
 	/**
 	 * Using the bounding rectangle, the semimajor and semiminor axis are calculated. Additionally, grab the centroid x and y coordinates.
 	 * 
 	 * @param boundingRectangle The bounding rectangle around the droplet profile.
 	 */
-	private void measureDropletAxes(Rect boundingRectangle) {
+	void measureDropletAxes(Rect boundingRectangle) {
+		measureDropletAxes(null, boundingRectangle);
+	} // end measureDropletAxes
+	
+	/**
+	 * Measures the droplet the way the measurement mode says. In ELLIPSE_FIT mode an ellipse is fitted to the droplet's edge in the
+	 * grayscale frame; if there is no frame or the fit fails, the bounding rectangle is used for this frame instead.
+	 * 
+	 * @param gray The grayscale frame the droplet was found in, or null to measure from the bounding rectangle alone.
+	 * @param boundingRectangle The bounding rectangle around the droplet profile.
+	 */
+	void measureDropletAxes(Mat gray, Rect boundingRectangle) {
 		
-		double a = boundingRectangle.height / 2;
-		double b = boundingRectangle.width / 2;
+		if (measurementMode == MeasurementMode.ELLIPSE_FIT && gray != null && ellipseFitter.fit(gray, boundingRectangle)) {
+			
+			ellipseFitted = true;
+			recordMeasurement(ellipseFitter.getSemiAxisA(), ellipseFitter.getSemiAxisB(), ellipseFitter.getCenterX(),
+					ellipseFitter.getCenterY(), ellipseFitter.getOrientation());
+			
+		} else {
+			
+			ellipseFitted = false;
+			recordMeasurement(boundingRectangle.height / 2.0, boundingRectangle.width / 2.0, boundingRectangle.x + boundingRectangle.width / 2.0,
+					boundingRectangle.y + boundingRectangle.height / 2.0, 0);
+			
+		} // end if-else
 		
+	} // end measureDropletAxes
+	
+	/**
+	 * Records one measurement of the droplet.
+	 * 
+	 * @param a The semi-axis closer to vertical, in pixels.
+	 * @param b The semi-axis closer to horizontal, in pixels.
+	 * @param centerX The x coordinate of the droplet's center in the frame, in pixels.
+	 * @param centerY The y coordinate of the droplet's center in the frame, in pixels (+Y downwards).
+	 * @param orientation The angle of the b axis from horizontal, in degrees.
+	 */
+	private void recordMeasurement(double a, double b, double centerX, double centerY, double orientation) {
+		
+		axisA = a;
+		axisB = b;
+		this.orientation = orientation;
 		baRatio = b/a;
 		
 		
-		double dropletLocation = ((1080 - (boundingRectangle.y + a))/ calibrationConstant); // + heightAboveHorn; // Need to subtract centroid location since the coordinate system in the image is with +Y downwards. I know, weird.
-		double locRelFrame = 1080 - (boundingRectangle.y + a); //dropletLocation - (nodeLocation + heightAboveHorn);
+		double dropletLocation = ((frameRows - centerY)/ calibrationConstant); // + heightAboveHorn; // Need to subtract centroid location since the coordinate system in the image is with +Y downwards. I know, weird.
+		double locRelFrame = frameRows - centerY; //dropletLocation - (nodeLocation + heightAboveHorn);
 		double locRelStart;
 		
 		if (!startLocationMeasured) {
@@ -460,67 +1424,94 @@ public class DropletAnalyzer {
 		} else
 			locRelStart = dropletLocation - startLocation;
 		
-		double[] output = {a, b, baRatio, dropletLocation, locRelFrame, locRelStart}; // Data is stored as [a, b, a/b, height, LocRelFrame, locRelStart]
-		
-		x = 1080 - (boundingRectangle.x + b);
+		x = xReference - centerX;
 		y = locRelFrame;
 		
 		if (debugMode) {
 			
-			System.out.println("Axis A: " + output[0] + " microns");
-			System.out.println("Axis B: " + output[1] + " microns");
+			System.out.println("Axis A: " + a + " microns");
+			System.out.println("Axis B: " + b + " microns");
 			System.out.println("COG height above horn: " + dropletLocation + " microns");
 			System.out.println("COG Height relative to Edge of Frame: " + locRelFrame + " pixels");
 		
 		} // end if
 		
-		if (isCompressing)
-			compressionData.add(output);
-		else
-			relaxationData.add(output);
+		measurements.append(a, b, baRatio, dropletLocation, locRelFrame, locRelStart, (frameTimestamp - startNanos) / 1e9,
+				amplitude, frequency, isCompressing ? MeasurementTable.PHASE_COMPRESSION : MeasurementTable.PHASE_RELAXATION);
 		
-	} // end measureDropletAxes
+	} // end recordMeasurement
 	
 	/**
 	 * Draws the bounding rectangle around the droplet profile. This is mostly for sanity-checking the analysis algorithm.
 	 * @param boundingRectangle - The box around the droplet's profile
-	 * @param input - The source image. A clone of this frame is made; all modifications are done to the clone. 
-	 * @return A clone of the input frame with the bounding box around the dropplet.
+	 * @param input - The source image. It is copied into the analyzer's annotation buffer; all modifications are done to the copy. 
+	 * @return The annotation buffer, holding the input frame with the bounding box around the dropplet.
 	 */
-	private Mat drawRectangle(Rect boundingRectangle, Mat input) {
+	Mat drawRectangle(Rect boundingRectangle, Mat input) {
 		
-		Mat clone = input.clone();
+		input.copyTo(annotatedFrame);
 		
-		// Convert image to RGB colorspace.
-		clone.convertTo(clone, Imgproc.COLOR_GRAY2BGR);
-		Imgproc.rectangle(clone, new Point(boundingRectangle.x, boundingRectangle.y), new Point(boundingRectangle.x + boundingRectangle.width, boundingRectangle.y + boundingRectangle.height), new Scalar(0, 255, 0), 1);
+		boxTopLeft.x = boundingRectangle.x;
+		boxTopLeft.y = boundingRectangle.y;
+		boxBottomRight.x = boundingRectangle.x + boundingRectangle.width;
+		boxBottomRight.y = boundingRectangle.y + boundingRectangle.height;
+		Imgproc.rectangle(annotatedFrame, boxTopLeft, boxBottomRight, boxColor, 1);
 		
-		return clone;
+		if (ellipseFitted)
+			Imgproc.ellipse(annotatedFrame, ellipseFitter.getEllipse(), boxColor, 1);
+		
+		return annotatedFrame;
 		
 	} // end drawRectangle
 	
+	/**
+	 * Closes the video recorder, waits for the runs already saved to be finished on disk and frees the native memory held by the
+	 * analyzer's scratch buffers. The analyzer must not be used afterwards.
+	 */
+	public void release() {
+		
+		closeRecorder();
+		
+		if (journal != null) {
+			
+			journal.close();
+			
+			try {
+				journal.awaitFinished(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} // end try-catch
+			
+		} // end if
+		
+		releaseContours();
+		ellipseFitter.release();
+		grayFrame.release();
+		edgeBuffer.release();
+		annotatedFrame.release();
+		pyramidFrame.release();
+		background.release();
+		backgroundImage.release();
+		pyramidBackground.release();
+		learningMask.release();
+		foregroundBuffer.release();
+		foregroundKernel.release();
+		hierarchy.release();
+		
+		if (currentFrame != null)
+			currentFrame.release();
+		
+	} // end release
+	
 	/**
 	 * Writes the data generated by measureDropletAxes to a CSV File for analysis in another software package. This particular method is for external testing purposes only
 	 * as the directory is set to D:\Google Drive\Lutchen Fellowship 2015\Data\OpenCV Calibration.
 	 */
-	public void generateCSV(ArrayList<double[]> data) {
+	public void generateCSV(MeasurementTable.View data) {
 		
 		try {
 			
-			CSVWriter csvOutput = new CSVWriter(new FileWriter("D:\\Google Drive\\Lutchen Fellowship 2015\\Data\\OpenCV Calibration\\Data.csv"), '\t', ',');
-			String[] entry = "A (microns)#B (microns)#B/A#Height Above Horn (microns)#Height Relative to Edge of Frame (pixels)".split("#");
-			csvOutput.writeNext(entry);
-			
-			for (int z = 0; z < data.size(); z++) {
-				
-				for (int s = 0; s < 5; s++) 
-					entry[s] = Double.toString(data.get(z)[s]);
-				
-				csvOutput.writeNext(entry);
-				
-			} // end for
-			
-			csvOutput.close();
+			MeasurementTable.writeCSV(new File("D:\\Google Drive\\Lutchen Fellowship 2015\\Data\\OpenCV Calibration\\Data.csv"), data);
 			System.out.println("CSV File has been generated.");
 			
 		} catch (IOException e) {
@@ -534,27 +1525,14 @@ public class DropletAnalyzer {
 	 * Writes the data generated by measureDropletAxes to a CSV File for analysis in another software package.
 	 * 
 	 * @param path - Directory location in which the CSV file is generated.
+	 * @param data - The rows to write.
+	 * @param modifier - The name of the file, without extension.
 	 */
-	private void generateCSV(String path, ArrayList<double[]> data, String modifier) {
+	private void generateCSV(String path, MeasurementTable.View data, String modifier) {
 		
 		try {
 			
-			File csvFile = new File(path + "\\" + modifier + ".csv");
-			csvFile.createNewFile();
-			CSVWriter csvOutput = new CSVWriter(new FileWriter(csvFile.getAbsolutePath()), '\t', ',');
-			String[] entry = "A (microns)#B (microns)#B/A#Height Above Horn (microns)#Height Relative to Edge of Frame (pixels)#Height Relative to Starting Position".split("#");
-			csvOutput.writeNext(entry);
-			
-			for (int z = 0; z < data.size(); z++) {
-				
-				for (int s = 0; s < 5; s++) 
-					entry[s] = Double.toString(data.get(z)[s]);
-				
-				csvOutput.writeNext(entry);
-				
-			} // end for
-			
-			csvOutput.close();
+			MeasurementTable.writeCSV(new File(path + "\\" + modifier + ".csv"), data);
 			System.out.println("CSV File has been generated.");
 			
 		} catch (IOException e) {
@@ -563,18 +1541,30 @@ public class DropletAnalyzer {
 		} // end try-catch
 		
 		endTime = System.currentTimeMillis();
-		data.clear();
-		startLocationMeasured = false;
 		System.out.println("Total execution time: " + (endTime - startTime) + " milliseconds.");
 		
 	} // end generateCSV
 	
+	/**
+	 * Empties the measurement table once its data has been saved and resets the starting position for the next run.
+	 */
+	private void clearMeasurements() {
+		
+		measurements.clear();
+		startLocationMeasured = false;
+		
+	} // end clearMeasurements
+	
 	/**
 	 * Starts the system timer to time how long the total analysis takes.
 	 */
 	public void beginTimer() {
 		
 		startTime = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		
+		if (latencyRecording)
+			LoopLatency.reset();
 		
 	} // end beginTimer
 	
@@ -592,6 +1582,28 @@ public class DropletAnalyzer {
 		
 	} // end checkSweepingStatus
 	
+	/**
+	 * Hand-off function for the function generator state, stored with every measurement.
+	 * 
+	 * @param amplitude - The function generator's amplitude, in Volts.
+	 * @param frequency - The function generator's frequency, in Hz.
+	 */
+	public void setInstrumentState(double amplitude, double frequency) {
+		
+		this.amplitude = amplitude;
+		this.frequency = frequency;
+		
+	} // end setInstrumentState
+	
+	/**
+	 * Gets the table holding every measurement taken since the last save. This is the data written to the CSV files.
+	 * 
+	 * @return The measurement table.
+	 */
+	public MeasurementTable getMeasurements() {
+		return measurements;
+	} // end getMeasurements
+	
 	/**
 	 * Gets the centroid location on the x axis.
 	 * 
@@ -619,13 +1631,47 @@ public class DropletAnalyzer {
 		return baRatio;
 	} // end getAspectRatio
 	
+	/**
+	 * Gets the droplet's semi-axis closer to vertical.
+	 * 
+	 * @return The a axis, in pixels.
+	 */
+	public double getSemiAxisA() {
+		return axisA;
+	} // end getSemiAxisA
 	
 	/**
-	 * Sets the maximum number of runs for a multi-run analysis.
+	 * Gets the droplet's semi-axis closer to horizontal.
+	 * 
+	 * @return The b axis, in pixels.
+	 */
+	public double getSemiAxisB() {
+		return axisB;
+	} // end getSemiAxisB
+	
+	/**
+	 * Gets the droplet's orientation. Always 0 in BOUNDING_BOX mode.
+	 * 
+	 * @return The angle of the b axis from horizontal, in degrees, clockwise on screen.
+	 */
+	public double getOrientation() {
+		return orientation;
+	} // end getOrientation
+	
+	
+	/**
+	 * Sets the maximum number of runs for a multi-run analysis and starts a new session, so runs left over from a session that
+	 * was stopped early don't count towards it and its files go to a new directory.
 	 * @param runs - The number of data runs desired.
 	 */
 	public void setMaxRuns(int runs) {
+		
 		maxNumberOfRuns = runs;
+		savedRuns = 0;
+		runCounter = 0;
+		filename = null;
+		multiFlag = true;
+		
 	} // end setMaxRuns
 	
 } // end DropletAnalyzer
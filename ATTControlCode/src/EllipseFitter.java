@@ -0,0 +1,368 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Measures the droplet by fitting an ellipse to its edge located to a fraction of a pixel, instead of taking half the sides of
+ * its bounding rectangle.
+ *
+ * Starting from a rough outline (the bounding rectangle of the droplet contour), rays are cast from the center every few degrees.
+ * Along each ray the grayscale profile is sampled in a narrow band around the expected edge, and the edge is put where the
+ * intensity changes fastest, with a parabola through the strongest gradient and its neighbours for the sub-pixel offset. An
+ * ellipse is least-squares fitted to those points with Imgproc.fitEllipse, and the rays are cast once more from the fitted
+ * ellipse with a narrower band. Only the region around the droplet is read, so the cost does not depend on the frame size.
+ *
+ * The results are in the coordinates of the image handed to fit(). The "a" axis is the one closer to vertical (the axis of the
+ * sound field), "b" the one closer to horizontal, matching the bounding-rectangle measurement.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class EllipseFitter {
+
+	/*
+	 * Local Class Variables
+	 */
+	private final int rayCount = 180; // rays cast per pass, every 2 degrees
+	private final double searchBand = 0.15; // fraction of the radius searched on each side of the rough outline
+	private final double minimumSearchBand = 4; // pixels
+	private final double refinementBand = 2; // pixels searched on each side of the first fit
+	private final double minimumEdgeStrength = 6; // gray levels per pixel - weaker gradients are taken as no edge
+	private final double minimumValidRays = 0.5; // fraction of the rays that must find an edge for the fit to count
+
+	private final Mat region = new Mat(); // smoothed copy of the pixels around the droplet
+	private final MatOfPoint2f edgePoints = new MatOfPoint2f();
+	private final Rect regionRectangle = new Rect();
+	private final Size blurKernel = new Size(3, 3);
+	private final double[] cosines = new double[rayCount];
+	private final double[] sines = new double[rayCount];
+	private final float[] points = new float[2 * rayCount];
+	private byte[] pixels = new byte[0];
+	private int stride;
+
+	private RotatedRect ellipse;
+	private double centerX;
+	private double centerY;
+	private double semiAxisA;
+	private double semiAxisB;
+	private double orientation;
+	private int edgeCount;
+
+	/**
+	 * Constructor
+	 */
+	public EllipseFitter() {
+
+		for (int z = 0; z < rayCount; z++) {
+
+			cosines[z] = Math.cos(2 * Math.PI * z / rayCount);
+			sines[z] = Math.sin(2 * Math.PI * z / rayCount);
+
+		} // end for
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Fits an ellipse to the droplet's edge.
+	 *
+	 * @param gray - The grayscale image the droplet was found in.
+	 * @param outline - Rough bounding rectangle of the droplet in the image, e.g. from DropletAnalyzer.locateDroplet().
+	 * @return True if the fit succeeded. If not, the results of the last successful fit are kept.
+	 */
+	public boolean fit(Mat gray, Rect outline) {
+
+		double radiusX = outline.width / 2.0;
+		double radiusY = outline.height / 2.0;
+
+		if (radiusX < 2 || radiusY < 2)
+			return false;
+
+		double band = Math.max(minimumSearchBand, searchBand * Math.max(radiusX, radiusY));
+		loadRegion(gray, outline, (int) Math.ceil(band) + 2);
+
+		// First pass from the rough outline, second from the first fit.
+		RotatedRect estimate = castRays(outline.x + radiusX - regionRectangle.x, outline.y + radiusY - regionRectangle.y, radiusX, radiusY, 0, band);
+
+		if (estimate == null)
+			return false;
+
+		double angle = Math.toRadians(estimate.angle);
+		estimate = castRays(estimate.center.x, estimate.center.y, estimate.size.width / 2, estimate.size.height / 2, angle, refinementBand);
+
+		if (estimate == null)
+			return false;
+
+		estimate.center.x += regionRectangle.x;
+		estimate.center.y += regionRectangle.y;
+		setResults(estimate);
+
+		return true;
+
+	} // end fit
+
+	/**
+	 * Copies a smoothed version of the pixels around the outline, padded by margin on every side and clipped to the image, into the pixel array.
+	 */
+	private void loadRegion(Mat gray, Rect outline, int margin) {
+
+		int left = Math.max(0, outline.x - margin);
+		int top = Math.max(0, outline.y - margin);
+		int right = Math.min(gray.cols(), outline.x + outline.width + margin);
+		int bottom = Math.min(gray.rows(), outline.y + outline.height + margin);
+
+		regionRectangle.x = left;
+		regionRectangle.y = top;
+		regionRectangle.width = right - left;
+		regionRectangle.height = bottom - top;
+
+		Mat view = gray.submat(regionRectangle);
+		Imgproc.GaussianBlur(view, region, blurKernel, 0);
+		view.release();
+
+		int length = regionRectangle.width * regionRectangle.height;
+
+		if (pixels.length < length)
+			pixels = new byte[length];
+
+		region.get(0, 0, pixels);
+		stride = regionRectangle.width;
+
+	} // end loadRegion
+
+	/**
+	 * Locates the edge along every ray around an estimated ellipse and fits a new ellipse to the edge points.
+	 *
+	 * @param centerX - Center of the estimate, in region coordinates.
+	 * @param centerY - Center of the estimate, in region coordinates.
+	 * @param radiusU - Semi-axis of the estimate along its rotated x axis.
+	 * @param radiusV - Semi-axis of the estimate along its rotated y axis.
+	 * @param angle - Rotation of the estimate, in radians.
+	 * @param band - Distance searched on either side of the estimate, in pixels.
+	 * @return The fitted ellipse in region coordinates, or null if too few rays found an edge.
+	 */
+	private RotatedRect castRays(double centerX, double centerY, double radiusU, double radiusV, double angle, double band) {
+
+		double angleCos = Math.cos(angle);
+		double angleSin = Math.sin(angle);
+		int found = 0;
+
+		for (int z = 0; z < rayCount; z++) {
+
+			// Radius of the estimate along this ray.
+			double u = cosines[z] * angleCos + sines[z] * angleSin;
+			double v = sines[z] * angleCos - cosines[z] * angleSin;
+			double radius = 1 / Math.sqrt(u * u / (radiusU * radiusU) + v * v / (radiusV * radiusV));
+
+			double edge = findEdge(centerX, centerY, cosines[z], sines[z], Math.max(1, radius - band), radius + band);
+
+			if (!Double.isNaN(edge)) {
+
+				points[2 * found] = (float) (centerX + edge * cosines[z]);
+				points[2 * found + 1] = (float) (centerY + edge * sines[z]);
+				found++;
+
+			} // end if
+
+		} // end for
+
+		edgeCount = found;
+
+		if (found < Math.max(5, minimumValidRays * rayCount))
+			return null;
+
+		edgePoints.create(found, 1, CvType.CV_32FC2);
+		edgePoints.put(0, 0, points);
+		RotatedRect fitted = Imgproc.fitEllipse(edgePoints);
+
+		if (!(fitted.size.width > 0 && fitted.size.height > 0) || Double.isNaN(fitted.center.x) || Double.isNaN(fitted.center.y))
+			return null;
+
+		return fitted;
+
+	} // end castRays
+
+	/**
+	 * Finds the strongest intensity change along one ray, between two distances from the center.
+	 *
+	 * @return The distance from the center to the edge, to a fraction of a pixel, or NaN if there is no clear edge in the band.
+	 */
+	private double findEdge(double centerX, double centerY, double dx, double dy, double from, double to) {
+
+		int steps = (int) Math.ceil(to - from);
+		double previous = sample(centerX + (from - 1) * dx, centerY + (from - 1) * dy);
+		double current = sample(centerX + from * dx, centerY + from * dy);
+		double before = 0; // gradient one step before the strongest one
+		double after = 0;
+		double strongest = 0;
+		double lastGradient = 0;
+		int strongestStep = -1;
+
+		if (Double.isNaN(previous) || Double.isNaN(current))
+			return Double.NaN;
+
+		for (int s = 0; s <= steps; s++) {
+
+			double next = sample(centerX + (from + s + 1) * dx, centerY + (from + s + 1) * dy);
+
+			if (Double.isNaN(next))
+				return Double.NaN;
+
+			double gradient = Math.abs(next - previous) / 2;
+
+			if (gradient > strongest) {
+
+				strongest = gradient;
+				strongestStep = s;
+				before = lastGradient;
+				after = Double.NaN;
+
+			} else if (s == strongestStep + 1)
+				after = gradient;
+
+			lastGradient = gradient;
+			previous = current;
+			current = next;
+
+		} // end for
+
+		// No edge, or the strongest gradient is on the border of the band - the edge may be outside it.
+		if (strongest < minimumEdgeStrength || strongestStep <= 0 || strongestStep >= steps || Double.isNaN(after))
+			return Double.NaN;
+
+		double curvature = before - 2 * strongest + after;
+		double offset = curvature < 0 ? 0.5 * (before - after) / curvature : 0;
+
+		return from + strongestStep + offset;
+
+	} // end findEdge
+
+	/**
+	 * Bilinear interpolation of the smoothed region.
+	 *
+	 * @return The gray level at the point, or NaN if the point is outside the region.
+	 */
+	private double sample(double x, double y) {
+
+		if (x < 0 || y < 0 || x > regionRectangle.width - 1 || y > regionRectangle.height - 1)
+			return Double.NaN;
+
+		int x0 = Math.min((int) x, regionRectangle.width - 2);
+		int y0 = Math.min((int) y, regionRectangle.height - 2);
+		double fx = x - x0;
+		double fy = y - y0;
+		int index = y0 * stride + x0;
+
+		double top = (pixels[index] & 0xFF) * (1 - fx) + (pixels[index + 1] & 0xFF) * fx;
+		double bottom = (pixels[index + stride] & 0xFF) * (1 - fx) + (pixels[index + stride + 1] & 0xFF) * fx;
+
+		return top * (1 - fy) + bottom * fy;
+
+	} // end sample
+
+	/**
+	 * Splits the fitted ellipse into the droplet's vertical and horizontal semi-axes.
+	 */
+	private void setResults(RotatedRect fitted) {
+
+		// fitEllipse gives the width axis at "angle" degrees from the image's x axis.
+		double angle = fitted.angle;
+		double width = fitted.size.width / 2;
+		double height = fitted.size.height / 2;
+		double cos = Math.cos(Math.toRadians(angle));
+
+		if (cos * cos >= 0.5) {
+
+			semiAxisB = width;
+			semiAxisA = height;
+
+		} else {
+
+			semiAxisB = height;
+			semiAxisA = width;
+			angle -= 90;
+
+		} // end if-else
+
+		// The horizontal axis of an ellipse has two directions 180 degrees apart. Report the one within 90 degrees of the x axis.
+		angle %= 180;
+
+		if (angle > 90)
+			angle -= 180;
+		else if (angle <= -90)
+			angle += 180;
+
+		ellipse = fitted;
+		centerX = fitted.center.x;
+		centerY = fitted.center.y;
+		orientation = angle;
+
+	} // end setResults
+
+	/**
+	 * @return The last fitted ellipse, in image coordinates, e.g. to draw with Imgproc.ellipse(). Null before the first fit.
+	 */
+	public RotatedRect getEllipse() {
+		return ellipse;
+	} // end getEllipse
+
+	/**
+	 * @return The x coordinate of the droplet's center, in pixels.
+	 */
+	public double getCenterX() {
+		return centerX;
+	} // end getCenterX
+
+	/**
+	 * @return The y coordinate of the droplet's center, in pixels (+Y downwards).
+	 */
+	public double getCenterY() {
+		return centerY;
+	} // end getCenterY
+
+	/**
+	 * @return The semi-axis closer to vertical, in pixels.
+	 */
+	public double getSemiAxisA() {
+		return semiAxisA;
+	} // end getSemiAxisA
+
+	/**
+	 * @return The semi-axis closer to horizontal, in pixels.
+	 */
+	public double getSemiAxisB() {
+		return semiAxisB;
+	} // end getSemiAxisB
+
+	/**
+	 * @return The angle of the b axis from the image's x axis, in degrees, clockwise on screen. Between -45 and 45.
+	 */
+	public double getOrientation() {
+		return orientation;
+	} // end getOrientation
+
+	/**
+	 * @return The number of edge points the last pass found.
+	 */
+	public int getEdgeCount() {
+		return edgeCount;
+	} // end getEdgeCount
+
+	/**
+	 * Frees the native memory held by the fitter.
+	 */
+	public void release() {
+
+		region.release();
+		edgePoints.release();
+
+	} // end release
+
+} // end EllipseFitter
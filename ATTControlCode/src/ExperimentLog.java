@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only binary log of an experiment, written frame by frame while the experiment runs. Read it back with
+ * ExperimentLogReader.
+ *
+ * The file starts with a header: the magic number "ATTL", the format version, the length of the header and of one record, the
+ * wall-clock time the experiment started (milliseconds since the epoch) and the schema - the number of columns, then for each
+ * its type (TYPE_LONG or TYPE_DOUBLE) and its name in UTF-8, preceded by the name's length as a short. The header is padded to a
+ * multiple of 8 bytes. All numbers are little-endian.
+ *
+ * After the header come fixed-width records, one per analyzed frame, with the columns below as 8-byte values in schema order.
+ * Frames in which the droplet was not found have NaN measurements. There is no record count: the number of records follows
+ * from the file size, so a log cut short by a crash is still readable up to its last complete record.
+ *
+ * FRAME is the frame's index in the run's complete video, which links every record to its image.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class ExperimentLog {
+
+	/*
+	 * Columns
+	 */
+	public static final int FRAME = 0;
+	public static final int TIMESTAMP = 1; // nanoseconds from the start of the experiment
+	public static final int RUN = 2;
+	public static final int PHASE = 3; // MeasurementTable.PHASE_COMPRESSION or PHASE_RELAXATION
+	public static final int A = 4;
+	public static final int B = 5;
+	public static final int BA_RATIO = 6;
+	public static final int HEIGHT = 7;
+	public static final int LOC_REL_FRAME = 8;
+	public static final int LOC_REL_START = 9;
+	public static final int ORIENTATION = 10; // degrees
+	public static final int AMPLITUDE = 11;
+	public static final int FREQUENCY = 12;
+	public static final int COLUMN_COUNT = 13;
+
+	/*
+	 * Column Types
+	 */
+	public static final byte TYPE_LONG = 1;
+	public static final byte TYPE_DOUBLE = 2;
+
+	static final int magic = 0x4C545441; // "ATTL" when read as little-endian bytes
+	static final int version = 1;
+
+	private static final String[] columnNames = {"frame", "timestamp_ns", "run", "phase", "a", "b", "ba_ratio", "height",
+			"loc_rel_frame", "loc_rel_start", "orientation_deg", "amplitude_v", "frequency_hz"};
+	private static final byte[] columnTypes = {TYPE_LONG, TYPE_LONG, TYPE_LONG, TYPE_LONG, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE,
+			TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE};
+
+	public static final int recordLength = COLUMN_COUNT * 8;
+
+	/*
+	 * Local Class Variables
+	 */
+	private final File file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+	private final long flushInterval = TimeUnit.MILLISECONDS.toNanos(250); // longest a record waits in memory
+	private long lastFlush = System.nanoTime();
+	private long records = 0;
+
+	/**
+	 * Constructor. Creates the file, replacing any file of the same name, and writes the header.
+	 *
+	 * @param file - The log file, conventionally ending in ".attlog".
+	 * @param startEpochMillis - Wall-clock time the experiment started, from System.currentTimeMillis().
+	 * @throws IOException If the file cannot be created.
+	 */
+	public ExperimentLog(File file, long startEpochMillis) throws IOException {
+
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		try {
+
+			writeHeader(startEpochMillis);
+
+		} catch (IOException e) {
+
+			channel.close();
+			throw e;
+
+		} // end try-catch
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Appends one record. Records are buffered and written out when the buffer is full or a quarter of a second after the oldest
+	 * one, so appending mostly costs no I/O at all.
+	 *
+	 * @param frame - Index of the frame in the run's complete video.
+	 * @param timestamp - Capture time of the frame, in nanoseconds from the start of the experiment.
+	 * @param run - Run number.
+	 * @param phase - MeasurementTable.PHASE_COMPRESSION or PHASE_RELAXATION.
+	 * @param a - Semi-axis A, or NaN if the droplet was not found.
+	 * @param b - Semi-axis B, or NaN.
+	 * @param baRatio - B/A, or NaN.
+	 * @param height - Height of the centroid above the horn, or NaN.
+	 * @param locRelFrame - Height of the centroid relative to the edge of the frame, or NaN.
+	 * @param locRelStart - Height of the centroid relative to where the run started, or NaN.
+	 * @param orientation - Angle of the B axis from horizontal in degrees, or NaN.
+	 * @param amplitude - Function generator amplitude, in Volts.
+	 * @param frequency - Function generator frequency, in Hz.
+	 * @throws IOException If the records cannot be written.
+	 */
+	public void append(long frame, long timestamp, int run, double phase, double a, double b, double baRatio, double height,
+			double locRelFrame, double locRelStart, double orientation, double amplitude, double frequency) throws IOException {
+
+		if (buffer.remaining() < recordLength)
+			writeBuffer();
+
+		buffer.putLong(frame);
+		buffer.putLong(timestamp);
+		buffer.putLong(run);
+		buffer.putLong((long) phase);
+		buffer.putDouble(a);
+		buffer.putDouble(b);
+		buffer.putDouble(baRatio);
+		buffer.putDouble(height);
+		buffer.putDouble(locRelFrame);
+		buffer.putDouble(locRelStart);
+		buffer.putDouble(orientation);
+		buffer.putDouble(amplitude);
+		buffer.putDouble(frequency);
+		records++;
+
+		if (System.nanoTime() - lastFlush > flushInterval)
+			writeBuffer();
+
+	} // end append
+
+	/**
+	 * Writes every buffered record to the file.
+	 *
+	 * @throws IOException If the records cannot be written.
+	 */
+	public void flush() throws IOException {
+		writeBuffer();
+	} // end flush
+
+	/**
+	 * Forces the records written so far from the operating system's cache to the disk. Records still buffered by append() are
+	 * not included. Unlike the other methods this may be called from any thread, e.g. periodically by a RunJournal.
+	 *
+	 * @throws IOException If the file cannot be synchronized or has been closed.
+	 */
+	public void sync() throws IOException {
+		channel.force(false);
+	} // end sync
+
+	/**
+	 * Writes every buffered record and closes the file.
+	 *
+	 * @throws IOException If the records cannot be written.
+	 */
+	public void close() throws IOException {
+
+		try {
+			writeBuffer();
+		} finally {
+			channel.close();
+		} // end try-finally
+
+	} // end close
+
+	/**
+	 * @return The number of records appended.
+	 */
+	public long size() {
+		return records;
+	} // end size
+
+	/**
+	 * @return The log file.
+	 */
+	public File getFile() {
+		return file;
+	} // end getFile
+
+	/**
+	 * Writes the rows of a measurement table view as a log, e.g. the results of an offline analysis. The table doesn't know
+	 * which video frame a row came from, so FRAME is -1 and ORIENTATION is NaN.
+	 *
+	 * @param file - The file to create or overwrite.
+	 * @param view - The rows to write.
+	 * @param startEpochMillis - Wall-clock time the rows' timestamps count from.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static void write(File file, MeasurementTable.View view, long startEpochMillis) throws IOException {
+
+		ExperimentLog log = new ExperimentLog(file, startEpochMillis);
+
+		try {
+
+			for (int z = 0; z < view.size(); z++) {
+
+				log.append(-1, Math.round(view.get(MeasurementTable.TIMESTAMP, z) * 1e9), view.getTable().getRun(view.toRow(z)),
+						view.get(MeasurementTable.PHASE, z), view.get(MeasurementTable.A, z), view.get(MeasurementTable.B, z),
+						view.get(MeasurementTable.BA_RATIO, z), view.get(MeasurementTable.HEIGHT, z),
+						view.get(MeasurementTable.LOC_REL_FRAME, z), view.get(MeasurementTable.LOC_REL_START, z), Double.NaN,
+						view.get(MeasurementTable.AMPLITUDE, z), view.get(MeasurementTable.FREQUENCY, z));
+
+			} // end for
+
+		} finally {
+			log.close();
+		} // end try-finally
+
+	} // end write
+
+	/**
+	 * @param column - One of the column constants.
+	 * @return The column's name in the schema.
+	 */
+	public static String getColumnName(int column) {
+		return columnNames[column];
+	} // end getColumnName
+
+	private void writeHeader(long startEpochMillis) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+		header.putInt(magic).putInt(version);
+		header.putInt(0); // header length, filled in below
+		header.putInt(recordLength);
+		header.putLong(startEpochMillis);
+		header.putInt(COLUMN_COUNT);
+
+		for (int z = 0; z < COLUMN_COUNT; z++) {
+
+			byte[] name = columnNames[z].getBytes(StandardCharsets.UTF_8);
+			header.put(columnTypes[z]).putShort((short) name.length).put(name);
+
+		} // end for
+
+		while (header.position() % 8 != 0)
+			header.put((byte) 0);
+
+		header.putInt(8, header.position());
+		header.flip();
+
+		while (header.hasRemaining())
+			channel.write(header);
+
+	} // end writeHeader
+
+	private void writeBuffer() throws IOException {
+
+		buffer.flip();
+
+		try {
+
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+
+		} finally {
+			buffer.clear();
+		} // end try-finally
+
+		lastFlush = System.nanoTime();
+
+	} // end writeBuffer
+
+} // end ExperimentLog
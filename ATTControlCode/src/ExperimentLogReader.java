@@ -0,0 +1,292 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Random access to an ExperimentLog file through memory mapping.
+ *
+ * Nothing is read up front but the header: the records are mapped in windows of up to a gigabyte each as they are first
+ * touched, and the operating system pages them in as needed. So opening a multi-gigabyte session is instant, and reading one
+ * record out of the middle of it costs no more than reading the first.
+ *
+ * The reader sees the records that were complete when it was opened. Columns are looked up through the schema in the file,
+ * so logs written with other columns, or in another order, read correctly.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class ExperimentLogReader {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final long maximumWindow = 1L << 30; // bytes mapped at once
+
+	private final FileChannel channel;
+	private final int headerLength;
+	private final int recordLength;
+	private final long startEpochMillis;
+	private final String[] columnNames;
+	private final byte[] columnTypes;
+	private final long records;
+	private final long recordsPerWindow;
+	private final MappedByteBuffer[] windows;
+
+	/**
+	 * Constructor. Opens the file and reads its header.
+	 *
+	 * @param file - A file written by ExperimentLog.
+	 * @throws IOException If the file cannot be read or is not an experiment log.
+	 */
+	public ExperimentLogReader(File file) throws IOException {
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+
+			ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(header, 0);
+
+			if (header.getInt(0) != ExperimentLog.magic)
+				throw new IOException(file + " is not an experiment log.");
+
+			if (header.getInt(4) > ExperimentLog.version)
+				throw new IOException(file + " was written by a newer version (format " + header.getInt(4) + ").");
+
+			headerLength = header.getInt(8);
+			recordLength = header.getInt(12);
+			startEpochMillis = header.getLong(16);
+
+			ByteBuffer schema = ByteBuffer.allocate(headerLength - 24).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(schema, 24);
+			schema.flip();
+
+			int columns = schema.getInt();
+			columnNames = new String[columns];
+			columnTypes = new byte[columns];
+
+			for (int z = 0; z < columns; z++) {
+
+				columnTypes[z] = schema.get();
+				byte[] name = new byte[schema.getShort()];
+				schema.get(name);
+				columnNames[z] = new String(name, StandardCharsets.UTF_8);
+
+			} // end for
+
+			records = (channel.size() - headerLength) / recordLength;
+			recordsPerWindow = Math.max(1, maximumWindow / recordLength);
+			windows = new MappedByteBuffer[(int) ((records + recordsPerWindow - 1) / recordsPerWindow)];
+
+		} catch (IOException | RuntimeException e) {
+
+			channel.close();
+			throw e;
+
+		} // end try-catch
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @return The number of complete records in the file.
+	 */
+	public long size() {
+		return records;
+	} // end size
+
+	/**
+	 * @return Wall-clock time the experiment started, in milliseconds since the epoch.
+	 */
+	public long getStartEpochMillis() {
+		return startEpochMillis;
+	} // end getStartEpochMillis
+
+	/**
+	 * @return The number of columns in the file's schema.
+	 */
+	public int getColumnCount() {
+		return columnNames.length;
+	} // end getColumnCount
+
+	/**
+	 * @param column - Column index in the file.
+	 * @return The column's name.
+	 */
+	public String getColumnName(int column) {
+		return columnNames[column];
+	} // end getColumnName
+
+	/**
+	 * @param name - A column name, e.g. ExperimentLog.getColumnName(ExperimentLog.BA_RATIO).
+	 * @return The column's index in the file, or -1 if the file has no such column.
+	 */
+	public int getColumnIndex(String name) {
+
+		for (int z = 0; z < columnNames.length; z++)
+			if (columnNames[z].equals(name))
+				return z;
+
+		return -1;
+
+	} // end getColumnIndex
+
+	/**
+	 * Reads a value as a double, whatever its type in the file.
+	 *
+	 * @param row - Record index, from 0 to size() - 1.
+	 * @param column - Column index in the file.
+	 * @return The value.
+	 * @throws IOException If the file cannot be mapped.
+	 */
+	public double getDouble(long row, int column) throws IOException {
+
+		int offset = offset(row, column);
+		MappedByteBuffer window = window(row);
+
+		return columnTypes[column] == ExperimentLog.TYPE_DOUBLE ? window.getDouble(offset) : window.getLong(offset);
+
+	} // end getDouble
+
+	/**
+	 * Reads a value as a long, whatever its type in the file. Doubles are truncated.
+	 *
+	 * @param row - Record index, from 0 to size() - 1.
+	 * @param column - Column index in the file.
+	 * @return The value.
+	 * @throws IOException If the file cannot be mapped.
+	 */
+	public long getLong(long row, int column) throws IOException {
+
+		int offset = offset(row, column);
+		MappedByteBuffer window = window(row);
+
+		return columnTypes[column] == ExperimentLog.TYPE_LONG ? window.getLong(offset) : (long) window.getDouble(offset);
+
+	} // end getLong
+
+	/**
+	 * Exports the records of one phase, and optionally one run, in which the droplet was found to a tab-separated CSV file. The
+	 * columns are those of MeasurementTable.writeCSV(), followed by the frame index and the orientation.
+	 *
+	 * @param file - The file to create or overwrite.
+	 * @param run - The run to export, or -1 for all runs.
+	 * @param phase - MeasurementTable.PHASE_COMPRESSION or PHASE_RELAXATION.
+	 * @throws IOException If the log cannot be read or the file cannot be written.
+	 */
+	public void exportCSV(File file, int run, double phase) throws IOException {
+
+		int[] columns = new int[MeasurementTable.COLUMN_COUNT + 2];
+		String[] names = {"a", "b", "ba_ratio", "height", "loc_rel_frame", "loc_rel_start", "timestamp_ns", "amplitude_v",
+				"frequency_hz", "phase", "frame", "orientation_deg"};
+
+		for (int z = 0; z < columns.length; z++)
+			columns[z] = getColumnIndex(names[z]);
+
+		int runColumn = getColumnIndex("run");
+		int timestampColumn = columns[MeasurementTable.TIMESTAMP];
+
+		CSVWriter csvOutput = new CSVWriter(new FileWriter(file.getAbsolutePath()), '\t', ',');
+
+		try {
+
+			String[] entry = new String[columns.length];
+
+			for (int z = 0; z < MeasurementTable.COLUMN_COUNT; z++)
+				entry[z] = MeasurementTable.getColumnName(z);
+
+			entry[MeasurementTable.COLUMN_COUNT] = "Frame";
+			entry[MeasurementTable.COLUMN_COUNT + 1] = "Orientation (degrees)";
+			csvOutput.writeNext(entry);
+
+			for (long row = 0; row < records; row++) {
+
+				if (getDouble(row, columns[MeasurementTable.PHASE]) != phase || (run >= 0 && getLong(row, runColumn) != run)
+						|| Double.isNaN(getDouble(row, columns[MeasurementTable.A])))
+					continue;
+
+				for (int s = 0; s < columns.length; s++) {
+
+					if (columns[s] < 0)
+						entry[s] = "";
+					else if (columns[s] == timestampColumn)
+						entry[s] = Double.toString(getLong(row, timestampColumn) / 1e9); // seconds, as in the measurement table
+					else if (columnTypes[columns[s]] == ExperimentLog.TYPE_LONG)
+						entry[s] = Long.toString(getLong(row, columns[s]));
+					else
+						entry[s] = Double.toString(getDouble(row, columns[s]));
+
+				} // end for
+
+				csvOutput.writeNext(entry);
+
+			} // end for
+
+		} finally {
+			csvOutput.close();
+		} // end try-finally
+
+	} // end exportCSV
+
+	/**
+	 * Closes the file. The mapped windows stay valid until they are garbage collected, but the reader must not be used afterwards.
+	 *
+	 * @throws IOException If the file cannot be closed.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	} // end close
+
+	private int offset(long row, int column) {
+
+		if (row < 0 || row >= records)
+			throw new IndexOutOfBoundsException("Record " + row + " of " + records);
+
+		return (int) ((row % recordsPerWindow) * recordLength) + column * 8;
+
+	} // end offset
+
+	/**
+	 * @return The window holding the given record, mapped on first use.
+	 */
+	private MappedByteBuffer window(long row) throws IOException {
+
+		int index = (int) (row / recordsPerWindow);
+
+		if (windows[index] == null) {
+
+			long first = index * recordsPerWindow;
+			long count = Math.min(recordsPerWindow, records - first);
+
+			windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, headerLength + first * recordLength, count * recordLength);
+			windows[index].order(ByteOrder.LITTLE_ENDIAN);
+
+		} // end if
+
+		return windows[index];
+
+	} // end window
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Experiment log ends inside its header.");
+
+		} // end while
+
+	} // end readFully
+
+} // end ExperimentLogReader
@@ -0,0 +1,314 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.opencv.core.Mat;
+
+/**
+ * Fixed-capacity ring of preallocated frames that hands camera images from a single producer to any number of consumers.
+ *
+ * The producer (the camera thread) owns the write side and never waits on a consumer: it simply overwrites the oldest slot.
+ * Each slot carries a sequence number that works as a seqlock - it is invalidated before the slot is filled and republished
+ * afterwards, so a consumer that copies a slot while it is being overwritten notices the torn read and retries on a newer frame.
+ *
+ * Consumers each get their own {@link Reader}, which owns a private copy of the frame and chooses whether it wants the latest
+ * frame only (display, PID) or every frame still held in the ring (recording, offline analysis). A reader waiting for a frame
+ * sleeps until the producer publishes one; the producer only pays for the wake-up when somebody is actually waiting.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class FramePipeline {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final long WRITING = -1; // Slot sequence while the producer is filling it.
+
+	private final Mat[] slots;
+	private final AtomicLongArray slotSequence;
+	private final AtomicLongArray slotTimestamp;
+	private final AtomicLong publishedSequence = new AtomicLong(-1);
+	private final AtomicInteger waiters = new AtomicInteger(); // readers blocked in next(timeout)
+	private final Object arrival = new Object(); // readers wait on this for the next frame
+	private final int capacity;
+
+	private long writeSequence = 0; // Only touched by the producer thread.
+
+	/**
+	 * Constructor. Allocates every slot up front so the capture loop never allocates.
+	 *
+	 * @param capacity - Number of frames held in the ring. Must be at least 3 so a reader always has a complete frame to copy.
+	 * @param rows - Frame height in pixels.
+	 * @param cols - Frame width in pixels.
+	 * @param type - OpenCV type of the frames, e.g. CvType.CV_8UC3 for the camera feed.
+	 */
+	public FramePipeline(int capacity, int rows, int cols, int type) {
+
+		if (capacity < 3)
+			throw new IllegalArgumentException("Frame pipeline needs at least 3 slots, got " + capacity);
+
+		this.capacity = capacity;
+		slots = new Mat[capacity];
+		slotSequence = new AtomicLongArray(capacity);
+		slotTimestamp = new AtomicLongArray(capacity);
+
+		for (int z = 0; z < capacity; z++) {
+
+			slots[z] = new Mat(rows, cols, type);
+			slotSequence.set(z, WRITING);
+
+		} // end for
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Claims the next slot for the producer to fill in place, e.g. with VideoCapture.retrieve(). Must be followed by either
+	 * {@link #publish(long)} or {@link #abortWrite()}. Producer thread only.
+	 *
+	 * @return The preallocated Mat backing the next frame.
+	 */
+	public Mat beginWrite() {
+
+		int index = (int) (writeSequence % capacity);
+		slotSequence.set(index, WRITING);
+
+		return slots[index];
+
+	} // end beginWrite
+
+	/**
+	 * Publishes the slot claimed by {@link #beginWrite()} to the consumers. Producer thread only.
+	 *
+	 * @param timestamp - Capture time of the frame, from System.nanoTime().
+	 * @return The sequence number assigned to the frame.
+	 */
+	public long publish(long timestamp) {
+
+		int index = (int) (writeSequence % capacity);
+		long sequence = writeSequence++;
+
+		slotTimestamp.set(index, timestamp);
+		slotSequence.set(index, sequence);
+		publishedSequence.set(sequence);
+
+		// A reader registers as a waiter before its last check for a frame, so if none is registered now, none can miss this one.
+		if (waiters.get() > 0) {
+
+			synchronized (arrival) {
+				arrival.notifyAll();
+			} // end synchronized
+
+		} // end if
+
+		return sequence;
+
+	} // end publish
+
+	/**
+	 * Copies a frame produced elsewhere into the next slot and publishes it. Producer thread only.
+	 * The slot is only reallocated if the frame format changes.
+	 *
+	 * @param frame - The frame to publish.
+	 * @param timestamp - Capture time of the frame, from System.nanoTime().
+	 * @return The sequence number assigned to the frame.
+	 */
+	public long publish(Mat frame, long timestamp) {
+
+		frame.copyTo(beginWrite());
+		return publish(timestamp);
+
+	} // end publish
+
+	/**
+	 * Abandons the slot claimed by {@link #beginWrite()}, e.g. when the camera failed to deliver a frame. The slot stays
+	 * invalid until it is written again.
+	 */
+	public void abortWrite() {
+		// Nothing to do - the slot was already marked as WRITING and the write sequence was not advanced.
+	} // end abortWrite
+
+	/**
+	 * @return The sequence number of the newest published frame, or -1 if nothing has been published yet.
+	 */
+	public long getLatestSequence() {
+		return publishedSequence.get();
+	} // end getLatestSequence
+
+	/**
+	 * @return The number of slots in the ring.
+	 */
+	public int getCapacity() {
+		return capacity;
+	} // end getCapacity
+
+	/**
+	 * Creates a new consumer of this pipeline.
+	 *
+	 * @param everyFrame - If true the reader steps through every frame still held in the ring, otherwise it jumps straight to the latest one.
+	 * @return A reader with its own frame buffer.
+	 */
+	public Reader newReader(boolean everyFrame) {
+		return new Reader(everyFrame);
+	} // end newReader
+
+	/**
+	 * Copies the frame with the given sequence number into the destination.
+	 *
+	 * @return The capture timestamp of the frame, or -1 if the slot no longer holds that frame (or was overwritten mid-copy).
+	 */
+	private long read(long sequence, Mat destination) {
+
+		int index = (int) (sequence % capacity);
+
+		if (slotSequence.get(index) != sequence)
+			return -1;
+
+		slots[index].copyTo(destination);
+		long timestamp = slotTimestamp.get(index);
+
+		// Seqlock check: if the producer lapped us during the copy the pixels may be torn.
+		if (slotSequence.get(index) != sequence)
+			return -1;
+
+		return timestamp;
+
+	} // end read
+
+	/**
+	 * A single consumer's view of the pipeline. Not thread-safe - each consuming thread needs its own reader.
+	 *
+	 * @author Jarrod Risley
+	 *
+	 */
+	public class Reader {
+
+		private final Mat frame = new Mat();
+		private final boolean everyFrame;
+
+		private long sequence = -1;
+		private long timestamp;
+		private long droppedFrames;
+
+		private Reader(boolean everyFrame) {
+			this.everyFrame = everyFrame;
+		} // end constructor
+
+		/**
+		 * Copies the next frame into this reader's buffer if one is available. Never blocks.
+		 *
+		 * @return True if a new frame was copied, false if nothing newer than the current frame has been published.
+		 */
+		public boolean next() {
+
+			long latest = publishedSequence.get();
+
+			while (latest > sequence) {
+
+				// The producer may be filling the slot after the latest, so only capacity - 1 frames are safe to read.
+				long oldest = Math.max(0, latest - capacity + 2);
+				long target = everyFrame ? Math.max(sequence + 1, oldest) : latest;
+				long stamp = read(target, frame);
+
+				if (stamp >= 0) {
+
+					if (everyFrame)
+						droppedFrames += target - sequence - 1;
+
+					sequence = target;
+					timestamp = stamp;
+					return true;
+
+				} // end if
+
+				latest = publishedSequence.get();
+
+			} // end while
+
+			return false;
+
+		} // end next
+
+		/**
+		 * Waits up to the given time for a new frame.
+		 *
+		 * @param timeout - Maximum wait in nanoseconds.
+		 * @return True if a new frame was copied before the timeout expired.
+		 */
+		public boolean next(long timeout) {
+
+			long deadline = System.nanoTime() + timeout;
+
+			while (!next()) {
+
+				waiters.incrementAndGet();
+
+				try {
+
+					// Only the cheap sequence check is done under the lock - the copy itself happens in next().
+					synchronized (arrival) {
+
+						while (publishedSequence.get() <= sequence) {
+
+							long remaining = deadline - System.nanoTime();
+
+							if (remaining <= 0)
+								return false;
+
+							TimeUnit.NANOSECONDS.timedWait(arrival, remaining);
+
+						} // end while
+
+					} // end synchronized
+
+				} catch (InterruptedException e) {
+
+					Thread.currentThread().interrupt();
+					return false;
+
+				} finally {
+					waiters.decrementAndGet();
+				} // end try-catch-finally
+
+			} // end while
+
+			return true;
+
+		} // end next
+
+		/**
+		 * @return The reader's copy of the current frame. Valid until the next call to next().
+		 */
+		public Mat getFrame() {
+			return frame;
+		} // end getFrame
+
+		/**
+		 * @return The sequence number of the current frame, or -1 if no frame has been read yet.
+		 */
+		public long getSequence() {
+			return sequence;
+		} // end getSequence
+
+		/**
+		 * @return The capture timestamp of the current frame, in System.nanoTime() units.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		} // end getTimestamp
+
+		/**
+		 * @return The number of frames an every-frame reader missed because the producer overwrote them first.
+		 */
+		public long getDroppedFrames() {
+			return droppedFrames;
+		} // end getDroppedFrames
+
+	} // end Reader
+
+} // end FramePipeline
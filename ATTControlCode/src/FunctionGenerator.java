@@ -0,0 +1,144 @@
+/**
+ * The function generator that drives the transducer, as seen by the rest of the program.
+ *
+ * Use {@link #create()} to get the one selected for this run. The "att.functionGenerator" system property picks it: "agilent"
+ * (the default) for the real instrument on the GPIB bus, or "simulated" for an in-process simulation that runs anywhere, e.g.
+ * java -Datt.functionGenerator=simulated TulaneAcousticTensiometer. For the real instrument, "att.gpib.driver" and
+ * "att.gpib.address" override the JPIB driver class and the bus address.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public interface FunctionGenerator {
+
+	/**
+	 * Runs the standard compression and relaxation sweep.
+	 */
+	public void amplitudeSweep();
+
+	/**
+	 * Sweeps the amplitude from min up to max and back down.
+	 *
+	 * @param min - The minimum voltage, in Volts.
+	 * @param max - The maximum voltage, in Volts.
+	 */
+	public void amplitudeSweep(double min, double max);
+
+	/**
+	 * Sweeps from start up to end, or from end down to start if reverse is set. start is the lower bound either way.
+	 *
+	 * @param start - The lower voltage, in Volts.
+	 * @param end - The higher voltage, in Volts.
+	 * @param reverse - True to sweep downward, from end to start.
+	 */
+	public void sweepTo(double start, double end, boolean reverse);
+
+	/**
+	 * @param enabled - True to let the instrument run sweeps by itself instead of stepping them from the computer.
+	 */
+	public void setHardwareSweep(boolean enabled);
+
+	/**
+	 * @return True if a sweep is in progress.
+	 */
+	public boolean isSweeping();
+
+	/**
+	 * @param value - True when starting a sweep, false when finishing one.
+	 */
+	public void setSweeping(boolean value);
+
+	/**
+	 * Registers a listener that is told when sweeps start, change phase and finish.
+	 *
+	 * @param listener - The listener.
+	 */
+	public void addSweepListener(SweepListener listener);
+
+	/**
+	 * @param listener - A listener registered with addSweepListener().
+	 */
+	public void removeSweepListener(SweepListener listener);
+
+	/**
+	 * @return True while the droplet is being compressed, false while it relaxes.
+	 */
+	public boolean isCompressing();
+
+	/**
+	 * @param voltsPerSecond - Sweep rate in Volts per second.
+	 */
+	public void setSweepRate(double voltsPerSecond);
+
+	/**
+	 * @param transactionsPerSecond - Maximum number of bus transactions per second.
+	 */
+	public void setCommandRate(double transactionsPerSecond);
+
+	/**
+	 * @param voltage - Amplitude in Volts.
+	 */
+	public void setAmplitude(double voltage);
+
+	/**
+	 * @param freq - Frequency in Hz.
+	 */
+	public void setFrequecy(double freq);
+
+	/**
+	 * Same as {@link #setFrequecy(double)}, for a setpoint computed from a camera frame. The time from the frame to the setpoint
+	 * reaching the instrument is recorded as the loop's END_TO_END latency.
+	 *
+	 * @param freq - Frequency in Hz.
+	 * @param frameTimestamp - Capture time of the frame, from System.nanoTime().
+	 */
+	public void setFrequecy(double freq, long frameTimestamp);
+
+	/**
+	 * Makes the instrument beep.
+	 */
+	public void beep();
+
+	/**
+	 * @return The instrument's frequency, in Hz, as last written or verified. Does not touch the bus.
+	 */
+	public double getFrequency();
+
+	/**
+	 * @return The instrument's amplitude, in Volts, as last written or verified. Does not touch the bus.
+	 */
+	public double getAmplitude();
+
+	/**
+	 * @return The amplitude most recently commanded, in Volts. Does not touch the bus.
+	 */
+	public double getCommandedAmplitude();
+
+	/**
+	 * @return The frequency most recently commanded, in Hz. Does not touch the bus.
+	 */
+	public double getCommandedFrequency();
+
+	/**
+	 * Creates the function generator selected by the "att.functionGenerator" system property.
+	 *
+	 * @return The function generator to use for this run.
+	 */
+	public static FunctionGenerator create() {
+
+		String selected = System.getProperty("att.functionGenerator", "agilent");
+
+		if (selected.equalsIgnoreCase("simulated"))
+			return new SimulatedFunctionGenerator();
+
+		if (!selected.equalsIgnoreCase("agilent"))
+			throw new IllegalArgumentException("Unknown function generator: " + selected);
+
+		String driver = System.getProperty("att.gpib.driver", AgilentFunctionGenerator.defaultDriver);
+		int address = Integer.getInteger("att.gpib.address", AgilentFunctionGenerator.defaultAddress);
+
+		return new AgilentFunctionGenerator(driver, address);
+
+	} // end create
+
+} // end FunctionGenerator
@@ -0,0 +1,511 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sits between the control code and an SCPIDevice and owns the bus on its own thread.
+ *
+ * Setpoints (amplitude, frequency) are coalesced: posting a new value replaces whatever value of the same kind is still
+ * waiting, so a control loop that posts faster than the bus can take it only ever sends the newest value. A replaced setpoint
+ * takes the place in line of its newest value. Everything that is waiting when the bus becomes free is sent in the order it
+ * was posted as a single SCPI message, joined with ";:", up to the maximum message length; the rest goes in the next message.
+ * Transactions are paced to a fixed maximum rate so the instrument is never flooded.
+ *
+ * Posting never blocks. Queries wait for their answer, and are only sent once everything posted before them is on the bus; they
+ * then take the next transaction, ahead of anything posted since, so a steady stream of setpoints cannot hold them up.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class GPIBCommandQueue {
+
+	/*
+	 * Setpoints
+	 */
+	public static final int AMPLITUDE = 0;
+	public static final int FREQUENCY = 1;
+
+	private static final String[] setpointPrefix = {"voltage ", "frequency "};
+	private static final String[] setpointSuffix = {" VPP", ""};
+	private static final String separator = ";:"; // SCPI: next command starts again from the root of the command tree
+	private static final int maximumMessageLength = 256;
+
+	/*
+	 * Local Class Variables
+	 */
+	private final SCPIDevice device;
+	private final Object lock = new Object();
+	private final Thread busThread;
+	private final StringBuilder message = new StringBuilder(maximumMessageLength);
+
+	private final double[] setpointValue = new double[setpointPrefix.length];
+	private final boolean[] setpointPending = new boolean[setpointPrefix.length];
+	private final long[] setpointOrigin = new long[setpointPrefix.length]; // capture time of the frame a setpoint came from, 0 if none
+	private final long[] setpointSequence = new long[setpointPrefix.length]; // when the pending value was posted
+	private final long[] batchOrigins = new long[setpointPrefix.length]; // origins of the setpoints in the message being sent
+	private final ArrayDeque<Command> commands = new ArrayDeque<Command>();
+	private final ArrayDeque<Query> queries = new ArrayDeque<Query>();
+
+	private volatile long minimumInterval; // nanoseconds between bus transactions
+	private long lastTransaction;
+	private long postedCount = 0; // sequence number of the last write posted - guarded by lock
+	private long sentCount = 0; // every write up to this sequence number is on the bus - guarded by lock
+	private long transactions = 0; // guarded by lock
+	private long coalesced = 0; // guarded by lock
+	private boolean running = true;
+
+	/**
+	 * Constructor. Starts the bus thread.
+	 *
+	 * @param device - The opened instrument.
+	 * @param transactionsPerSecond - Maximum rate at which messages are put on the bus.
+	 */
+	public GPIBCommandQueue(SCPIDevice device, double transactionsPerSecond) {
+
+		this.device = device;
+		setRate(transactionsPerSecond);
+		lastTransaction = System.nanoTime() - minimumInterval;
+
+		busThread = new Thread(new Runnable() {
+			public void run() {
+				serviceBus();
+			}
+		}, "GPIB Command Queue");
+		busThread.setDaemon(true);
+		busThread.start();
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Posts a setpoint. Replaces any value of the same kind that has not been sent yet. Never blocks.
+	 *
+	 * @param setpoint - AMPLITUDE (Volts peak-to-peak) or FREQUENCY (Hz).
+	 * @param value - The new setpoint.
+	 */
+	public void post(int setpoint, double value) {
+		post(setpoint, value, 0);
+	} // end post
+
+	/**
+	 * Posts a setpoint that was computed from a camera frame. Once it is on the bus, the time since the frame was captured is recorded
+	 * as the loop's END_TO_END latency. Replaces any value of the same kind that has not been sent yet. Never blocks.
+	 *
+	 * @param setpoint - AMPLITUDE (Volts peak-to-peak) or FREQUENCY (Hz).
+	 * @param value - The new setpoint.
+	 * @param origin - Capture time of the frame, from System.nanoTime(), or 0 if the setpoint doesn't come from a frame.
+	 */
+	public void post(int setpoint, double value, long origin) {
+
+		synchronized (lock) {
+
+			if (setpointPending[setpoint])
+				coalesced++;
+
+			setpointValue[setpoint] = value;
+			setpointPending[setpoint] = true;
+			setpointOrigin[setpoint] = origin;
+			setpointSequence[setpoint] = ++postedCount;
+			lock.notifyAll();
+
+		} // end synchronized
+
+	} // end post
+
+	/**
+	 * Posts a one-off command, e.g. "system:beep". Commands are sent in the order posted and are never coalesced. Never blocks.
+	 *
+	 * @param command - The SCPI command.
+	 */
+	public void post(String command) {
+
+		synchronized (lock) {
+
+			commands.add(new Command(command, ++postedCount));
+			lock.notifyAll();
+
+		} // end synchronized
+
+	} // end post
+
+	/**
+	 * Sends a query once everything posted before it is on the bus, and waits for the answer.
+	 *
+	 * @param command - The SCPI query, e.g. "frequency?".
+	 * @return The instrument's answer.
+	 * @throws IOException If the bus transaction fails or the queue is closed.
+	 */
+	public String query(String command) throws IOException {
+
+		Query query = new Query(command);
+
+		synchronized (lock) {
+
+			if (!running)
+				throw new IOException("GPIB command queue is closed.");
+
+			query.after = postedCount;
+			queries.add(query);
+			lock.notifyAll();
+
+			try {
+
+				while (!query.done)
+					lock.wait();
+
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for " + command, e);
+
+			} // end try-catch
+
+		} // end synchronized
+
+		if (query.error != null)
+			throw query.error;
+
+		return query.answer;
+
+	} // end query
+
+	/**
+	 * Waits until everything posted so far has been sent.
+	 */
+	public void flush() {
+
+		synchronized (lock) {
+
+			long target = postedCount;
+
+			try {
+
+				while (running && sentCount < target)
+					lock.wait();
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} // end try-catch
+
+		} // end synchronized
+
+	} // end flush
+
+	/**
+	 * Sends whatever is still pending, then stops the bus thread.
+	 */
+	public void close() {
+
+		flush();
+
+		synchronized (lock) {
+
+			running = false;
+			lock.notifyAll();
+
+		} // end synchronized
+
+		try {
+			busThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} // end try-catch
+
+	} // end close
+
+	/**
+	 * Sets the maximum rate at which messages are put on the bus.
+	 *
+	 * @param transactionsPerSecond - Messages per second.
+	 */
+	public void setRate(double transactionsPerSecond) {
+		minimumInterval = (long) (TimeUnit.SECONDS.toNanos(1) / transactionsPerSecond);
+	} // end setRate
+
+	/**
+	 * @return The minimum time between bus transactions, in nanoseconds.
+	 */
+	public long getInterval() {
+		return minimumInterval;
+	} // end getInterval
+
+	/**
+	 * @return The number of messages put on the bus so far.
+	 */
+	public long getTransactionCount() {
+
+		synchronized (lock) {
+			return transactions;
+		} // end synchronized
+
+	} // end getTransactionCount
+
+	/**
+	 * @return The number of setpoints that were replaced by a newer value before they were sent.
+	 */
+	public long getCoalescedCount() {
+
+		synchronized (lock) {
+			return coalesced;
+		} // end synchronized
+
+	} // end getCoalescedCount
+
+	/**
+	 * Body of the bus thread.
+	 */
+	private void serviceBus() {
+
+		while (true) {
+
+			synchronized (lock) {
+
+				try {
+
+					while (running && !hasWrites() && queries.isEmpty())
+						lock.wait();
+
+				} catch (InterruptedException e) {
+					break;
+				} // end try-catch
+
+				if (!running && !hasWrites())
+					break;
+
+			} // end synchronized
+
+			// Pace the bus. Anything posted while we wait is coalesced into the next message.
+			long wait = lastTransaction + minimumInterval - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+
+			String batch = null;
+			Query query = null;
+			long sentUpTo;
+
+			synchronized (lock) {
+
+				// A query goes out as soon as everything posted before it has, ahead of anything posted since; otherwise a ramp or
+				// a fast control loop, which always has a write waiting, would keep it waiting for ever.
+				if (!queries.isEmpty() && firstPending() > queries.peek().after)
+					query = queries.poll();
+				else if (hasWrites())
+					batch = buildBatch();
+
+				// The batch holds every write older than the first one left waiting, and nothing newer.
+				sentUpTo = firstPending() - 1;
+
+			} // end synchronized
+
+			if (batch != null)
+				write(batch);
+			else if (query != null)
+				answer(query);
+
+			lastTransaction = System.nanoTime();
+
+			synchronized (lock) {
+
+				transactions++;
+
+				// Queries don't count as posted work, so only a write batch moves the flush mark.
+				if (batch != null)
+					sentCount = Math.max(sentCount, sentUpTo);
+
+				lock.notifyAll();
+
+			} // end synchronized
+
+		} // end while
+
+		synchronized (lock) {
+
+			running = false;
+
+			for (Query query : queries) {
+
+				query.error = new IOException("GPIB command queue is closed.");
+				query.done = true;
+
+			} // end for
+
+			queries.clear();
+			lock.notifyAll();
+
+		} // end synchronized
+
+	} // end serviceBus
+
+	/**
+	 * Joins the pending setpoints and commands into one message, oldest first, until the next one would make the message too long.
+	 * A single write longer than that is sent on its own. Called with the lock held.
+	 */
+	private String buildBatch() {
+
+		message.setLength(0);
+
+		for (int z = 0; z < batchOrigins.length; z++)
+			batchOrigins[z] = 0;
+
+		while (true) {
+
+			int setpoint = oldestSetpoint();
+			Command command = commands.peek();
+
+			if (setpoint < 0 && command == null)
+				break;
+
+			int mark = message.length();
+
+			if (mark > 0)
+				message.append(separator);
+
+			boolean isSetpoint = setpoint >= 0 && (command == null || setpointSequence[setpoint] < command.sequence);
+
+			if (isSetpoint)
+				message.append(setpointPrefix[setpoint]).append(setpointValue[setpoint]).append(setpointSuffix[setpoint]);
+			else
+				message.append(command.text);
+
+			if (mark > 0 && message.length() > maximumMessageLength) {
+
+				message.setLength(mark);
+				break;
+
+			} // end if
+
+			if (isSetpoint) {
+
+				setpointPending[setpoint] = false;
+				batchOrigins[setpoint] = setpointOrigin[setpoint];
+
+			} else
+				commands.poll();
+
+		} // end while
+
+		return message.toString();
+
+	} // end buildBatch
+
+	/**
+	 * @return The pending setpoint that was posted first, or -1 if none is pending. Called with the lock held.
+	 */
+	private int oldestSetpoint() {
+
+		int oldest = -1;
+
+		for (int z = 0; z < setpointPending.length; z++)
+			if (setpointPending[z] && (oldest < 0 || setpointSequence[z] < setpointSequence[oldest]))
+				oldest = z;
+
+		return oldest;
+
+	} // end oldestSetpoint
+
+	/**
+	 * @return The sequence number of the oldest write still waiting, or one past the last posted if none is. Called with the lock held.
+	 */
+	private long firstPending() {
+
+		long first = postedCount + 1;
+		int setpoint = oldestSetpoint();
+
+		if (setpoint >= 0)
+			first = setpointSequence[setpoint];
+
+		if (!commands.isEmpty())
+			first = Math.min(first, commands.peek().sequence);
+
+		return first;
+
+	} // end firstPending
+
+	/**
+	 * @return True if any setpoint or command is waiting. Called with the lock held.
+	 */
+	private boolean hasWrites() {
+
+		for (int z = 0; z < setpointPending.length; z++)
+			if (setpointPending[z])
+				return true;
+
+		return !commands.isEmpty();
+
+	} // end hasWrites
+
+	/**
+	 * Puts a message on the bus and records how long that took and, for setpoints computed from camera frames, the whole loop's latency.
+	 * batchOrigins is only touched by the bus thread, so it is safe to read here without the lock.
+	 */
+	private void write(String batch) {
+
+		long start = System.nanoTime();
+
+		try {
+			device.write(batch);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} // end try-catch
+
+		long sent = LoopLatency.recordSince(LoopLatency.GPIB_WRITE, start);
+
+		for (int z = 0; z < batchOrigins.length; z++)
+			if (batchOrigins[z] != 0)
+				LoopLatency.record(LoopLatency.END_TO_END, sent - batchOrigins[z]);
+
+	} // end write
+
+	private void answer(Query query) {
+
+		try {
+			query.answer = device.query(query.command);
+		} catch (IOException e) {
+			query.error = e;
+		} // end try-catch
+
+		synchronized (lock) {
+			query.done = true;
+		} // end synchronized
+
+	} // end answer
+
+	/**
+	 * A one-off command waiting for the bus, and its place in line.
+	 */
+	private static class Command {
+
+		private final String text;
+		private final long sequence;
+
+		private Command(String text, long sequence) {
+
+			this.text = text;
+			this.sequence = sequence;
+
+		} // end constructor
+
+	} // end Command
+
+	/**
+	 * A query waiting for the bus, and its answer.
+	 */
+	private static class Query {
+
+		private final String command;
+		private String answer;
+		private IOException error;
+		private boolean done = false;
+		private long after; // sequence number of the last write posted before the query - guarded by lock
+
+		private Query(String command) {
+			this.command = command;
+		} // end constructor
+
+	} // end Query
+
+} // end GPIBCommandQueue
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.util.Enumeration;
+
+import be.ac.ulb.gpib.GPIBDevice;
+import be.ac.ulb.gpib.GPIBDeviceIdentifier;
+
+/**
+ * An SCPI instrument on a real GPIB bus, reached through JPIB.
+ * 
+ * @author Jarrod Risley
+ *
+ */
+public class GPIBSCPIDevice implements SCPIDevice {
+
+	/*
+	 * Local Class Variables
+	 */
+	private final GPIBDevice device;
+	
+	/**
+	 * Constructor. Finds the device at the given address and opens it.
+	 * 
+	 * @param driver - Fully qualified class name of the JPIB driver, e.g. "be.ac.ulb.gpib.WindowsGPIBDriver".
+	 * @param address - GPIB address of the instrument.
+	 * @throws IOException If no device answers at the address or it cannot be opened.
+	 */
+	public GPIBSCPIDevice(String driver, int address) throws IOException {
+		
+		GPIBDevice found = null;
+		
+		GPIBDeviceIdentifier.initialize(driver, true);
+		Enumeration<?> devList = GPIBDeviceIdentifier.getDevices();
+		
+		while (devList.hasMoreElements()) {
+			
+			GPIBDeviceIdentifier devId = (GPIBDeviceIdentifier) devList.nextElement();
+			
+			if (devId.getAddress() == address)
+				found = new GPIBDevice(address, devId.getDriver());
+			
+		} // end while
+		
+		if (found == null)
+			throw new IOException("No GPIB device found at address " + address + ".");
+		
+		device = found;
+		device.open();
+		device.getVendor();
+		
+	} // end constructor
+	
+	/*
+	 * Methods
+	 */
+	
+	@Override
+	public void write(String command) throws IOException {
+		device.writeCommand(command);
+	} // end write
+	
+	@Override
+	public String query(String command) throws IOException {
+		return device.sendCommand(command);
+	} // end query
+	
+} // end GPIBSCPIDevice
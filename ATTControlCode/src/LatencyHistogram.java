@@ -0,0 +1,220 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed relative precision, in the style of HdrHistogram.
+ *
+ * Values below 32 ns get a bucket each. Above that every power of two is split into 16 equal buckets, so any recorded value is
+ * known to within about 3% whether it was 50 ns or 5 s. The buckets are a fixed array of atomic counters, so recording is
+ * lock-free, never allocates and can be done from any number of threads at once.
+ *
+ * Reading while other threads record gives a consistent-enough picture for monitoring; call {@link #reset()} only between runs.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class LatencyHistogram {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final int linearBuckets = 32; // one bucket per nanosecond below this
+	private static final int subBucketBits = 4;
+	private static final int subBuckets = 1 << subBucketBits; // buckets per power of two above linearBuckets
+	private static final int bucketCount = linearBuckets + (63 - subBucketBits) * subBuckets;
+
+	private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Records one latency. Negative values are counted as zero.
+	 *
+	 * @param nanos - The latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+
+		if (nanos < 0)
+			nanos = 0;
+
+		counts.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// another thread raised the maximum - try again against the new value
+		} // end while
+
+		while (nanos < (current = min.get()) && !min.compareAndSet(current, nanos)) {
+			// likewise for the minimum
+		} // end while
+
+	} // end record
+
+	/**
+	 * Records the time elapsed since start.
+	 *
+	 * @param start - The start of the interval, from System.nanoTime().
+	 * @return The end of the interval, so consecutive stages can be chained.
+	 */
+	public long recordSince(long start) {
+
+		long now = System.nanoTime();
+		record(now - start);
+
+		return now;
+
+	} // end recordSince
+
+	/**
+	 * @return The number of values recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	} // end getCount
+
+	/**
+	 * @return The mean of the values recorded, in nanoseconds, or 0 if there are none.
+	 */
+	public double getMean() {
+
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+
+	} // end getMean
+
+	/**
+	 * @return The largest value recorded, exactly, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	} // end getMax
+
+	/**
+	 * @return The smallest value recorded, exactly, in nanoseconds, or 0 if there are none.
+	 */
+	public long getMin() {
+
+		long value = min.get();
+		return value == Long.MAX_VALUE ? 0 : value;
+
+	} // end getMin
+
+	/**
+	 * Gets the value below which the given percentage of the recorded values fall.
+	 *
+	 * @param percentile - Between 0 and 100.
+	 * @return The value in nanoseconds, to within the histogram's precision, or 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		long n = count.get();
+
+		if (n == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+
+		for (int z = 0; z < bucketCount; z++) {
+
+			seen += counts.get(z);
+
+			if (seen >= rank)
+				return Math.min(max.get(), bucketUpper(z));
+
+		} // end for
+
+		return max.get();
+
+	} // end getValueAtPercentile
+
+	/**
+	 * @return The number of buckets. Use with getBucketCount(), getBucketLower() and getBucketUpper() to export the full distribution.
+	 */
+	public static int getBuckets() {
+		return bucketCount;
+	} // end getBuckets
+
+	/**
+	 * @param bucket - Bucket index.
+	 * @return The number of values recorded in the bucket.
+	 */
+	public long getBucketCount(int bucket) {
+		return counts.get(bucket);
+	} // end getBucketCount
+
+	/**
+	 * @param bucket - Bucket index.
+	 * @return The smallest value that falls in the bucket, in nanoseconds.
+	 */
+	public static long getBucketLower(int bucket) {
+
+		if (bucket < linearBuckets)
+			return bucket;
+
+		int shift = (bucket - linearBuckets) / subBuckets + 1;
+		long sub = (bucket - linearBuckets) % subBuckets + subBuckets;
+
+		return sub << shift;
+
+	} // end getBucketLower
+
+	/**
+	 * @param bucket - Bucket index.
+	 * @return The largest value that falls in the bucket, in nanoseconds.
+	 */
+	public static long getBucketUpper(int bucket) {
+		return bucketUpper(bucket);
+	} // end getBucketUpper
+
+	/**
+	 * Forgets everything recorded. Values recorded by other threads while this runs may be partly kept.
+	 */
+	public void reset() {
+
+		for (int z = 0; z < bucketCount; z++)
+			counts.set(z, 0);
+
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+		min.set(Long.MAX_VALUE);
+
+	} // end reset
+
+	private static long bucketUpper(int bucket) {
+
+		if (bucket < linearBuckets)
+			return bucket;
+
+		int shift = (bucket - linearBuckets) / subBuckets + 1;
+
+		return getBucketLower(bucket) + (1L << shift) - 1;
+
+	} // end bucketUpper
+
+	/**
+	 * Finds the bucket of a value: the position of its highest set bit picks the power of two, the next subBucketBits bits the bucket within it.
+	 */
+	private static int bucketOf(long value) {
+
+		if (value < linearBuckets)
+			return (int) value;
+
+		int highestBit = 63 - Long.numberOfLeadingZeros(value);
+		int shift = highestBit - subBucketBits;
+
+		return linearBuckets + (shift - 1) * subBuckets + (int) (value >>> shift) - subBuckets;
+
+	} // end bucketOf
+
+} // end LatencyHistogram
@@ -0,0 +1,154 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import javax.swing.JComponent;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Swing component that shows the live camera feed.
+ *
+ * Frames are handed over from the camera thread with present(). Each one is resized into a Mat kept for the purpose and copied
+ * with a single Mat.get() straight into the pixel array behind a BufferedImage, so showing a frame allocates nothing. There are
+ * two such images: the camera thread fills one while the event dispatch thread paints the other, and they are swapped once a
+ * frame is complete.
+ *
+ * present() never waits for the event dispatch thread. If the last frame handed over has not been painted yet, the new one is
+ * dropped, so a busy GUI only lowers the display rate and never holds up capture.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class LiveFeedView extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	/*
+	 * Local Class Variables
+	 */
+	private final Object lock = new Object();
+	private final Mat scaled = new Mat(); // the frame resized to the component - only touched by the presenting thread
+	private final Size scaledSize = new Size();
+	private BufferedImage front; // the image being painted - guarded by lock
+	private BufferedImage back; // the image being filled - only touched by the presenting thread
+	private volatile boolean paintPending = false;
+	private volatile long presentedFrames = 0;
+	private volatile long droppedFrames = 0;
+
+	/**
+	 * Constructor
+	 */
+	public LiveFeedView() {
+		setOpaque(true);
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @return False while the last frame presented is still waiting to be painted, i.e. the next frame would be dropped.
+	 */
+	public boolean isReady() {
+		return !paintPending;
+	} // end isReady
+
+	/**
+	 * Shows a frame. Called from the camera thread - one thread at a time. Never blocks.
+	 *
+	 * @param frame - An 8-bit grayscale or BGR frame. Not kept; it may be reused as soon as this returns.
+	 * @return True if the frame will be shown, false if it was dropped.
+	 */
+	public boolean present(Mat frame) {
+
+		if (paintPending || !isShowing() || getWidth() <= 0 || getHeight() <= 0) {
+
+			droppedFrames++;
+			return false;
+
+		} // end if
+
+		render(frame);
+
+		synchronized (lock) {
+
+			BufferedImage painted = front;
+			front = back;
+			back = painted;
+
+		} // end synchronized
+
+		paintPending = true;
+		presentedFrames++;
+		repaint();
+
+		return true;
+
+	} // end present
+
+	/**
+	 * Resizes a frame to the component and copies it into the back image, which is (re)created if the size or type changed.
+	 */
+	void render(Mat frame) {
+
+		scaledSize.width = Math.max(1, getWidth());
+		scaledSize.height = Math.max(1, getHeight());
+		Imgproc.resize(frame, scaled, scaledSize, 0, 0, Imgproc.INTER_AREA);
+
+		int type = scaled.channels() > 1 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_BYTE_GRAY;
+
+		if (back == null || back.getWidth() != scaled.cols() || back.getHeight() != scaled.rows() || back.getType() != type)
+			back = new BufferedImage(scaled.cols(), scaled.rows(), type);
+
+		scaled.get(0, 0, ((DataBufferByte) back.getRaster().getDataBuffer()).getData());
+
+	} // end render
+
+	@Override
+	protected void paintComponent(Graphics g) {
+
+		BufferedImage image;
+
+		synchronized (lock) {
+			image = front;
+		} // end synchronized
+
+		if (image == null || image.getWidth() != getWidth() || image.getHeight() != getHeight()) {
+
+			g.setColor(getBackground());
+			g.fillRect(0, 0, getWidth(), getHeight());
+
+		} // end if
+
+		if (image != null)
+			g.drawImage(image, 0, 0, null);
+
+		paintPending = false;
+
+	} // end paintComponent
+
+	/**
+	 * @return The number of frames handed to the event dispatch thread to paint.
+	 */
+	public long getPresentedFrames() {
+		return presentedFrames;
+	} // end getPresentedFrames
+
+	/**
+	 * @return The number of frames dropped because the previous one had not been painted yet, or the component was hidden.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	} // end getDroppedFrames
+
+	/**
+	 * Frees the native memory held by the view.
+	 */
+	public void release() {
+		scaled.release();
+	} // end release
+
+} // end LiveFeedView
@@ -0,0 +1,173 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * One latency histogram for each stage of the closed loop from the camera to the transducer, shared by every class that takes
+ * part in it. Each stage records into its histogram with a single call, e.g.
+ * LoopLatency.record(LoopLatency.PREP, System.nanoTime() - start), which is lock-free and never allocates.
+ *
+ * END_TO_END runs from the moment the camera delivered a frame to the moment the frequency setpoint computed from it was on the
+ * GPIB bus, queueing included.
+ *
+ * The histograms describe the live loop only. Analyzers that are not part of it - offline re-analysis, the benchmarks - don't
+ * record here (see DropletAnalyzer.setLatencyRecording()), so the files saved with a run hold nothing but the run's own frames.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class LoopLatency {
+
+	/*
+	 * Stages
+	 */
+	public static final int GRAB = 0;
+	public static final int RETRIEVE = 1;
+	public static final int GRAY = 2;
+	public static final int PREP = 3;
+	public static final int CONTOURS = 4;
+	public static final int PID = 5;
+	public static final int GPIB_WRITE = 6;
+	public static final int END_TO_END = 7;
+	public static final int STAGE_COUNT = 8;
+
+	private static final String[] stageNames = {"Frame Grab", "Frame Retrieve", "Grayscale Conversion", "prepFrame", "Contour Search",
+			"PID Compute", "GPIB Write", "Camera to Transducer"};
+	private static final double[] percentiles = {50, 90, 99, 99.9};
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+
+	static {
+
+		for (int z = 0; z < STAGE_COUNT; z++)
+			histograms[z] = new LatencyHistogram();
+
+	} // end static
+
+	private LoopLatency() {
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @param stage - One of the stage constants.
+	 * @param nanos - Latency in nanoseconds.
+	 */
+	public static void record(int stage, long nanos) {
+		histograms[stage].record(nanos);
+	} // end record
+
+	/**
+	 * Records the time since start for a stage.
+	 *
+	 * @param stage - One of the stage constants.
+	 * @param start - Start of the stage, from System.nanoTime().
+	 * @return The end of the stage, so consecutive stages can be chained.
+	 */
+	public static long recordSince(int stage, long start) {
+		return histograms[stage].recordSince(start);
+	} // end recordSince
+
+	/**
+	 * @param stage - One of the stage constants.
+	 * @return The stage's histogram.
+	 */
+	public static LatencyHistogram get(int stage) {
+		return histograms[stage];
+	} // end get
+
+	/**
+	 * @param stage - One of the stage constants.
+	 * @return The stage's name, as used in exported files.
+	 */
+	public static String getStageName(int stage) {
+		return stageNames[stage];
+	} // end getStageName
+
+	/**
+	 * Clears every histogram, e.g. at the start of a run.
+	 */
+	public static void reset() {
+
+		for (LatencyHistogram histogram : histograms)
+			histogram.reset();
+
+	} // end reset
+
+	/**
+	 * Writes a summary of every stage (count, mean, min, percentiles and max in microseconds) and, next to it, the full
+	 * distribution as one row per non-empty bucket.
+	 *
+	 * @param path - Directory to write to, ending in a separator.
+	 * @param name - Base name of the files, e.g. "Latency". Gets " Summary.csv" and " Histogram.csv" appended.
+	 * @throws IOException If a file cannot be written.
+	 */
+	public static void writeCSV(String path, String name) throws IOException {
+
+		CSVWriter csvOutput = new CSVWriter(new FileWriter(new File(path + name + " Summary.csv").getAbsolutePath()), '\t', ',');
+
+		try {
+
+			csvOutput.writeNext("Stage#Count#Mean (us)#Min (us)#p50 (us)#p90 (us)#p99 (us)#p99.9 (us)#Max (us)".split("#"));
+
+			for (int z = 0; z < STAGE_COUNT; z++) {
+
+				LatencyHistogram histogram = histograms[z];
+				String[] entry = new String[5 + percentiles.length];
+
+				entry[0] = stageNames[z];
+				entry[1] = Long.toString(histogram.getCount());
+				entry[2] = micros(histogram.getMean());
+				entry[3] = micros(histogram.getMin());
+
+				for (int s = 0; s < percentiles.length; s++)
+					entry[4 + s] = micros(histogram.getValueAtPercentile(percentiles[s]));
+
+				entry[4 + percentiles.length] = micros(histogram.getMax());
+				csvOutput.writeNext(entry);
+
+			} // end for
+
+		} finally {
+			csvOutput.close();
+		} // end try-finally
+
+		csvOutput = new CSVWriter(new FileWriter(new File(path + name + " Histogram.csv").getAbsolutePath()), '\t', ',');
+
+		try {
+
+			csvOutput.writeNext("Stage#From (ns)#To (ns)#Count".split("#"));
+
+			for (int z = 0; z < STAGE_COUNT; z++) {
+
+				for (int s = 0; s < LatencyHistogram.getBuckets(); s++) {
+
+					long count = histograms[z].getBucketCount(s);
+
+					if (count > 0)
+						csvOutput.writeNext(new String[] {stageNames[z], Long.toString(LatencyHistogram.getBucketLower(s)),
+								Long.toString(LatencyHistogram.getBucketUpper(s)), Long.toString(count)});
+
+				} // end for
+
+			} // end for
+
+		} finally {
+			csvOutput.close();
+		} // end try-finally
+
+	} // end writeCSV
+
+	private static String micros(double nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e3);
+	} // end micros
+
+} // end LoopLatency
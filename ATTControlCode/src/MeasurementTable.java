@@ -0,0 +1,426 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Column-oriented store for the per-frame droplet measurements.
+ *
+ * Each column is a run of primitive doubles kept in fixed-size chunks, so appending a row never allocates once a chunk
+ * exists and growing the table never copies what is already stored. {@link #clear()} keeps the chunks for the next run,
+ * which means a long session settles into a steady state with no garbage at all.
+ *
+ * Rows are grouped into segments of consecutive rows that share a run number and phase. A {@link View} is just a list of
+ * those segments, so selecting e.g. the compression data of run 3 does not copy any measurements.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class MeasurementTable {
+
+	/*
+	 * Column Indices
+	 */
+	public static final int A = 0;
+	public static final int B = 1;
+	public static final int BA_RATIO = 2;
+	public static final int HEIGHT = 3;
+	public static final int LOC_REL_FRAME = 4;
+	public static final int LOC_REL_START = 5;
+	public static final int TIMESTAMP = 6;
+	public static final int AMPLITUDE = 7;
+	public static final int FREQUENCY = 8;
+	public static final int PHASE = 9;
+	public static final int COLUMN_COUNT = 10;
+
+	/*
+	 * Phase Values
+	 */
+	public static final double PHASE_RELAXATION = 0;
+	public static final double PHASE_COMPRESSION = 1;
+
+	private static final String[] columnNames = {"A (microns)", "B (microns)", "B/A", "Height Above Horn (microns)",
+			"Height Relative to Edge of Frame (pixels)", "Height Relative to Starting Position", "Time (s)", "Amplitude (V)",
+			"Frequency (Hz)", "Phase (1 = Compression)"};
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final int chunkBits = 12;
+	private static final int chunkSize = 1 << chunkBits; // rows per chunk
+	private static final int chunkMask = chunkSize - 1;
+
+	private double[][][] chunks = new double[16][][]; // [chunk][column][row within chunk]
+	private int chunkCount = 0; // chunks allocated so far - they survive clear()
+	private int size = 0;
+
+	private int[] segmentStart = new int[16];
+	private int[] segmentRun = new int[16];
+	private double[] segmentPhase = new double[16];
+	private int segmentCount = 0;
+	private int currentRun = 0;
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Sets the run number attached to rows appended from now on.
+	 *
+	 * @param run - The run number, e.g. the multi-run counter of an elasticity experiment.
+	 */
+	public void setRun(int run) {
+		currentRun = run;
+	} // end setRun
+
+	/**
+	 * @return The run number attached to newly appended rows.
+	 */
+	public int getRun() {
+		return currentRun;
+	} // end getRun
+
+	/**
+	 * Appends one row. Allocates only when a new chunk of rows is needed for the first time.
+	 *
+	 * @param a - Semi-axis A.
+	 * @param b - Semi-axis B.
+	 * @param baRatio - B/A.
+	 * @param height - Height of the centroid above the horn.
+	 * @param locRelFrame - Height of the centroid relative to the edge of the frame.
+	 * @param locRelStart - Height of the centroid relative to where the run started.
+	 * @param timestamp - Capture time of the frame, in seconds from the start of the analysis.
+	 * @param amplitude - Function generator amplitude when the frame was taken, in Volts.
+	 * @param frequency - Function generator frequency when the frame was taken, in Hz.
+	 * @param phase - PHASE_COMPRESSION or PHASE_RELAXATION.
+	 * @return The index of the new row.
+	 */
+	public int append(double a, double b, double baRatio, double height, double locRelFrame, double locRelStart,
+			double timestamp, double amplitude, double frequency, double phase) {
+
+		int row = size;
+		int chunk = row >>> chunkBits;
+
+		if (chunk == chunkCount)
+			addChunk();
+
+		if (segmentCount == 0 || segmentRun[segmentCount - 1] != currentRun || segmentPhase[segmentCount - 1] != phase)
+			addSegment(row, phase);
+
+		double[][] columns = chunks[chunk];
+		int offset = row & chunkMask;
+
+		columns[A][offset] = a;
+		columns[B][offset] = b;
+		columns[BA_RATIO][offset] = baRatio;
+		columns[HEIGHT][offset] = height;
+		columns[LOC_REL_FRAME][offset] = locRelFrame;
+		columns[LOC_REL_START][offset] = locRelStart;
+		columns[TIMESTAMP][offset] = timestamp;
+		columns[AMPLITUDE][offset] = amplitude;
+		columns[FREQUENCY][offset] = frequency;
+		columns[PHASE][offset] = phase;
+
+		size++;
+		return row;
+
+	} // end append
+
+	/**
+	 * Reads a single value.
+	 *
+	 * @param column - One of the column constants, e.g. BA_RATIO.
+	 * @param row - Row index, from 0 to size() - 1.
+	 * @return The stored value.
+	 */
+	public double get(int column, int row) {
+
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+
+		return chunks[row >>> chunkBits][column][row & chunkMask];
+
+	} // end get
+
+	/**
+	 * @param row - Row index, from 0 to size() - 1.
+	 * @return The run number the row was appended under.
+	 */
+	public int getRun(int row) {
+
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+
+		// The last segment starting at or before the row.
+		int low = 0;
+		int high = segmentCount - 1;
+
+		while (low < high) {
+
+			int middle = (low + high + 1) >>> 1;
+
+			if (segmentStart[middle] <= row)
+				low = middle;
+			else
+				high = middle - 1;
+
+		} // end while
+
+		return segmentRun[low];
+
+	} // end getRun
+
+	/**
+	 * @param column - One of the column constants.
+	 * @return The value of the given column in the newest row, or NaN if the table is empty.
+	 */
+	public double last(int column) {
+
+		if (size == 0)
+			return Double.NaN;
+
+		return get(column, size - 1);
+
+	} // end last
+
+	/**
+	 * @return The number of rows.
+	 */
+	public int size() {
+		return size;
+	} // end size
+
+	/**
+	 * @return True if no rows are stored.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	} // end isEmpty
+
+	/**
+	 * Removes all rows. The storage is kept and reused by the next run.
+	 */
+	public void clear() {
+
+		size = 0;
+		segmentCount = 0;
+
+	} // end clear
+
+	/**
+	 * @param column - One of the column constants.
+	 * @return The header used for the column in exported files.
+	 */
+	public static String getColumnName(int column) {
+		return columnNames[column];
+	} // end getColumnName
+
+	/**
+	 * @return A view of every row in the table.
+	 */
+	public View view() {
+
+		View view = new View(segmentCount);
+
+		for (int z = 0; z < segmentCount; z++)
+			view.add(segmentStart[z], segmentEnd(z));
+
+		return view;
+
+	} // end view
+
+	/**
+	 * @param phase - PHASE_COMPRESSION or PHASE_RELAXATION.
+	 * @return A view of every row recorded in the given phase, across all runs.
+	 */
+	public View phaseView(double phase) {
+
+		View view = new View(segmentCount);
+
+		for (int z = 0; z < segmentCount; z++)
+			if (segmentPhase[z] == phase)
+				view.add(segmentStart[z], segmentEnd(z));
+
+		return view;
+
+	} // end phaseView
+
+	/**
+	 * @param run - The run number.
+	 * @param phase - PHASE_COMPRESSION or PHASE_RELAXATION.
+	 * @return A view of the rows recorded in the given run and phase.
+	 */
+	public View view(int run, double phase) {
+
+		View view = new View(segmentCount);
+
+		for (int z = 0; z < segmentCount; z++)
+			if (segmentRun[z] == run && segmentPhase[z] == phase)
+				view.add(segmentStart[z], segmentEnd(z));
+
+		return view;
+
+	} // end view
+
+	/**
+	 * Writes the rows of a view to a tab-separated CSV file, one column per measurement.
+	 *
+	 * @param file - The file to create or overwrite.
+	 * @param view - The rows to write.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static void writeCSV(File file, View view) throws IOException {
+
+		CSVWriter csvOutput = new CSVWriter(new FileWriter(file.getAbsolutePath()), '\t', ',');
+
+		try {
+
+			String[] entry = columnNames.clone();
+			csvOutput.writeNext(entry);
+
+			for (int z = 0; z < view.size(); z++) {
+
+				for (int s = 0; s < COLUMN_COUNT; s++)
+					entry[s] = Double.toString(view.get(s, z));
+
+				csvOutput.writeNext(entry);
+
+			} // end for
+
+		} finally {
+			csvOutput.close();
+		} // end try-finally
+
+	} // end writeCSV
+
+	private int segmentEnd(int segment) {
+		return segment + 1 < segmentCount ? segmentStart[segment + 1] : size;
+	} // end segmentEnd
+
+	private void addChunk() {
+
+		if (chunkCount == chunks.length) {
+
+			double[][][] grown = new double[chunks.length * 2][][];
+			System.arraycopy(chunks, 0, grown, 0, chunkCount);
+			chunks = grown;
+
+		} // end if
+
+		chunks[chunkCount] = new double[COLUMN_COUNT][chunkSize];
+
+		chunkCount++;
+
+	} // end addChunk
+
+	private void addSegment(int row, double phase) {
+
+		if (segmentCount == segmentStart.length) {
+
+			int length = segmentCount * 2;
+			int[] start = new int[length];
+			int[] run = new int[length];
+			double[] phases = new double[length];
+
+			System.arraycopy(segmentStart, 0, start, 0, segmentCount);
+			System.arraycopy(segmentRun, 0, run, 0, segmentCount);
+			System.arraycopy(segmentPhase, 0, phases, 0, segmentCount);
+
+			segmentStart = start;
+			segmentRun = run;
+			segmentPhase = phases;
+
+		} // end if
+
+		segmentStart[segmentCount] = row;
+		segmentRun[segmentCount] = currentRun;
+		segmentPhase[segmentCount] = phase;
+		segmentCount++;
+
+	} // end addSegment
+
+	/**
+	 * A window onto some of the table's rows. Holds row ranges only - the measurements themselves are read from the table.
+	 * Rows appended after the view was created are not part of it.
+	 *
+	 * @author Jarrod Risley
+	 *
+	 */
+	public class View {
+
+		private final int[] start;
+		private final int[] end;
+		private int ranges = 0;
+		private int size = 0;
+
+		private View(int capacity) {
+
+			start = new int[capacity];
+			end = new int[capacity];
+
+		} // end constructor
+
+		private void add(int from, int to) {
+
+			start[ranges] = from;
+			end[ranges] = to;
+			ranges++;
+			size += to - from;
+
+		} // end add
+
+		/**
+		 * @return The table the view reads from.
+		 */
+		public MeasurementTable getTable() {
+			return MeasurementTable.this;
+		} // end getTable
+
+		/**
+		 * @return The number of rows in the view.
+		 */
+		public int size() {
+			return size;
+		} // end size
+
+		/**
+		 * Reads a single value.
+		 *
+		 * @param column - One of the column constants.
+		 * @param index - Index within the view, from 0 to size() - 1.
+		 * @return The stored value.
+		 */
+		public double get(int column, int index) {
+			return MeasurementTable.this.get(column, toRow(index));
+		} // end get
+
+		/**
+		 * Maps an index within the view to the row index in the table.
+		 *
+		 * @param index - Index within the view, from 0 to size() - 1.
+		 * @return The corresponding table row.
+		 */
+		public int toRow(int index) {
+
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+
+			for (int z = 0; z < ranges; z++) {
+
+				int length = end[z] - start[z];
+
+				if (index < length)
+					return start[z] + index;
+
+				index -= length;
+
+			} // end for
+
+			throw new IllegalStateException("View ranges are inconsistent.");
+
+		} // end toRow
+
+	} // end View
+
+} // end MeasurementTable
@@ -0,0 +1,314 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Checks that the analyzer's memory use stays flat in steady state: runs thousands of frames through analyzeFrame() and fails
+ * if the Java heap or the process's native memory grows by more than a fixed slack, however many frames were run.
+ *
+ * Usage: java MemoryStabilityCheck [--frames N] [--video file]
+ *
+ * Frames come from a SyntheticDropletSource unless a video (or a raw frame file) is given; a video is rewound when it runs out.
+ * Each configuration of the analyzer - full-frame search with bounding boxes, then tracking with the ellipse fit and the pyramid
+ * search - gets its own analyzer and is warmed up before the baseline is taken. The live heap is measured after a full garbage
+ * collection. Native memory is the process's resident set, read from /proc/self/status; where that is not available only the
+ * heap is checked. The exit status is 0 if every configuration passed and 1 otherwise.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class MemoryStabilityCheck {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final int warmupFrames = 500;
+	private static final int samples = 10; // memory is sampled this many times over the measured frames
+	// Steady state allocates nothing, so no growth per frame is allowed - only a fixed slack for class loading, JIT and the like,
+	// whatever the number of frames.
+	private static final long heapSlack = 2 * 1024 * 1024;
+	private static final long nativeSlack = 16 * 1024 * 1024;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final Mat color = new Mat();
+	private final Mat gray = new Mat();
+
+	private int frames = 5000;
+	private File video;
+	private VideoCapture source;
+
+	/**
+	 * @param args - See the class description.
+	 */
+	public static void main(String[] args) {
+
+		System.setProperty("java.awt.headless", "true");
+
+		MemoryStabilityCheck check = new MemoryStabilityCheck();
+
+		try {
+
+			for (int z = 0; z < args.length; z++) {
+
+				if (args[z].equals("--frames"))
+					check.frames = Integer.parseInt(args[++z]);
+				else if (args[z].equals("--video"))
+					check.video = new File(args[++z]);
+				else
+					throw new IllegalArgumentException("Unknown option: " + args[z]);
+
+			} // end for
+
+		} catch (RuntimeException e) {
+
+			System.out.println(e.getMessage());
+			System.out.println("Usage: java MemoryStabilityCheck [--frames N] [--video file]");
+			System.exit(1);
+
+		} // end try-catch
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		boolean passed;
+
+		try {
+			passed = check.run();
+		} catch (IOException e) {
+
+			e.printStackTrace();
+			passed = false;
+
+		} // end try-catch
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+
+	} // end main
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Checks every configuration of the analyzer.
+	 *
+	 * @return True if the memory use of every configuration stayed flat.
+	 * @throws IOException If the video cannot be opened.
+	 */
+	public boolean run() throws IOException {
+
+		source = openSource();
+
+		try {
+
+			DropletAnalyzer fullFrame = new DropletAnalyzer();
+			boolean passed = check("Full frame, bounding box", fullFrame);
+
+			DropletAnalyzer tracking = new DropletAnalyzer();
+			tracking.setTrackingMode(true);
+			tracking.setMeasurementMode(DropletAnalyzer.MeasurementMode.ELLIPSE_FIT);
+			tracking.setPyramidLevel(2);
+			passed &= check("Tracking, ellipse fit, pyramid", tracking);
+
+			return passed;
+
+		} finally {
+
+			source.release();
+			color.release();
+			gray.release();
+
+		} // end try-finally
+
+	} // end run
+
+	/**
+	 * Warms an analyzer up, then runs the measured frames through it and compares the memory use at the end with the baseline.
+	 */
+	private boolean check(String name, DropletAnalyzer analyzer) throws IOException {
+
+		analyzer.setRecordingEnabled(false);
+
+		try {
+
+			for (int z = 0; z < warmupFrames; z++)
+				analyzeNext(analyzer);
+
+			analyzer.getMeasurements().clear();
+
+			long heapBaseline = liveHeap();
+			long nativeBaseline = residentSet();
+			long heapPeak = heapBaseline;
+			long nativePeak = nativeBaseline;
+
+			System.out.println(String.format("%-32s %10s %14s %14s", name, "Frames", "Heap (KB)", "Resident (KB)"));
+			System.out.println(String.format("%-32s %10d %14d %14s", "", 0, heapBaseline / 1024, kilobytes(nativeBaseline)));
+
+			for (int sample = 1; sample <= samples; sample++) {
+
+				int until = (int) ((long) frames * sample / samples);
+				int from = (int) ((long) frames * (sample - 1) / samples);
+
+				for (int z = from; z < until; z++)
+					analyzeNext(analyzer);
+
+				// The measurement table is the analyzer's output, not a leak, and keeps its capacity when cleared.
+				analyzer.getMeasurements().clear();
+
+				long resident = residentSet(); // before the collection below, so finalizers can't hide unreleased native memory
+				long heap = liveHeap();
+				heapPeak = Math.max(heapPeak, heap);
+				nativePeak = Math.max(nativePeak, resident);
+
+				System.out.println(String.format("%-32s %10d %14d %14s", "", until, heap / 1024, kilobytes(resident)));
+
+			} // end for
+
+			boolean passed = true;
+			long heapGrowth = heapPeak - heapBaseline;
+
+			if (heapGrowth > heapSlack) {
+
+				System.out.println("Heap grew by " + heapGrowth / 1024 + " KB over " + frames + " frames; at most " + heapSlack / 1024
+						+ " KB allowed.");
+				passed = false;
+
+			} // end if
+
+			if (nativeBaseline >= 0) {
+
+				long nativeGrowth = nativePeak - nativeBaseline;
+
+				if (nativeGrowth > nativeSlack) {
+
+					System.out.println("Resident set grew by " + nativeGrowth / 1024 + " KB over " + frames + " frames; at most "
+							+ nativeSlack / 1024 + " KB allowed.");
+					passed = false;
+
+				} // end if
+
+			} else
+				System.out.println("Native memory is not measured on this platform; only the heap was checked.");
+
+			System.out.println(name + ": " + (passed ? "flat" : "GROWING"));
+			System.out.println();
+
+			return passed;
+
+		} finally {
+			analyzer.release();
+		} // end try-finally
+
+	} // end check
+
+	/**
+	 * Reads the next frame, rewinding a video that has run out, and analyzes it as the live loop does.
+	 */
+	private void analyzeNext(DropletAnalyzer analyzer) throws IOException {
+
+		if (!source.read(color)) {
+
+			source.set(Videoio.CAP_PROP_POS_FRAMES, 0);
+
+			if (!source.read(color))
+				throw new IOException("Could not read a frame from " + video + ".");
+
+		} // end if
+
+		if (color.channels() > 1)
+			Imgproc.cvtColor(color, gray, Imgproc.COLOR_BGR2GRAY);
+		else
+			color.copyTo(gray);
+
+		analyzer.analyzeFrame(gray, System.nanoTime());
+
+	} // end analyzeNext
+
+	private VideoCapture openSource() throws IOException {
+
+		if (video == null) {
+
+			SyntheticDropletSource synthetic = new SyntheticDropletSource(25.4);
+			synthetic.setOscillation(1.6, 0.05, 1.6, 10);
+
+			return synthetic;
+
+		} // end if
+
+		VideoCapture capture = video.getName().endsWith(".attraw") ? new RawFrameReader(video) : new VideoCapture(video.getPath());
+
+		if (!capture.isOpened()) {
+
+			capture.release();
+			throw new IOException("Could not open " + video + ".");
+
+		} // end if
+
+		return capture;
+
+	} // end openSource
+
+	/**
+	 * @return The heap in use after a full collection, in bytes.
+	 */
+	private long liveHeap() {
+
+		System.gc();
+		System.runFinalization();
+		System.gc();
+
+		return memory.getHeapMemoryUsage().getUsed();
+
+	} // end liveHeap
+
+	/**
+	 * @return The process's resident set in bytes, or -1 if it can't be read on this platform.
+	 */
+	private static long residentSet() {
+
+		File status = new File("/proc/self/status");
+
+		if (!status.exists())
+			return -1;
+
+		try {
+
+			BufferedReader reader = new BufferedReader(new FileReader(status));
+
+			try {
+
+				String line;
+
+				while ((line = reader.readLine()) != null) {
+
+					if (line.startsWith("VmRSS:"))
+						return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+
+				} // end while
+
+			} finally {
+				reader.close();
+			} // end try-finally
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		} // end try-catch
+
+		return -1;
+
+	} // end residentSet
+
+	private static String kilobytes(long bytes) {
+		return bytes < 0 ? "n/a" : Long.toString(bytes / 1024);
+	} // end kilobytes
+
+} // end MemoryStabilityCheck
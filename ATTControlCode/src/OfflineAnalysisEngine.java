@@ -0,0 +1,413 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Re-analyzes recorded experiment videos using every core.
+ *
+ * One thread decodes the file into a bounded pool of frames. Each frame is handed to a pool of workers, each of which owns
+ * its own DropletAnalyzer and scratch buffers, to locate the droplet - the expensive part. The results are collected back in
+ * frame order on the calling thread and measured by a single analyzer, so things that depend on order (the starting position,
+ * timestamps) come out exactly as in {@link #analyzeSequential(String)}.
+ *
+ * Tracking mode is deliberately not used here: it makes each frame depend on the previous one, which would serialize the work.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class OfflineAnalysisEngine {
+
+	/*
+	 * Local Class Variables
+	 */
+	private final int workerCount;
+	private final int framesInFlight;
+	private final double defaultFrameRate = 25.4; // used when the file does not state its frame rate
+
+	private long framesAnalyzed;
+	private double elapsedSeconds;
+
+	/**
+	 * Constructor
+	 *
+	 * @param workers - Number of analysis threads. Use Runtime.getRuntime().availableProcessors() to use every core.
+	 */
+	public OfflineAnalysisEngine(int workers) {
+
+		workerCount = Math.max(1, workers);
+		framesInFlight = workerCount * 4;
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Analyzes every frame of a video file in parallel.
+	 *
+	 * @param videoFile - Path to the video, raw frame file or video archive directory.
+	 * @return The measurements, one row per frame in which the droplet was found, in frame order.
+	 * @throws IOException If the file cannot be opened or a frame fails to analyze.
+	 */
+	public MeasurementTable analyze(String videoFile) throws IOException {
+
+		final VideoCapture source = openVideo(videoFile);
+		final DropletAnalyzer measurer = new DropletAnalyzer();
+		final double frameRate = frameRate(source);
+		final List<Worker> workers = new ArrayList<Worker>();
+
+		if (source.get(Videoio.CAP_PROP_FRAME_HEIGHT) > 0)
+			measurer.setFrameRows((int) source.get(Videoio.CAP_PROP_FRAME_HEIGHT));
+
+		ExecutorService pool = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+
+				Worker worker = new Worker(task);
+				synchronized (workers) {
+					workers.add(worker);
+				}
+				return worker;
+
+			}
+		});
+
+		final ArrayBlockingQueue<FrameTask> freeTasks = new ArrayBlockingQueue<FrameTask>(framesInFlight);
+		final ArrayBlockingQueue<FrameTask> orderedTasks = new ArrayBlockingQueue<FrameTask>(framesInFlight + 1);
+		final List<FrameTask> tasks = new ArrayList<FrameTask>(); // every pooled frame, wherever it is when the analysis stops
+
+		for (int z = 0; z < framesInFlight; z++) {
+
+			FrameTask task = new FrameTask();
+			tasks.add(task);
+			freeTasks.add(task);
+
+		} // end for
+
+		Thread decoder = new Thread(new Decoder(source, pool, freeTasks, orderedTasks), "Offline Decoder");
+		long start = System.nanoTime();
+		long frames = 0;
+
+		decoder.start();
+
+		try {
+
+			// Reassemble in frame order. The decoder queues tasks in order, so waiting on each in turn is enough.
+			while (true) {
+
+				FrameTask task = orderedTasks.take();
+
+				if (task.index < 0) {
+
+					task.frame.release();
+					break;
+
+				} // end if
+
+				Rect found = task.result.get();
+				measurer.measureDroplet(found, frameTimestamp(measurer, source, task.index, frameRate));
+				frames++;
+
+				task.result = null;
+				freeTasks.put(task);
+
+			} // end while
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Offline analysis of " + videoFile + " was interrupted.", e);
+
+		} catch (ExecutionException e) {
+			throw new IOException("Offline analysis of " + videoFile + " failed at frame " + frames + ".", e.getCause());
+		} finally {
+
+			decoder.interrupt();
+			pool.shutdownNow();
+
+			boolean stopped = false;
+
+			try {
+
+				decoder.join();
+				stopped = pool.awaitTermination(1, TimeUnit.MINUTES);
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} // end try-catch
+
+			if (stopped) {
+
+				// Nothing can touch the frames or the workers' analyzers any more, so every frame is released - queued, being
+				// located or held here when a frame failed.
+				synchronized (workers) {
+					for (Worker worker : workers)
+						worker.release();
+				} // end synchronized
+
+				for (FrameTask task : tasks)
+					task.frame.release();
+
+				for (FrameTask task : orderedTasks)
+					if (task.index < 0)
+						task.frame.release(); // the end marker, if it was never taken
+
+			} else
+				System.out.println("WARNING: the offline analysis workers did not stop; their frames and analyzers were not released.");
+
+			if (!decoder.isAlive())
+				source.release();
+
+			measurer.release();
+
+		} // end try-catch-finally
+
+		report(frames, System.nanoTime() - start);
+
+		return measurer.getMeasurements();
+
+	} // end analyze
+
+	/**
+	 * Analyzes every frame of a video file one at a time on the calling thread, exactly as the live analysis would. This is the
+	 * reference the parallel path is checked against.
+	 *
+	 * @param videoFile - Path to the video, raw frame file or video archive directory.
+	 * @return The measurements, one row per frame in which the droplet was found, in frame order.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public MeasurementTable analyzeSequential(String videoFile) throws IOException {
+
+		VideoCapture source = openVideo(videoFile);
+		DropletAnalyzer analyzer = new DropletAnalyzer();
+		double frameRate = frameRate(source);
+		Mat frame = new Mat();
+		Mat gray = new Mat();
+		long start = System.nanoTime();
+		long frames = 0;
+
+		analyzer.setRecordingEnabled(false);
+
+		while (source.read(frame)) {
+
+			toGray(frame, gray);
+			analyzer.analyzeFrame(gray, frameTimestamp(analyzer, source, frames, frameRate));
+			frames++;
+
+		} // end while
+
+		report(frames, System.nanoTime() - start);
+
+		frame.release();
+		gray.release();
+		source.release();
+		analyzer.release();
+
+		return analyzer.getMeasurements();
+
+	} // end analyzeSequential
+
+	/**
+	 * @return The number of frames analyzed by the last call to analyze() or analyzeSequential().
+	 */
+	public long getFramesAnalyzed() {
+		return framesAnalyzed;
+	} // end getFramesAnalyzed
+
+	/**
+	 * @return The analysis throughput of the last call to analyze() or analyzeSequential(), in frames per second.
+	 */
+	public double getFramesPerSecond() {
+		return elapsedSeconds > 0 ? framesAnalyzed / elapsedSeconds : 0;
+	} // end getFramesPerSecond
+
+	/**
+	 * @return The number of worker threads.
+	 */
+	public int getWorkerCount() {
+		return workerCount;
+	} // end getWorkerCount
+
+	/**
+	 * Opens a video, the lossless raw frames of a RawFrameRecorder (".attraw") or the directory of a VideoArchive, which all play
+	 * back the same way.
+	 */
+	private VideoCapture openVideo(String videoFile) throws IOException {
+
+		if (videoFile.toLowerCase().endsWith(".attraw"))
+			return new RawFrameReader(new File(videoFile));
+
+		if (new File(videoFile).isDirectory())
+			return new VideoArchiveReader(new File(videoFile)).play();
+
+		VideoCapture source = new VideoCapture(videoFile);
+
+		if (!source.isOpened())
+			throw new IOException("Error opening video source: " + videoFile);
+
+		return source;
+
+	} // end openVideo
+
+	private double frameRate(VideoCapture source) {
+
+		double fps = source.get(Videoio.CAP_PROP_FPS);
+		return (fps > 0 && !Double.isNaN(fps)) ? fps : defaultFrameRate;
+
+	} // end frameRate
+
+	/**
+	 * Raw frame files and video archives keep every frame's capture time, so their frames are timestamped as they were captured.
+	 * Plain videos carry no capture times, so their frames are timestamped from their index and the file's frame rate.
+	 */
+	private static long frameTimestamp(DropletAnalyzer analyzer, VideoCapture source, long index, double frameRate) {
+
+		if (source instanceof RawFrameReader)
+			return analyzer.getStartNanos() + ((RawFrameReader) source).getTimestamp((int) index);
+
+		if (source instanceof VideoArchiveReader.Playback)
+			return analyzer.getStartNanos() + ((VideoArchiveReader.Playback) source).getTimestamp((int) index);
+
+		return analyzer.getStartNanos() + Math.round(index * 1e9 / frameRate);
+
+	} // end frameTimestamp
+
+	private static void toGray(Mat frame, Mat gray) {
+
+		if (frame.channels() > 1)
+			Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+		else
+			frame.copyTo(gray);
+
+	} // end toGray
+
+	private void report(long frames, long nanos) {
+
+		framesAnalyzed = frames;
+		elapsedSeconds = nanos / 1e9;
+		System.out.println("Analyzed " + frames + " frames in " + String.format("%.2f", elapsedSeconds) + " s ("
+				+ String.format("%.1f", getFramesPerSecond()) + " frames per second).");
+
+	} // end report
+
+	/**
+	 * A pooled frame and the pending result of locating the droplet in it. Index -1 marks the end of the video.
+	 */
+	private static class FrameTask {
+
+		private final Mat frame = new Mat();
+		private long index;
+		private Future<Rect> result;
+
+	} // end FrameTask
+
+	/**
+	 * Reads frames into free tasks, submits them to the workers and queues them in frame order for reassembly.
+	 */
+	private static class Decoder implements Runnable {
+
+		private final VideoCapture source;
+		private final ExecutorService pool;
+		private final ArrayBlockingQueue<FrameTask> freeTasks;
+		private final ArrayBlockingQueue<FrameTask> orderedTasks;
+
+		private Decoder(VideoCapture source, ExecutorService pool, ArrayBlockingQueue<FrameTask> freeTasks, ArrayBlockingQueue<FrameTask> orderedTasks) {
+
+			this.source = source;
+			this.pool = pool;
+			this.freeTasks = freeTasks;
+			this.orderedTasks = orderedTasks;
+
+		} // end constructor
+
+		@Override
+		public void run() {
+
+			long index = 0;
+
+			try {
+
+				while (true) {
+
+					final FrameTask task = freeTasks.take();
+
+					if (!source.read(task.frame)) {
+
+						freeTasks.put(task);
+						break;
+
+					} // end if
+
+					task.index = index++;
+					task.result = pool.submit(new Callable<Rect>() {
+						public Rect call() {
+							return ((Worker) Thread.currentThread()).locate(task.frame);
+						}
+					});
+					orderedTasks.put(task);
+
+				} // end while
+
+				FrameTask end = new FrameTask();
+				end.index = -1;
+				orderedTasks.put(end);
+
+			} catch (InterruptedException e) {
+				// Analysis was abandoned - nothing left to do.
+			} catch (RejectedExecutionException e) {
+				// The workers were shut down because the analysis was abandoned.
+			} // end try-catch
+
+		} // end run
+
+	} // end Decoder
+
+	/**
+	 * Analysis thread with its own analyzer, so no state is shared between workers.
+	 */
+	private static class Worker extends Thread {
+
+		private final DropletAnalyzer analyzer = new DropletAnalyzer();
+		private final Mat gray = new Mat();
+
+		private Worker(Runnable task) {
+
+			super(task, "Offline Analyzer");
+			setDaemon(true);
+			analyzer.setRecordingEnabled(false);
+
+		} // end constructor
+
+		private Rect locate(Mat frame) {
+
+			toGray(frame, gray);
+			return analyzer.locateDroplet(gray);
+
+		} // end locate
+
+		private void release() {
+
+			analyzer.release();
+			gray.release();
+
+		} // end release
+
+	} // end Worker
+
+} // end OfflineAnalysisEngine
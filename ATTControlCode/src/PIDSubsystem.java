@@ -16,14 +16,21 @@ public class PIDSubsystem {
 	private double kd;
 	
 	private double preError;
+	private double preInput;
 	private double integral;
-	private double derivative;
+	private double derivative; // filtered derivative of the error, computed from the measurement
+	private double output;
 	
 	private double setpoint; // This setpoint is the droplet's aspect ratio.
-	private double startTime;
-	private double endTime;
+	private long lastNanos; // time of the previous update, 0 until the first one
 	private double error;
 	
+	private double integralLimit = Double.POSITIVE_INFINITY; // largest magnitude the integral may reach
+	private double outputLimit = Double.POSITIVE_INFINITY; // largest magnitude of the output
+	private double outputRateLimit = Double.POSITIVE_INFINITY; // largest change of the output per second
+	private double derivativeFilter = 0; // time constant of the derivative low-pass filter, in seconds
+	private final double deadband = 0.01; // relative error within which the output is zero
+	
 	public PIDSubsystem(double kp, double ki, double kd) {
 		
 		this.kp = kp;
@@ -32,24 +39,129 @@ public class PIDSubsystem {
 		
 	} // end constructor
 	
+	/**
+	 * Computes the controller output for a new measurement, timed now.
+	 * 
+	 * @param input - The measured aspect ratio.
+	 * @return The controller output.
+	 */
 	public double calculateOutput(double input) {
+		return calculateOutput(input, System.nanoTime());
+	} // end calculateOutput
+	
+	/**
+	 * Computes the controller output for a new measurement. The time step is the time since the previous measurement, so
+	 * pass the capture time of the frame the measurement came from rather than the time the analysis finished.
+	 * 
+	 * The derivative is taken of the measurement rather than the error, so setpoint changes don't kick the output, and is
+	 * low-pass filtered. The integral is clamped to the integral limit and stops growing while the output is saturated. The
+	 * output is clamped to the output limit and may change by at most the rate limit per second.
+	 * 
+	 * @param input - The measured aspect ratio.
+	 * @param timestamp - Time of the measurement, from System.nanoTime().
+	 * @return The controller output.
+	 */
+	public double calculateOutput(double input, long timestamp) {
+		
+		double deltaT = lastNanos == 0 ? 0 : (timestamp - lastNanos) / 1e9;
+		boolean first = lastNanos == 0;
 		
-		endTime = System.currentTimeMillis();
-		double deltaT = endTime - startTime;
+		// The same frame twice, or an out-of-order one, carries no new information.
+		if (!first && deltaT <= 0)
+			return output;
 		
+		lastNanos = timestamp;
 		error = setpoint - input;
 		
-		if ((Math.abs(setpoint-input))/setpoint < 0.01)
-			return 0;
+		if (!first) {
+			
+			double rawDerivative = -(input - preInput) / deltaT;
+			double alpha = deltaT / (derivativeFilter + deltaT);
+			derivative += alpha * (rawDerivative - derivative);
+			
+		} // end if
+		
+		preError = error;
+		preInput = input;
+		
+		double target;
 		
-		integral = integral + (error * deltaT);
-		derivative = (error - preError) / deltaT; 
+		if ((Math.abs(setpoint-input))/setpoint < deadband)
+			target = 0;
+		else {
+			
+			double candidateIntegral = clamp(integral + (error * deltaT), integralLimit);
+			target = (kp * error) + (ki * candidateIntegral) + (kd * derivative);
+			
+			// Anti-windup: only keep integrating if that doesn't push a saturated output further into saturation.
+			if (Math.abs(target) < outputLimit || Math.signum(error) != Math.signum(target))
+				integral = candidateIntegral;
+			
+			target = (kp * error) + (ki * integral) + (kd * derivative);
+			
+		} // end if-else
 		
-		double output = (kp * error) + (ki * integral) + (kd * derivative);
+		target = clamp(target, outputLimit);
+		
+		if (!first) {
+			
+			double maxStep = outputRateLimit * deltaT;
+			target = output + clamp(target - output, maxStep);
+			
+		} // end if
+		
+		output = target;
 		
 		return output;
+		
 	} // end calculateOutput
 	
+	/**
+	 * Forgets the controller's history - the integral, the derivative and the last measurement. Use when the loop is (re-)engaged.
+	 */
+	public void reset() {
+		
+		integral = 0;
+		derivative = 0;
+		output = 0;
+		preError = 0;
+		lastNanos = 0;
+		
+	} // end reset
+	
+	/**
+	 * Sets the limits that keep the controller well-behaved. Use Double.POSITIVE_INFINITY for no limit.
+	 * 
+	 * @param integralLimit - Largest magnitude of the integral term's accumulator.
+	 * @param outputLimit - Largest magnitude of the output.
+	 * @param outputRateLimit - Largest change of the output per second.
+	 */
+	public void setLimits(double integralLimit, double outputLimit, double outputRateLimit) {
+		
+		this.integralLimit = integralLimit;
+		this.outputLimit = outputLimit;
+		this.outputRateLimit = outputRateLimit;
+		
+	} // end setLimits
+	
+	/**
+	 * @param seconds - Time constant of the low-pass filter on the derivative term. 0 for no filtering.
+	 */
+	public void setDerivativeFilter(double seconds) {
+		derivativeFilter = seconds;
+	} // end setDerivativeFilter
+	
+	/**
+	 * @return The error of the last update.
+	 */
+	public double getPreviousError() {
+		return preError;
+	} // end getPreviousError
+	
+	private static double clamp(double value, double limit) {
+		return Math.max(-limit, Math.min(limit, value));
+	} // end clamp
+	
 	public boolean setpointReached() {
 		
 		double percentDifference = (setpoint - Math.abs(error)) / setpoint;
@@ -86,10 +198,10 @@ public class PIDSubsystem {
 	} // end setSetpoint
 	
 	/**
-	 * Tells the PID subsystem to set the start time.
+	 * Tells the PID subsystem to measure the next time step from now, e.g. after the loop was paused, without forgetting the integral.
 	 */
 	public void setTime() {
-		startTime = System.currentTimeMillis();
+		lastNanos = System.nanoTime();
 	} // end setTime
 	
 	/**
@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Plays back the frames stored by a RawFrameRecorder. Plugs in anywhere a VideoCapture is used, so offline re-analysis runs on the
+ * original pixels instead of the annotated, lossily encoded videos.
+ *
+ * The frame headers are scanned when the reader is created, so any frame can be reached directly: set CAP_PROP_POS_FRAMES, or
+ * use getTimestamp() and getRecord() to match frames with capture times and experiment log records. Only complete frames are
+ * read from a file cut short by a crash. CAP_PROP_FRAME_WIDTH and CAP_PROP_FRAME_HEIGHT report the size of the recorded frames.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class RawFrameReader extends VideoCapture {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final long pngSignature = 0x89504E470D0A1A0AL;
+	private static final int ihdr = 0x49484452; // "IHDR"
+
+	private final FileChannel channel;
+	private final int compressionLevel;
+	private long[] offsets = new long[1024]; // file position of each frame's PNG data
+	private int[] lengths = new int[1024];
+	private long[] timestamps = new long[1024];
+	private long[] records = new long[1024];
+	private int frames = 0;
+	private int width = 0; // frame size, from the first frame's PNG header
+	private int height = 0;
+
+	private final MatOfByte encoded = new MatOfByte();
+	private int position = 0; // the frame grab() moves to
+	private int grabbed = -1; // the frame retrieve() decodes
+	private boolean opened = true;
+
+	/**
+	 * Constructor. Opens the file and indexes its frames.
+	 *
+	 * @param file - A file written by RawFrameRecorder.
+	 * @throws IOException If the file cannot be read or was not written by RawFrameRecorder.
+	 */
+	public RawFrameReader(File file) throws IOException {
+
+		super();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+
+			ByteBuffer header = ByteBuffer.allocate(RawFrameRecorder.headerLength).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(header, 0);
+
+			if (header.getInt(0) != RawFrameRecorder.magic)
+				throw new IOException(file + " is not a raw frame file.");
+
+			if (header.getInt(4) > RawFrameRecorder.version)
+				throw new IOException(file + " was written by a newer version (format " + header.getInt(4) + ").");
+
+			compressionLevel = header.getInt(12);
+			scan(header.getInt(8));
+			readFrameSize();
+
+		} catch (IOException e) {
+
+			channel.close();
+			throw e;
+
+		} // end try-catch
+
+	} // end constructor
+
+	/*
+	 * VideoCapture
+	 */
+
+	@Override
+	public boolean isOpened() {
+		return opened;
+	} // end isOpened
+
+	@Override
+	public boolean grab() {
+
+		if (!opened || position >= frames)
+			return false;
+
+		grabbed = position++;
+		return true;
+
+	} // end grab
+
+	@Override
+	public boolean retrieve(Mat image) {
+
+		if (grabbed < 0)
+			return false;
+
+		try {
+			return read(grabbed, image);
+		} catch (IOException e) {
+
+			e.printStackTrace();
+			return false;
+
+		} // end try-catch
+
+	} // end retrieve
+
+	@Override
+	public boolean retrieve(Mat image, int flag) {
+		return retrieve(image);
+	} // end retrieve
+
+	@Override
+	public boolean read(Mat image) {
+		return grab() && retrieve(image);
+	} // end read
+
+	@Override
+	public double get(int propId) {
+
+		switch (propId) {
+
+			case Videoio.CAP_PROP_FRAME_WIDTH: return width;
+			case Videoio.CAP_PROP_FRAME_HEIGHT: return height;
+			case Videoio.CAP_PROP_FPS: return getFrameRate();
+			case Videoio.CAP_PROP_POS_FRAMES: return position;
+			case Videoio.CAP_PROP_FRAME_COUNT: return frames;
+			default: return 0;
+
+		} // end switch
+
+	} // end get
+
+	@Override
+	public boolean set(int propId, double value) {
+
+		if (propId != Videoio.CAP_PROP_POS_FRAMES || value < 0 || value > frames)
+			return false;
+
+		position = (int) value;
+		grabbed = -1;
+
+		return true;
+
+	} // end set
+
+	@Override
+	public void release() {
+
+		opened = false;
+		encoded.release();
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} // end try-catch
+
+		super.release();
+
+	} // end release
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @return The number of complete frames in the file.
+	 */
+	public int size() {
+		return frames;
+	} // end size
+
+	/**
+	 * @return The PNG compression level the file was written with.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	} // end getCompressionLevel
+
+	/**
+	 * @return The average frame rate over the file, from the capture timestamps, or 0 with fewer than two frames.
+	 */
+	public double getFrameRate() {
+
+		if (frames < 2 || timestamps[frames - 1] <= timestamps[0])
+			return 0;
+
+		return (frames - 1) * 1e9 / (timestamps[frames - 1] - timestamps[0]);
+
+	} // end getFrameRate
+
+	/**
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return The frame's capture time, in nanoseconds from the start of the experiment.
+	 */
+	public long getTimestamp(int frame) {
+		return timestamps[frame];
+	} // end getTimestamp
+
+	/**
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return The index of the experiment log record measured from the frame, or -1 if there is none.
+	 */
+	public long getRecord(int frame) {
+		return records[frame];
+	} // end getRecord
+
+	/**
+	 * Decodes one frame.
+	 *
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @param image - Receives the frame, exactly as it was recorded.
+	 * @return True if the frame was decoded.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public boolean read(int frame, Mat image) throws IOException {
+
+		byte[] data = new byte[lengths[frame]];
+		readFully(ByteBuffer.wrap(data), offsets[frame]);
+
+		encoded.fromArray(data);
+		Mat decoded = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_UNCHANGED);
+
+		try {
+
+			if (decoded.empty())
+				return false;
+
+			decoded.copyTo(image);
+			return true;
+
+		} finally {
+			decoded.release();
+		} // end try-finally
+
+	} // end read
+
+	/**
+	 * Walks the frame headers from the start of the file, recording where each frame's data is. Stops at the first incomplete frame.
+	 */
+	private void scan(long start) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(RawFrameRecorder.frameHeaderLength).order(ByteOrder.LITTLE_ENDIAN);
+		long size = channel.size();
+		long at = start;
+
+		while (at + RawFrameRecorder.frameHeaderLength <= size) {
+
+			header.clear();
+			readFully(header, at);
+
+			int length = header.getInt(16);
+			long dataStart = at + RawFrameRecorder.frameHeaderLength;
+
+			if (length < 0 || dataStart + length > size)
+				break;
+
+			if (frames == offsets.length) {
+
+				offsets = Arrays.copyOf(offsets, frames * 2);
+				lengths = Arrays.copyOf(lengths, frames * 2);
+				timestamps = Arrays.copyOf(timestamps, frames * 2);
+				records = Arrays.copyOf(records, frames * 2);
+
+			} // end if
+
+			offsets[frames] = dataStart;
+			lengths[frames] = length;
+			timestamps[frames] = header.getLong(0);
+			records[frames] = header.getLong(8);
+			frames++;
+
+			at = dataStart + length;
+
+		} // end while
+
+	} // end scan
+
+	/**
+	 * Takes the frame size from the IHDR chunk at the start of the first frame's PNG data, which holds the width and height as
+	 * big-endian ints after the 8-byte signature and the chunk's length and type. Every frame of a file has the camera's size, and
+	 * this needs no decoding. The size stays 0 for a file without frames.
+	 */
+	private void readFrameSize() throws IOException {
+
+		if (frames == 0 || lengths[0] < 24)
+			return;
+
+		ByteBuffer png = ByteBuffer.allocate(24).order(ByteOrder.BIG_ENDIAN);
+		readFully(png, offsets[0]);
+
+		if (png.getLong(0) != pngSignature || png.getInt(12) != ihdr)
+			throw new IOException("The first frame is not PNG data.");
+
+		width = png.getInt(16);
+		height = png.getInt(20);
+
+	} // end readFrameSize
+
+	private void readFully(ByteBuffer buffer, long from) throws IOException {
+
+		while (buffer.hasRemaining()) {
+
+			if (channel.read(buffer, from + buffer.position()) < 0)
+				throw new IOException("Raw frame file ends early.");
+
+		} // end while
+
+	} // end readFully
+
+} // end RawFrameReader
@@ -0,0 +1,395 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Stores the camera's frames losslessly, exactly as they were analyzed, so they can be re-analyzed later with better algorithms.
+ * Read them back with RawFrameReader.
+ *
+ * Each frame is compressed as a PNG - delta filtering plus deflate - by a pool of encoder threads, and a writer thread appends
+ * the results to a single container file in capture order. The compression level trades CPU for disk bandwidth: 0 only filters
+ * and stores, 9 packs tightest and costs the most time. With n encoder threads each frame may take up to n frame intervals to
+ * encode, so the pool can be sized to keep up with the camera at any level.
+ *
+ * Frames are copied into a fixed pool of Mats, as in StreamingVideoRecorder, so memory use is bounded by the pool. When every
+ * pooled frame is still being encoded, the OverflowPolicy decides: BLOCK waits, both DROP policies discard the new frame (frames
+ * already handed to an encoder are never taken back).
+ *
+ * The file starts with a 16-byte header: the magic number "ATTR", the format version, the length of the header and the
+ * compression level (ints). Each frame follows as its capture timestamp and experiment log record (longs), the length of the PNG
+ * data (int) and the PNG data. All numbers are little-endian. A file cut short by a crash is readable up to its last complete frame.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class RawFrameRecorder {
+
+	/*
+	 * Local Class Variables
+	 */
+	static final int magic = 0x52545441; // "ATTR" when read as little-endian bytes
+	static final int version = 1;
+	static final int headerLength = 16;
+	static final int frameHeaderLength = 20;
+
+	private final File file;
+	private final FileChannel channel;
+	private final MatOfInt parameters;
+	private final ExecutorService encoders;
+	private final ArrayBlockingQueue<Mat> freeFrames;
+	private final ArrayBlockingQueue<Future<Encoded>> pendingFrames; // in capture order
+	private final Future<Encoded> endOfStream = new FutureTask<Encoded>(new Runnable() {
+		public void run() {
+		}
+	}, null);
+	private final StreamingVideoRecorder.OverflowPolicy policy;
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private final Thread writerThread;
+	private final ByteBuffer frameHeader = ByteBuffer.allocate(frameHeaderLength).order(ByteOrder.LITTLE_ENDIAN);
+
+	private volatile long framesWritten = 0;
+	private volatile long bytesWritten = 0;
+	private volatile boolean closed = false;
+	private volatile boolean failed = false; // set by the writer thread when the file cannot be written
+
+	/**
+	 * Constructor. Creates the file and starts the encoder and writer threads.
+	 *
+	 * @param file - The container file, conventionally ending in ".attraw".
+	 * @param compressionLevel - PNG compression level, from 0 (fastest) to 9 (smallest).
+	 * @param encoderThreads - Number of frames compressed at once.
+	 * @param capacity - Number of frames that may be waiting to be compressed or written at once.
+	 * @param policy - What to do when all of those frames are in use.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public RawFrameRecorder(File file, int compressionLevel, int encoderThreads, int capacity,
+			StreamingVideoRecorder.OverflowPolicy policy) throws IOException {
+
+		this.file = file;
+		this.policy = policy;
+
+		int level = Math.max(0, Math.min(9, compressionLevel));
+		parameters = new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, level);
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		try {
+
+			ByteBuffer header = ByteBuffer.allocate(headerLength).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(magic).putInt(version).putInt(headerLength).putInt(level);
+			header.flip();
+
+			while (header.hasRemaining())
+				channel.write(header);
+
+		} catch (IOException e) {
+
+			channel.close();
+			parameters.release();
+			throw e;
+
+		} // end try-catch
+
+		freeFrames = new ArrayBlockingQueue<Mat>(capacity);
+		pendingFrames = new ArrayBlockingQueue<Future<Encoded>>(capacity + 1); // +1 leaves room for the end-of-stream marker.
+
+		for (int z = 0; z < capacity; z++)
+			freeFrames.add(new Mat());
+
+		encoders = Executors.newFixedThreadPool(Math.max(1, encoderThreads), new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+
+				Thread thread = new Thread(task, "Raw Frame Encoder");
+				thread.setDaemon(true);
+				return thread;
+
+			}
+		});
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeFrames();
+			}
+		}, "Raw Frame Writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Queues a frame for compression. The frame is copied, so the caller may reuse its Mat immediately.
+	 *
+	 * @param frame - The frame, as analyzed.
+	 * @param timestamp - Capture time of the frame, in nanoseconds from the start of the experiment.
+	 * @param record - Index of the experiment log record measured from the frame, or -1.
+	 * @return True if the frame was queued, false if it was dropped.
+	 */
+	public boolean record(Mat frame, final long timestamp, final long record) {
+
+		if (closed || failed)
+			return false;
+
+		Mat copy = freeFrames.poll();
+
+		try {
+
+			if (copy == null) {
+
+				if (policy != StreamingVideoRecorder.OverflowPolicy.BLOCK) {
+
+					droppedFrames.incrementAndGet();
+					return false;
+
+				} // end if
+
+				copy = freeFrames.take();
+
+			} // end if
+
+			// Compressed frames waiting to be written hold no pooled Mat, so the queue to the writer can fill up on its own.
+			if (policy != StreamingVideoRecorder.OverflowPolicy.BLOCK && pendingFrames.remainingCapacity() <= 1) {
+
+				freeFrames.offer(copy);
+				droppedFrames.incrementAndGet();
+				return false;
+
+			} // end if
+
+			frame.copyTo(copy);
+
+			final Mat pooled = copy;
+			pendingFrames.put(encoders.submit(new Callable<Encoded>() {
+				public Encoded call() {
+					return encode(pooled, timestamp, record);
+				}
+			}));
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			return false;
+
+		} // end try-catch
+
+		return true;
+
+	} // end record
+
+	/**
+	 * Waits for the queued frames to be compressed and written, then closes the file and frees the frame pool.
+	 */
+	public void close() {
+
+		if (closed)
+			return;
+
+		closed = true;
+
+		try {
+
+			// A writer that stopped after a failure no longer takes anything from the queue.
+			while (writerThread.isAlive() && !pendingFrames.offer(endOfStream, 100, TimeUnit.MILLISECONDS))
+				continue;
+
+			writerThread.join();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} // end try-catch
+
+		encoders.shutdown();
+
+		for (Mat frame : freeFrames)
+			frame.release();
+
+		parameters.release();
+
+		if (droppedFrames.get() > 0)
+			System.out.println("WARNING: raw frame recorder dropped " + droppedFrames.get() + " frames.");
+
+	} // end close
+
+	/**
+	 * @return The container file.
+	 */
+	public File getFile() {
+		return file;
+	} // end getFile
+
+	/**
+	 * @return The number of frames discarded by the overflow policy so far.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	} // end getDroppedFrames
+
+	/**
+	 * @return The number of frames written to the file so far.
+	 */
+	public long getFramesWritten() {
+		return framesWritten;
+	} // end getFramesWritten
+
+	/**
+	 * @return The number of bytes written to the file so far, header included.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	} // end getBytesWritten
+
+	/**
+	 * Body of an encoder task. The pooled frame is returned as soon as it is compressed.
+	 */
+	private Encoded encode(Mat frame, long timestamp, long record) {
+
+		MatOfByte buffer = new MatOfByte();
+
+		try {
+
+			if (!Imgcodecs.imencode(".png", frame, buffer, parameters))
+				throw new IllegalStateException("Could not encode a " + frame.cols() + "x" + frame.rows() + " frame as PNG.");
+
+			return new Encoded(timestamp, record, buffer.toArray());
+
+		} finally {
+
+			buffer.release();
+			freeFrames.offer(frame);
+
+		} // end try-finally
+
+	} // end encode
+
+	/**
+	 * Body of the writer thread. Takes the encoder tasks in the order the frames were recorded, so the file is in capture order
+	 * however the encoders finish.
+	 */
+	private void writeFrames() {
+
+		long written = headerLength;
+
+		try {
+
+			while (true) {
+
+				Future<Encoded> pending = pendingFrames.take();
+
+				if (pending == endOfStream)
+					break;
+
+				Encoded encoded;
+
+				try {
+					encoded = pending.get();
+				} catch (ExecutionException e) {
+
+					e.getCause().printStackTrace();
+					continue;
+
+				} // end try-catch
+
+				frameHeader.clear();
+				frameHeader.putLong(encoded.timestamp).putLong(encoded.record).putInt(encoded.data.length);
+				frameHeader.flip();
+
+				ByteBuffer data = ByteBuffer.wrap(encoded.data);
+
+				while (frameHeader.hasRemaining() || data.hasRemaining())
+					channel.write(new ByteBuffer[] {frameHeader, data});
+
+				written += frameHeaderLength + encoded.data.length;
+				bytesWritten = written;
+				framesWritten++;
+
+			} // end while
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+
+			e.printStackTrace();
+			System.out.println("WARNING: could not write " + file + "; raw frame capture stopped.");
+			failed = true;
+			drain();
+
+		} finally {
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try-catch
+
+		} // end try-catch-finally
+
+	} // end writeFrames
+
+	/**
+	 * Discards the frames still queued after a write failure, so record() and close() never wait on a writer that has stopped.
+	 */
+	private void drain() {
+
+		Future<Encoded> pending;
+
+		while ((pending = pendingFrames.poll()) != null) {
+
+			if (pending == endOfStream)
+				continue;
+
+			try {
+				pending.get();
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				return;
+
+			} catch (ExecutionException e) {
+				// The frame is discarded either way.
+			} // end try-catch
+
+		} // end while
+
+	} // end drain
+
+	/**
+	 * A compressed frame, ready to be written.
+	 */
+	private static class Encoded {
+
+		private final long timestamp;
+		private final long record;
+		private final byte[] data;
+
+		private Encoded(long timestamp, long record, byte[] data) {
+
+			this.timestamp = timestamp;
+			this.record = record;
+			this.data = data;
+
+		} // end constructor
+
+	} // end Encoded
+
+} // end RawFrameRecorder
@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the files of an experiment's runs consistent on disk while the experiment is running.
+ *
+ * Each file of a run is written under a staging name, with ".part" before its extension (e.g. "Compression Video Output of Run
+ * 3.part.avi"), and moved to its final name in one atomic rename once the run is complete. Directories, such as a video
+ * archive, are staged the same way with ".part" appended. A file without ".part" is therefore always whole. After a crash only
+ * the run in progress is left staged, and its files are recovered under their final names the next time a journal is opened on
+ * the directory - the experiment log is readable up to its last complete record.
+ *
+ * While a run is in progress its experiment log is forced to disk several times a second, so a crash or power failure loses at
+ * most the last few frames. Finishing a run - draining the recorders, closing the log, exporting the CSV files and renaming
+ * everything - happens on the journal's own threads, so the experiment can carry on with the next run right away.
+ *
+ * Run numbers continue from the highest one already in the directory, so a session resumed after a crash never overwrites the
+ * runs it saved before.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class RunJournal {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final Pattern runNumber = Pattern.compile(" of Run (\\d+)\\.");
+	private static final String partMarker = ".part";
+
+	private final File directory;
+	private final ScheduledExecutorService executor;
+	private final CopyOnWriteArrayList<ExperimentLog> openLogs = new CopyOnWriteArrayList<ExperimentLog>();
+	private final List<File> staged = new ArrayList<File>(); // final names of the current run's files - guarded by this
+	private final long syncInterval = 250; // milliseconds between forcing the open logs to disk
+	private int lastRun = 0; // guarded by this
+
+	/**
+	 * Constructor. Creates the directory if needed, recovers the files of any run that was interrupted and finds the highest run
+	 * number in use.
+	 *
+	 * @param directory - The session's directory.
+	 */
+	public RunJournal(File directory) {
+
+		this.directory = directory;
+
+		if (!directory.exists())
+			directory.mkdirs();
+
+		File[] files = directory.listFiles();
+
+		if (files != null) {
+
+			for (File file : files) {
+
+				Matcher matcher = runNumber.matcher(file.getName());
+
+				if (matcher.find())
+					lastRun = Math.max(lastRun, Integer.parseInt(matcher.group(1)));
+
+				if (isStaged(file))
+					recover(file);
+
+			} // end for
+
+		} // end if
+
+		// Two threads, so forcing the logs to disk carries on while a finished run's video is drained.
+		executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+
+				Thread thread = new Thread(task, "Run Journal");
+				thread.setDaemon(true);
+				return thread;
+
+			}
+		});
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				syncLogs();
+			}
+		}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @return The session's directory.
+	 */
+	public File getDirectory() {
+		return directory;
+	} // end getDirectory
+
+	/**
+	 * Reserves the next run number.
+	 *
+	 * @return One more than the highest run number in the directory or handed out before.
+	 */
+	public synchronized int nextRun() {
+		return ++lastRun;
+	} // end nextRun
+
+	/**
+	 * Adds a file to the current run.
+	 *
+	 * @param name - The file's final name, with its extension.
+	 * @return The staging file to write instead. It is moved to the final name when the run is finished.
+	 */
+	public synchronized File stage(String name) {
+
+		File target = new File(directory, name);
+		staged.add(target);
+
+		return partFile(target);
+
+	} // end stage
+
+	/**
+	 * Forces a log to disk periodically until its run is finished.
+	 *
+	 * @param log - A log written to a file from stage().
+	 */
+	public void watch(ExperimentLog log) {
+		openLogs.add(log);
+	} // end watch
+
+	/**
+	 * Finishes the current run in the background: closes the recorders and the log, moves the run's files to their final names
+	 * and exports the log's compression and relaxation data as CSV files. Returns right away; the next run may be staged at once.
+	 *
+	 * @param recorder - The run's video recorder, or null.
+	 * @param rawRecorder - The run's raw frame recorder, or null.
+	 * @param log - The run's experiment log, or null if no CSV files should be exported.
+	 * @param compressionName - Name of the compression data file, without extension.
+	 * @param relaxationName - Name of the relaxation data file, without extension.
+	 */
+	public synchronized void finishRun(final StreamingVideoRecorder recorder, final RawFrameRecorder rawRecorder,
+			final ExperimentLog log, final String compressionName, final String relaxationName) {
+
+		final List<File> files = new ArrayList<File>(staged);
+		staged.clear();
+
+		if (log != null)
+			openLogs.remove(log);
+
+		executor.execute(new Runnable() {
+			public void run() {
+				finish(recorder, rawRecorder, log, files, compressionName, relaxationName);
+			}
+		});
+
+	} // end finishRun
+
+	/**
+	 * Stops taking new runs. Runs already handed to finishRun() are still finished.
+	 */
+	public void close() {
+		executor.shutdown();
+	} // end close
+
+	/**
+	 * Waits for the runs handed to finishRun() to be finished, after close().
+	 *
+	 * @param timeout - The longest time to wait.
+	 * @param unit - The unit of timeout.
+	 * @return True if every run was finished, false if the time ran out.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	} // end awaitFinished
+
+	/**
+	 * Body of a finishRun() task. The log is moved into place before it is read, because a file that is memory-mapped cannot be
+	 * renamed on Windows.
+	 */
+	private void finish(StreamingVideoRecorder recorder, RawFrameRecorder rawRecorder, ExperimentLog log, List<File> files,
+			String compressionName, String relaxationName) {
+
+		if (recorder != null)
+			recorder.close();
+
+		if (rawRecorder != null)
+			rawRecorder.close();
+
+		if (log != null) {
+
+			try {
+				log.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try-catch
+
+		} // end if
+
+		for (File file : files)
+			commit(file);
+
+		if (log != null) {
+
+			File compression = new File(directory, compressionName + ".csv");
+			File relaxation = new File(directory, relaxationName + ".csv");
+
+			try {
+
+				ExperimentLogReader reader = new ExperimentLogReader(finalFile(log.getFile()));
+
+				try {
+
+					reader.exportCSV(partFile(compression), -1, MeasurementTable.PHASE_COMPRESSION);
+					reader.exportCSV(partFile(relaxation), -1, MeasurementTable.PHASE_RELAXATION);
+
+				} finally {
+					reader.close();
+				} // end try-finally
+
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try-catch
+
+			commit(compression);
+			commit(relaxation);
+
+		} // end if
+
+		System.out.println("Run saved to " + directory + ".");
+
+	} // end finish
+
+	/**
+	 * Moves a staged file to its final name, replacing any file already there. Atomic wherever the file system allows it.
+	 */
+	private void commit(File target) {
+
+		File part = partFile(target);
+
+		if (!part.exists())
+			return; // e.g. a video that never received a frame
+
+		try {
+
+			try {
+				Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} // end try-catch
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		} // end try-catch
+
+	} // end commit
+
+	/**
+	 * Moves a file left staged by an interrupted run to its final name, unless a finished file already has that name.
+	 */
+	private void recover(File part) {
+
+		File target = finalFile(part);
+
+		if (target.exists()) {
+
+			System.out.println("WARNING: " + part + " was left by an interrupted run; " + target.getName() + " already exists.");
+			return;
+
+		} // end if
+
+		commit(target);
+		System.out.println("Recovered " + target + " from an interrupted run.");
+
+	} // end recover
+
+	/**
+	 * Forces every open log's written records to disk.
+	 */
+	private void syncLogs() {
+
+		for (ExperimentLog log : openLogs) {
+
+			try {
+				log.sync();
+			} catch (ClosedChannelException e) {
+				openLogs.remove(log);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try-catch
+
+		} // end for
+
+	} // end syncLogs
+
+	/**
+	 * @return The staging file for a final file: ".part" inserted before the extension, so the file keeps its type.
+	 */
+	private static File partFile(File target) {
+
+		String name = target.getName();
+		int dot = name.lastIndexOf('.');
+
+		if (dot < 0)
+			return new File(target.getParentFile(), name + partMarker);
+
+		return new File(target.getParentFile(), name.substring(0, dot) + partMarker + name.substring(dot));
+
+	} // end partFile
+
+	/**
+	 * @return The final file for a staging file.
+	 */
+	private static File finalFile(File part) {
+
+		String name = part.getName();
+		int marker = name.lastIndexOf(partMarker);
+
+		return new File(part.getParentFile(), name.substring(0, marker) + name.substring(marker + partMarker.length()));
+
+	} // end finalFile
+
+	/**
+	 * @return True for a file or directory still under its staging name - part of a run in progress, or of one a crash interrupted.
+	 */
+	static boolean isStaged(File file) {
+
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+
+		return name.endsWith(partMarker) || (dot > 0 && name.substring(0, dot).endsWith(partMarker));
+
+	} // end isStaged
+
+} // end RunJournal
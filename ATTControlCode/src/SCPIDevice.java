@@ -0,0 +1,29 @@
+import java.io.IOException;
+
+/**
+ * An instrument that is controlled with SCPI commands. Implemented by the real GPIB connection and by an in-process simulation,
+ * so everything above the bus can run without the hardware.
+ * 
+ * @author Jarrod Risley
+ *
+ */
+public interface SCPIDevice {
+
+	/**
+	 * Sends one message. The message may hold several commands joined with ";:".
+	 * 
+	 * @param command - The SCPI message.
+	 * @throws IOException If the bus transaction fails.
+	 */
+	public void write(String command) throws IOException;
+	
+	/**
+	 * Sends a query and reads the answer.
+	 * 
+	 * @param command - The SCPI query, e.g. "frequency?".
+	 * @return The instrument's answer.
+	 * @throws IOException If the bus transaction fails.
+	 */
+	public String query(String command) throws IOException;
+	
+} // end SCPIDevice
@@ -0,0 +1,46 @@
+/**
+ * The Agilent control code running against a {@link SimulatedSCPIDevice} instead of the GPIB bus. Everything above the bus -
+ * the command queue, the sweeps, the hardware-timed sweep - is the real code, so sweep throughput and control-loop latency
+ * measured with it are those of the real program minus the instrument.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class SimulatedFunctionGenerator extends AgilentFunctionGenerator {
+
+	/*
+	 * Local Class Variables
+	 */
+	private final SimulatedSCPIDevice simulation;
+
+	/**
+	 * Constructor. Uses latencies typical of the real bus.
+	 */
+	public SimulatedFunctionGenerator() {
+		this(new SimulatedSCPIDevice());
+	} // end constructor
+
+	/**
+	 * Constructor
+	 *
+	 * @param simulation - The simulated instrument to drive, e.g. one with zero latency for throughput tests.
+	 */
+	public SimulatedFunctionGenerator(SimulatedSCPIDevice simulation) {
+
+		super(simulation);
+		this.simulation = simulation;
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @return The simulated instrument, e.g. to read what is actually at its output.
+	 */
+	public SimulatedSCPIDevice getSimulation() {
+		return simulation;
+	} // end getSimulation
+
+} // end SimulatedFunctionGenerator
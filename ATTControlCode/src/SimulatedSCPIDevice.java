@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in for the Agilent 33220A on the GPIB bus. Keeps the instrument state the control code uses (carrier
+ * amplitude and frequency, the AM settings and the volatile arbitrary waveform), answers queries in the instrument's number
+ * format, and takes a configurable amount of time per transaction so bus-bound code paths can be timed without the hardware.
+ *
+ * Commands it does not understand are not fatal, just as on the real instrument: they go on the error queue, which can be read
+ * with "system:error?". A query it does not understand gets no answer, which the caller sees as a timeout.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class SimulatedSCPIDevice implements SCPIDevice {
+
+	/*
+	 * Local Class Variables
+	 */
+	private static final String identity = "Agilent Technologies,33220A,SIMULATED,2.02-2.02-22-2";
+
+	private final long transactionLatency; // nanoseconds per bus transaction
+	private final long byteLatency; // nanoseconds per byte sent
+
+	private final ArrayDeque<String> errors = new ArrayDeque<String>();
+
+	private double amplitude = 0.1; // Volts peak-to-peak, the instrument's power-on default
+	private double frequency = 1000; // Hz
+	private boolean amEnabled = false;
+	private double amDepth = 100; // percent
+	private double amFrequency = 100; // Hz
+	private boolean amUserFunction = false;
+	private long amStart;
+	private double[] userWaveform = new double[0];
+
+	private long writeCount = 0;
+	private long queryCount = 0;
+
+	/**
+	 * Constructor. Uses latencies typical of a GPIB transaction to the real instrument.
+	 */
+	public SimulatedSCPIDevice() {
+		this(TimeUnit.MICROSECONDS.toNanos(1500), TimeUnit.MICROSECONDS.toNanos(10));
+	} // end constructor
+
+	/**
+	 * Constructor
+	 *
+	 * @param transactionLatency - Time every write or query takes, in nanoseconds.
+	 * @param byteLatency - Additional time per byte of the message, in nanoseconds.
+	 */
+	public SimulatedSCPIDevice(long transactionLatency, long byteLatency) {
+
+		this.transactionLatency = transactionLatency;
+		this.byteLatency = byteLatency;
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	@Override
+	public void write(String command) throws IOException {
+
+		occupyBus(command);
+
+		synchronized (this) {
+
+			writeCount++;
+
+			for (String part : command.split(";"))
+				execute(part.trim());
+
+		} // end synchronized
+
+	} // end write
+
+	@Override
+	public String query(String command) throws IOException {
+
+		occupyBus(command);
+
+		synchronized (this) {
+
+			queryCount++;
+
+			String header = command.trim().toLowerCase(Locale.ROOT);
+
+			if (header.startsWith(":"))
+				header = header.substring(1);
+
+			if (matches(header, "voltage?", "volt?"))
+				return format(amplitude);
+			else if (matches(header, "frequency?", "freq?"))
+				return format(frequency);
+			else if (matches(header, "am:state?", "am:stat?"))
+				return amEnabled ? "1" : "0";
+			else if (matches(header, "am:depth?", "am:dept?"))
+				return format(amDepth);
+			else if (header.equals("*idn?"))
+				return identity;
+			else if (header.equals("*opc?"))
+				return "1"; // every command has been carried out by the time write() returns
+			else if (matches(header, "system:error?", "syst:err?"))
+				return errors.isEmpty() ? "+0,\"No error\"" : errors.poll();
+
+			errors.add("-113,\"Undefined header\"");
+			throw new IOException("Timeout waiting for an answer to " + command);
+
+		} // end synchronized
+
+	} // end query
+
+	/**
+	 * Gets the amplitude actually at the output right now, i.e. the carrier amplitude with the AM envelope applied.
+	 *
+	 * @return Output amplitude in Volts peak-to-peak.
+	 */
+	public synchronized double getOutputAmplitude() {
+
+		if (!amEnabled)
+			return amplitude;
+
+		double cycles = (System.nanoTime() - amStart) * amFrequency / 1e9;
+		double phase = cycles - Math.floor(cycles);
+
+		return amplitude / 2 * (1 + amDepth / 100 * modulation(phase));
+
+	} // end getOutputAmplitude
+
+	/**
+	 * @return The carrier frequency in Hz.
+	 */
+	public synchronized double getOutputFrequency() {
+		return frequency;
+	} // end getOutputFrequency
+
+	/**
+	 * @return The number of write transactions received.
+	 */
+	public synchronized long getWriteCount() {
+		return writeCount;
+	} // end getWriteCount
+
+	/**
+	 * @return The number of queries answered or timed out.
+	 */
+	public synchronized long getQueryCount() {
+		return queryCount;
+	} // end getQueryCount
+
+	/**
+	 * Holds the caller for as long as the transaction would occupy the real bus.
+	 */
+	private void occupyBus(String command) {
+
+		long latency = transactionLatency + byteLatency * command.length();
+
+		if (latency > 0)
+			LockSupport.parkNanos(latency);
+
+	} // end occupyBus
+
+	/**
+	 * Carries out a single command. Called with the lock held.
+	 */
+	private void execute(String command) {
+
+		if (command.startsWith(":"))
+			command = command.substring(1);
+
+		if (command.isEmpty())
+			return;
+
+		int split = command.indexOf(' ');
+		String header = (split < 0 ? command : command.substring(0, split)).toLowerCase(Locale.ROOT);
+		String argument = split < 0 ? "" : command.substring(split + 1).trim();
+
+		try {
+
+			if (matches(header, "voltage", "volt"))
+				amplitude = number(argument);
+			else if (matches(header, "frequency", "freq"))
+				frequency = number(argument);
+			else if (matches(header, "am:state", "am:stat")) {
+
+				boolean enable = argument.equalsIgnoreCase("on") || argument.equals("1");
+
+				if (enable && !amEnabled)
+					amStart = System.nanoTime();
+
+				amEnabled = enable;
+
+			} else if (matches(header, "am:depth", "am:dept"))
+				amDepth = number(argument);
+			else if (matches(header, "am:internal:frequency", "am:int:freq"))
+				amFrequency = number(argument);
+			else if (matches(header, "am:internal:function", "am:int:func"))
+				amUserFunction = argument.toLowerCase(Locale.ROOT).startsWith("user");
+			else if (header.equals("data"))
+				userWaveform = waveform(argument);
+			else if (matches(header, "function:user", "func:user") || matches(header, "am:source", "am:sour")
+					|| matches(header, "system:beep", "syst:beep") || header.equals("*cls"))
+				return; // nothing the simulation needs to model
+			else if (header.equals("*rst")) {
+
+				amplitude = 0.1;
+				frequency = 1000;
+				amEnabled = false;
+
+			} else
+				errors.add("-113,\"Undefined header\"");
+
+		} catch (NumberFormatException e) {
+			errors.add("-104,\"Data type error\"");
+		} // end try-catch
+
+	} // end execute
+
+	/**
+	 * Value of the modulating waveform, between -1 and 1, at a phase between 0 and 1.
+	 */
+	private double modulation(double phase) {
+
+		if (!amUserFunction || userWaveform.length == 0)
+			return Math.sin(2 * Math.PI * phase);
+
+		double position = phase * userWaveform.length;
+		int index = (int) position;
+		double next = userWaveform[(index + 1) % userWaveform.length];
+
+		return userWaveform[index] + (next - userWaveform[index]) * (position - index);
+
+	} // end modulation
+
+	/**
+	 * Parses the argument of "data volatile, v1, v2, ...".
+	 */
+	private static double[] waveform(String argument) {
+
+		String[] fields = argument.split(",");
+		double[] points = new double[fields.length - 1];
+
+		for (int z = 1; z < fields.length; z++)
+			points[z - 1] = Double.parseDouble(fields[z].trim());
+
+		return points;
+
+	} // end waveform
+
+	/**
+	 * Parses a numeric argument, ignoring any unit after it, e.g. "0.45 VPP".
+	 */
+	private static double number(String argument) {
+
+		int space = argument.indexOf(' ');
+		return Double.parseDouble(space < 0 ? argument : argument.substring(0, space));
+
+	} // end number
+
+	private static boolean matches(String header, String longForm, String shortForm) {
+		return header.equals(longForm) || header.equals(shortForm);
+	} // end matches
+
+	/**
+	 * Formats a number the way the instrument answers queries, e.g. "+4.50000000000000E-01".
+	 */
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%+.14E", value);
+	} // end format
+
+} // end SimulatedSCPIDevice
@@ -0,0 +1,321 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoWriter;
+
+/**
+ * Encodes analyzed frames to disk on a background thread while an experiment is running.
+ *
+ * Every frame goes to the complete video and to either the compression or the relaxation video. The complete video is a
+ * VideoArchive - fixed-length segments with an index linking each frame to its capture time and experiment log record - so it
+ * can be seeked without decoding it from the start. Frames are copied into a
+ * fixed pool of Mats and handed to the writer thread through a bounded queue, so memory use is set by the queue capacity
+ * rather than by the length of the run. When the writer falls behind, the {@link OverflowPolicy} decides what gives.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class StreamingVideoRecorder {
+
+	/**
+	 * What to do with a new frame when every pooled frame is still waiting to be encoded.
+	 */
+	public enum OverflowPolicy {
+		/** Wait for the writer to free a frame. Keeps every frame at the cost of stalling the caller. */
+		BLOCK,
+		/** Discard the incoming frame. */
+		DROP_NEWEST,
+		/** Discard the oldest frame that has not been written yet. */
+		DROP_OLDEST
+	} // end OverflowPolicy
+
+	/*
+	 * Local Class Variables
+	 */
+	private final ArrayBlockingQueue<Entry> freeFrames;
+	private final ArrayBlockingQueue<Entry> pendingFrames;
+	private final Entry endOfStream = new Entry();
+	private final OverflowPolicy policy;
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private final Thread writerThread;
+
+	private final File archiveDirectory;
+	private final String compressionPath;
+	private final String relaxationPath;
+	private final int fourcc;
+	private final double fps;
+	private final double segmentSeconds;
+
+	private VideoArchive completeVideo;
+	private VideoWriter compressionVideo;
+	private VideoWriter relaxationVideo;
+	private long framesWritten;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor. Starts the writer thread; the video files are opened once the first frame arrives and its size is known.
+	 *
+	 * @param archiveDirectory - Directory of the VideoArchive receiving every frame.
+	 * @param compressionPath - File receiving the frames recorded while the droplet is compressing.
+	 * @param relaxationPath - File receiving the frames recorded while the droplet is relaxing.
+	 * @param fourcc - Codec, as given by VideoWriter.fourcc().
+	 * @param fps - Frame rate written into the files.
+	 * @param segmentSeconds - Length of the complete video's segments, in seconds at that frame rate.
+	 * @param capacity - Number of frames that may be waiting for the encoder at once.
+	 * @param policy - What to do when all of those frames are in use.
+	 */
+	public StreamingVideoRecorder(File archiveDirectory, String compressionPath, String relaxationPath, int fourcc, double fps,
+			double segmentSeconds, int capacity, OverflowPolicy policy) {
+
+		this.archiveDirectory = archiveDirectory;
+		this.compressionPath = compressionPath;
+		this.relaxationPath = relaxationPath;
+		this.fourcc = fourcc;
+		this.fps = fps;
+		this.segmentSeconds = segmentSeconds;
+		this.policy = policy;
+
+		freeFrames = new ArrayBlockingQueue<Entry>(capacity);
+		pendingFrames = new ArrayBlockingQueue<Entry>(capacity + 1); // +1 leaves room for the end-of-stream marker.
+
+		for (int z = 0; z < capacity; z++)
+			freeFrames.add(new Entry());
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeFrames();
+			}
+		}, "Video Recorder");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Queues a frame for encoding. The frame is copied, so the caller may reuse its Mat immediately.
+	 *
+	 * @param frame - The frame to record.
+	 * @param compressing - True if the frame belongs in the compression video, false for the relaxation video.
+	 * @param timestamp - Capture time of the frame, in nanoseconds from the start of the experiment.
+	 * @param record - Index of the experiment log record measured from the frame, or -1.
+	 * @return True if the frame was queued, false if it was dropped.
+	 */
+	public boolean record(Mat frame, boolean compressing, long timestamp, long record) {
+
+		if (closed)
+			return false;
+
+		Entry entry = freeFrames.poll();
+
+		try {
+
+			if (entry == null) {
+
+				switch (policy) {
+
+					case DROP_NEWEST:
+						droppedFrames.incrementAndGet();
+						return false;
+
+					case DROP_OLDEST:
+						entry = pendingFrames.poll();
+
+						if (entry == endOfStream) {
+							pendingFrames.put(entry);
+							return false;
+						} // end if
+
+						if (entry != null)
+							droppedFrames.incrementAndGet();
+						else
+							entry = freeFrames.take();
+
+						break;
+
+					default:
+						entry = freeFrames.take();
+						break;
+
+				} // end switch
+
+			} // end if
+
+			frame.copyTo(entry.frame);
+			entry.compressing = compressing;
+			entry.timestamp = timestamp;
+			entry.record = record;
+			pendingFrames.put(entry);
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			return false;
+
+		} // end try-catch
+
+		return true;
+
+	} // end record
+
+	/**
+	 * Waits for the queued frames to be encoded, then closes the video files and frees the frame pool. Since the files are
+	 * written as the run goes, this only has to flush what is still in the queue.
+	 */
+	public void close() {
+
+		if (closed)
+			return;
+
+		closed = true;
+
+		try {
+
+			pendingFrames.put(endOfStream);
+			writerThread.join();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} // end try-catch
+
+		for (Entry entry : freeFrames)
+			entry.frame.release();
+
+		if (droppedFrames.get() > 0)
+			System.out.println("WARNING: video recorder dropped " + droppedFrames.get() + " frames.");
+
+	} // end close
+
+	/**
+	 * @return The number of frames discarded by the overflow policy so far.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	} // end getDroppedFrames
+
+	/**
+	 * @return The number of frames handed to the encoder so far.
+	 */
+	public synchronized long getFramesWritten() {
+		return framesWritten;
+	} // end getFramesWritten
+
+	/**
+	 * Body of the writer thread.
+	 */
+	private void writeFrames() {
+
+		try {
+
+			while (true) {
+
+				Entry entry = pendingFrames.take();
+
+				if (entry == endOfStream)
+					break;
+
+				if (compressionVideo == null)
+					openVideos(entry.frame);
+
+				if (completeVideo != null) {
+
+					try {
+						completeVideo.write(entry.frame, entry.timestamp, entry.record, entry.compressing);
+					} catch (IOException e) {
+
+						e.printStackTrace();
+						closeArchive();
+
+					} // end try-catch
+
+				} // end if
+
+				if (entry.compressing)
+					compressionVideo.write(entry.frame);
+				else
+					relaxationVideo.write(entry.frame);
+
+				synchronized (this) {
+					framesWritten++;
+				} // end synchronized
+
+				freeFrames.put(entry);
+
+			} // end while
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+
+			closeArchive();
+
+			if (compressionVideo != null) {
+
+				compressionVideo.release();
+				relaxationVideo.release();
+
+			} // end if
+
+		} // end try-catch-finally
+
+	} // end writeFrames
+
+	/**
+	 * Opens the archive and the two phase videos using the size and color format of the first frame.
+	 */
+	private void openVideos(Mat firstFrame) {
+
+		boolean isColor = firstFrame.channels() > 1;
+
+		try {
+			completeVideo = new VideoArchive(archiveDirectory, fourcc, fps, segmentSeconds);
+		} catch (IOException e) {
+
+			e.printStackTrace();
+			System.out.println("WARNING: could not open " + archiveDirectory + " for writing.");
+
+		} // end try-catch
+
+		compressionVideo = new VideoWriter(compressionPath, fourcc, fps, firstFrame.size(), isColor);
+		relaxationVideo = new VideoWriter(relaxationPath, fourcc, fps, firstFrame.size(), isColor);
+
+	} // end openVideos
+
+	/**
+	 * Closes the archive, if it is open. After a failure the phase videos are still written.
+	 */
+	private void closeArchive() {
+
+		if (completeVideo != null) {
+
+			try {
+				completeVideo.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try-catch
+
+			completeVideo = null;
+
+		} // end if
+
+	} // end closeArchive
+
+	/**
+	 * A pooled frame and what the archive index records about it.
+	 */
+	private static class Entry {
+
+		private final Mat frame = new Mat();
+		private boolean compressing;
+		private long timestamp;
+		private long record;
+
+	} // end Entry
+
+} // end StreamingVideoRecorder
@@ -0,0 +1,27 @@
+/**
+ * Receives the progress of amplitude sweeps from a FunctionGenerator, so nobody has to poll for it. Callbacks arrive on whichever
+ * thread drives the sweep and must return quickly; hand anything slow or Swing-related off to another thread.
+ * 
+ * @author Jarrod Risley
+ *
+ */
+public interface SweepListener {
+
+	/**
+	 * A sweep has started.
+	 */
+	public void sweepStarted();
+	
+	/**
+	 * The sweep switched between compressing and relaxing the droplet.
+	 * 
+	 * @param compressing - True if the droplet is now being compressed.
+	 */
+	public void phaseChanged(boolean compressing);
+	
+	/**
+	 * The sweep is over.
+	 */
+	public void sweepFinished();
+	
+} // end SweepListener
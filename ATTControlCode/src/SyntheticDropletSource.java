@@ -0,0 +1,422 @@
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * A camera that films a simulated levitated droplet. Plugs in anywhere a VideoCapture is used, so the analysis, feedback and
+ * recording paths can be run and profiled without the camera, at any frame rate.
+ *
+ * Each frame shows a dark droplet on a bright background, as in the shadowgraph the real camera takes. The droplet is an oblate
+ * ellipse whose volume is conserved: its aspect ratio B/A follows the acoustic radiation pressure, which grows with the square of
+ * the transducer amplitude and falls off as the frequency moves away from resonance, and it relaxes towards that ratio with a
+ * first-order lag. On top of that the droplet oscillates in shape and bobs vertically. The frame is blurred and has Gaussian
+ * noise added. The noise is drawn once, from the source's own generator, into a field a little larger than the frame, and each
+ * frame adds it at a random offset, so OpenCV's shared random number generator is left alone.
+ *
+ * The exact geometry of every frame is appended to {@link #getGroundTruth()}, in the same columns and units (pixels) the analyzer
+ * reports, so its accuracy can be checked row by row. The table is emptied when it reaches its limit, so a source used as the
+ * app's camera for hours does not keep every frame.
+ *
+ * Time is simulated: frame n is at n / frameRate seconds. With real-time pacing on, grab() also waits for that moment, like a camera.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class SyntheticDropletSource extends VideoCapture {
+
+	/*
+	 * Local Class Variables
+	 */
+	private final FunctionGenerator generator; // null for a fixed amplitude and frequency
+	private final Random random = new Random(1);
+	private final MeasurementTable groundTruth = new MeasurementTable();
+
+	private final Mat canvas = new Mat(); // grayscale rendering
+	private final Mat noise = new Mat(); // noise field, noiseMargin larger than the frame on each axis
+	private final int noiseMargin = 64; // pixels the noise field can be shifted by
+	private final Mat noMask = new Mat();
+	private final Point center = new Point();
+	private final Size axes = new Size();
+	private final Scalar background = new Scalar(200);
+	private final Scalar droplet = new Scalar(40);
+	private final Size blurKernel = new Size();
+	private final int subPixelBits = 4; // ellipse is rendered with 1/16 pixel precision
+
+	private int width = 1920;
+	private int height = 1080;
+	private double frameRate;
+	private boolean realTime;
+	private long frameLimit = -1;
+	private boolean opened = true;
+
+	private double radius = 120; // pixels, radius of the sphere of the same volume
+	private double centerX = 960;
+	private double centerY = 540;
+	private double orientation = 0; // degrees
+	private double restAspectRatio = 1.0;
+	private double deformationGain = 1.3; // aspect ratio gained per Volt squared of amplitude, at resonance
+	private double resonanceFrequency = 27000; // Hz
+	private double resonanceBandwidth = 500; // Hz
+	private double responseTime = 0.2; // seconds, time constant of the shape's response to the sound field
+	private double oscillationFrequency = 0; // Hz, shape oscillation
+	private double oscillationAmplitude = 0; // fraction of the aspect ratio
+	private double bobFrequency = 0; // Hz, vertical motion
+	private double bobAmplitude = 0; // pixels
+	private double blurSigma = 1.0; // pixels
+	private double noiseSigma = 4.0; // gray levels
+	private double noiseFieldSigma = 0; // noiseSigma the noise field was drawn with
+	private int groundTruthLimit = 100000; // rows kept before the ground truth is emptied - over an hour at 25 fps
+	private double fixedAmplitude = 0.45; // Volts, used without a generator
+	private double fixedFrequency = 27000; // Hz, used without a generator
+
+	private long frameIndex = 0;
+	private long startNanos;
+	private double aspectRatio = Double.NaN; // current lagged aspect ratio
+	private boolean frameGrabbed = false;
+
+	/**
+	 * Constructor for a droplet in a fixed sound field. Frames are produced as fast as they are asked for.
+	 *
+	 * @param frameRate - Simulated frames per second.
+	 */
+	public SyntheticDropletSource(double frameRate) {
+		this(null, frameRate, false);
+	} // end constructor
+
+	/**
+	 * Constructor
+	 *
+	 * @param generator - The function generator whose commanded amplitude and frequency drive the droplet, or null for a fixed sound field.
+	 * @param frameRate - Simulated frames per second.
+	 * @param realTime - True to deliver frames no faster than the frame rate, like a camera.
+	 */
+	public SyntheticDropletSource(FunctionGenerator generator, double frameRate, boolean realTime) {
+
+		super();
+		this.generator = generator;
+		this.frameRate = frameRate;
+		this.realTime = realTime;
+		startNanos = System.nanoTime();
+
+	} // end constructor
+
+	/*
+	 * VideoCapture
+	 */
+
+	@Override
+	public boolean isOpened() {
+		return opened;
+	} // end isOpened
+
+	@Override
+	public boolean grab() {
+
+		if (!opened || (frameLimit >= 0 && frameIndex >= frameLimit))
+			return false;
+
+		if (realTime) {
+
+			long due = startNanos + Math.round(frameIndex * 1e9 / frameRate);
+			long wait = due - System.nanoTime();
+
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+
+		} // end if
+
+		render(frameIndex / frameRate);
+		frameIndex++;
+		frameGrabbed = true;
+
+		return true;
+
+	} // end grab
+
+	@Override
+	public boolean retrieve(Mat image) {
+
+		if (!frameGrabbed)
+			return false;
+
+		Imgproc.cvtColor(canvas, image, Imgproc.COLOR_GRAY2BGR);
+		return true;
+
+	} // end retrieve
+
+	@Override
+	public boolean retrieve(Mat image, int flag) {
+		return retrieve(image);
+	} // end retrieve
+
+	@Override
+	public boolean read(Mat image) {
+		return grab() && retrieve(image);
+	} // end read
+
+	@Override
+	public double get(int propId) {
+
+		switch (propId) {
+
+			case Videoio.CAP_PROP_FRAME_WIDTH: return width;
+			case Videoio.CAP_PROP_FRAME_HEIGHT: return height;
+			case Videoio.CAP_PROP_FPS: return frameRate;
+			case Videoio.CAP_PROP_POS_FRAMES: return frameIndex;
+			case Videoio.CAP_PROP_POS_MSEC: return frameIndex * 1000 / frameRate;
+			case Videoio.CAP_PROP_FRAME_COUNT: return frameLimit;
+			default: return 0;
+
+		} // end switch
+
+	} // end get
+
+	@Override
+	public boolean set(int propId, double value) {
+
+		switch (propId) {
+
+			case Videoio.CAP_PROP_FRAME_WIDTH: width = (int) value; return true;
+			case Videoio.CAP_PROP_FRAME_HEIGHT: height = (int) value; return true;
+			case Videoio.CAP_PROP_FPS: frameRate = value; return true;
+			case Videoio.CAP_PROP_POS_FRAMES:
+
+				frameIndex = (long) value;
+				startNanos = System.nanoTime() - Math.round(frameIndex * 1e9 / frameRate);
+				return true;
+
+			default: return false;
+
+		} // end switch
+
+	} // end set
+
+	@Override
+	public void release() {
+
+		opened = false;
+		canvas.release();
+		noise.release();
+		super.release();
+
+	} // end release
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @return One row per frame rendered: the true semi-axes A and B and B/A, the centroid height relative to the bottom edge of the
+	 * frame (LOC_REL_FRAME), the simulated time, amplitude and frequency. Lengths are in pixels. HEIGHT and LOC_REL_START need the
+	 * analyzer's calibration and are left as NaN. The table is emptied whenever it is full, so frame n is in row n modulo the limit.
+	 */
+	public MeasurementTable getGroundTruth() {
+		return groundTruth;
+	} // end getGroundTruth
+
+	/**
+	 * @param rows - Number of frames the ground truth holds before it is emptied and starts again.
+	 */
+	public void setGroundTruthLimit(int rows) {
+		groundTruthLimit = Math.max(1, rows);
+	} // end setGroundTruthLimit
+
+	/**
+	 * @return The aspect ratio B/A of the last frame rendered.
+	 */
+	public double getAspectRatio() {
+		return groundTruth.last(MeasurementTable.BA_RATIO);
+	} // end getAspectRatio
+
+	/**
+	 * @param frames - Number of frames after which grab() fails, like the end of a file. Negative for no limit.
+	 */
+	public void setFrameLimit(long frames) {
+		frameLimit = frames;
+	} // end setFrameLimit
+
+	/**
+	 * @param enabled - True to deliver frames no faster than the frame rate.
+	 */
+	public void setRealTime(boolean enabled) {
+
+		realTime = enabled;
+		startNanos = System.nanoTime() - Math.round(frameIndex * 1e9 / frameRate);
+
+	} // end setRealTime
+
+	/**
+	 * Sets the size and resting position of the droplet.
+	 *
+	 * @param radius - Radius of the sphere of the same volume, in pixels.
+	 * @param x - Horizontal position of the centroid, in pixels from the left edge.
+	 * @param y - Vertical position of the centroid, in pixels from the top edge.
+	 * @param orientation - Tilt of the A axis from vertical, in degrees.
+	 */
+	public void setDroplet(double radius, double x, double y, double orientation) {
+
+		this.radius = radius;
+		centerX = x;
+		centerY = y;
+		this.orientation = orientation;
+
+	} // end setDroplet
+
+	/**
+	 * Sets how the droplet's aspect ratio responds to the sound field: B/A = rest + gain * V^2 / (1 + ((f - f0) / bandwidth)^2).
+	 *
+	 * @param restAspectRatio - B/A with no sound.
+	 * @param deformationGain - B/A gained per Volt squared of amplitude at resonance.
+	 * @param resonanceFrequency - f0, in Hz.
+	 * @param resonanceBandwidth - Half width of the resonance, in Hz.
+	 * @param responseTime - Time constant of the shape's response, in seconds. 0 for an instant response.
+	 */
+	public void setDeformation(double restAspectRatio, double deformationGain, double resonanceFrequency, double resonanceBandwidth, double responseTime) {
+
+		this.restAspectRatio = restAspectRatio;
+		this.deformationGain = deformationGain;
+		this.resonanceFrequency = resonanceFrequency;
+		this.resonanceBandwidth = resonanceBandwidth;
+		this.responseTime = responseTime;
+
+	} // end setDeformation
+
+	/**
+	 * Sets the droplet's free oscillations.
+	 *
+	 * @param shapeFrequency - Frequency of the shape oscillation, in Hz.
+	 * @param shapeAmplitude - Amplitude of the shape oscillation, as a fraction of the aspect ratio.
+	 * @param bobFrequency - Frequency of the vertical motion, in Hz.
+	 * @param bobAmplitude - Amplitude of the vertical motion, in pixels.
+	 */
+	public void setOscillation(double shapeFrequency, double shapeAmplitude, double bobFrequency, double bobAmplitude) {
+
+		oscillationFrequency = shapeFrequency;
+		oscillationAmplitude = shapeAmplitude;
+		this.bobFrequency = bobFrequency;
+		this.bobAmplitude = bobAmplitude;
+
+	} // end setOscillation
+
+	/**
+	 * Sets the image quality.
+	 *
+	 * @param blurSigma - Standard deviation of the Gaussian blur, in pixels. 0 for a sharp image.
+	 * @param noiseSigma - Standard deviation of the added noise, in gray levels. 0 for no noise.
+	 */
+	public void setImageQuality(double blurSigma, double noiseSigma) {
+
+		this.blurSigma = blurSigma;
+		this.noiseSigma = noiseSigma;
+
+	} // end setImageQuality
+
+	/**
+	 * Sets the sound field used when there is no function generator.
+	 *
+	 * @param amplitude - Amplitude in Volts.
+	 * @param frequency - Frequency in Hz.
+	 */
+	public void setSoundField(double amplitude, double frequency) {
+
+		fixedAmplitude = amplitude;
+		fixedFrequency = frequency;
+
+	} // end setSoundField
+
+	/**
+	 * Advances the droplet to the given time and draws it into the canvas.
+	 *
+	 * @param time - Simulated time, in seconds.
+	 */
+	private void render(double time) {
+
+		double amplitude = generator != null ? generator.getCommandedAmplitude() : fixedAmplitude;
+		double frequency = generator != null ? generator.getCommandedFrequency() : fixedFrequency;
+
+		double detuning = (frequency - resonanceFrequency) / resonanceBandwidth;
+		double target = restAspectRatio + deformationGain * amplitude * amplitude / (1 + detuning * detuning);
+
+		if (Double.isNaN(aspectRatio) || responseTime <= 0)
+			aspectRatio = target;
+		else
+			aspectRatio += (target - aspectRatio) * (1 - Math.exp(-1 / (frameRate * responseTime)));
+
+		double ratio = aspectRatio * (1 + oscillationAmplitude * Math.sin(2 * Math.PI * oscillationFrequency * time));
+
+		// Volume is conserved: a * b * b stays radius cubed.
+		double a = radius / Math.pow(ratio, 2.0 / 3);
+		double b = radius * Math.pow(ratio, 1.0 / 3);
+		double x = centerX;
+		double y = centerY + bobAmplitude * Math.sin(2 * Math.PI * bobFrequency * time);
+
+		if (canvas.rows() != height || canvas.cols() != width)
+			canvas.create(height, width, CvType.CV_8UC1);
+
+		canvas.setTo(background);
+
+		int scale = 1 << subPixelBits;
+		center.x = x * scale;
+		center.y = y * scale;
+		axes.width = b * scale;
+		axes.height = a * scale;
+		Imgproc.ellipse(canvas, center, axes, orientation, 0, 360, droplet, -1, Imgproc.LINE_AA, subPixelBits);
+
+		if (blurSigma > 0) {
+
+			int size = 2 * (int) Math.ceil(3 * blurSigma) + 1;
+			blurKernel.width = size;
+			blurKernel.height = size;
+			Imgproc.GaussianBlur(canvas, canvas, blurKernel, blurSigma);
+
+		} // end if
+
+		if (noiseSigma > 0) {
+
+			if (noise.rows() != height + noiseMargin || noise.cols() != width + noiseMargin || noiseFieldSigma != noiseSigma)
+				drawNoise();
+
+			int top = random.nextInt(noiseMargin + 1);
+			int left = random.nextInt(noiseMargin + 1);
+			Mat shifted = noise.submat(top, top + height, left, left + width);
+			Core.add(canvas, shifted, canvas, noMask, CvType.CV_8U);
+			shifted.release();
+
+		} // end if
+
+		if (groundTruth.size() >= groundTruthLimit)
+			groundTruth.clear();
+
+		groundTruth.append(a, b, b / a, Double.NaN, height - y, Double.NaN, time, amplitude, frequency,
+				(generator != null && generator.isCompressing()) ? MeasurementTable.PHASE_COMPRESSION : MeasurementTable.PHASE_RELAXATION);
+
+	} // end render
+
+	/**
+	 * Fills the noise field with Gaussian noise from the source's own generator.
+	 */
+	private void drawNoise() {
+
+		int rows = height + noiseMargin;
+		int cols = width + noiseMargin;
+		short[] values = new short[rows * cols];
+
+		for (int z = 0; z < values.length; z++)
+			values[z] = (short) Math.round(random.nextGaussian() * noiseSigma);
+
+		noise.create(rows, cols, CvType.CV_16SC1);
+		noise.put(0, 0, values);
+		noiseFieldSigma = noiseSigma;
+
+	} // end drawNoise
+
+} // end SyntheticDropletSource
@@ -0,0 +1,216 @@
+import java.awt.EventQueue;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.Timer;
+
+/**
+ * Carries the latest droplet and instrument readings from the worker threads to the GUI.
+ *
+ * Publishing only stores the values in atomic fields and, if no refresh is pending yet, asks the event dispatch thread for
+ * one, so it is cheap enough to do every frame from any thread. The listeners are called on the event dispatch thread at
+ * most once per refresh interval, with whatever values are newest by then; everything published in between is folded into
+ * that one refresh. Nothing runs while nothing is published.
+ *
+ * The fields are read one at a time, so a refresh can pair e.g. the centroid of one frame with the aspect ratio of the next.
+ * That is fine for a display.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class TelemetryBus {
+
+	/**
+	 * Told about new readings, on the event dispatch thread.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param telemetry - The bus, to read the newest values from.
+		 */
+		public void telemetryUpdated(TelemetryBus telemetry);
+
+	} // end Listener
+
+	/*
+	 * Local Class Variables
+	 */
+	private final AtomicLong centroidX = new AtomicLong();
+	private final AtomicLong centroidY = new AtomicLong();
+	private final AtomicLong aspectRatio = new AtomicLong();
+	private final AtomicLong amplitude = new AtomicLong();
+	private final AtomicLong frequency = new AtomicLong();
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private final Timer refreshTimer; // only touched on the event dispatch thread
+	private volatile long refreshInterval; // nanoseconds
+	private long lastRefresh; // only touched on the event dispatch thread
+
+	/**
+	 * Constructor
+	 *
+	 * @param refreshRate - Maximum number of GUI refreshes per second.
+	 */
+	public TelemetryBus(double refreshRate) {
+
+		setRefreshRate(refreshRate);
+		lastRefresh = System.nanoTime() - refreshInterval;
+
+		refreshTimer = new Timer(0, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		refreshTimer.setRepeats(false);
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Publishes the droplet's latest measurement. Never blocks.
+	 *
+	 * @param x - Centroid x coordinate.
+	 * @param y - Centroid y coordinate.
+	 * @param ratio - Aspect ratio, b/a.
+	 */
+	public void publishDroplet(double x, double y, double ratio) {
+
+		centroidX.set(Double.doubleToRawLongBits(x));
+		centroidY.set(Double.doubleToRawLongBits(y));
+		aspectRatio.set(Double.doubleToRawLongBits(ratio));
+		requestRefresh();
+
+	} // end publishDroplet
+
+	/**
+	 * Publishes the function generator's state. Never blocks.
+	 *
+	 * @param volts - Amplitude in Volts.
+	 * @param hertz - Frequency in Hz.
+	 */
+	public void publishInstrument(double volts, double hertz) {
+
+		amplitude.set(Double.doubleToRawLongBits(volts));
+		frequency.set(Double.doubleToRawLongBits(hertz));
+		requestRefresh();
+
+	} // end publishInstrument
+
+	/**
+	 * @param listener - Called on the event dispatch thread after new values were published.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	} // end addListener
+
+	/**
+	 * @param listener - A listener registered with addListener().
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	} // end removeListener
+
+	/**
+	 * @param refreshRate - Maximum number of GUI refreshes per second.
+	 */
+	public void setRefreshRate(double refreshRate) {
+		refreshInterval = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+	} // end setRefreshRate
+
+	/**
+	 * @return The newest centroid x coordinate.
+	 */
+	public double getCentroidX() {
+		return Double.longBitsToDouble(centroidX.get());
+	} // end getCentroidX
+
+	/**
+	 * @return The newest centroid y coordinate.
+	 */
+	public double getCentroidY() {
+		return Double.longBitsToDouble(centroidY.get());
+	} // end getCentroidY
+
+	/**
+	 * @return The newest aspect ratio.
+	 */
+	public double getAspectRatio() {
+		return Double.longBitsToDouble(aspectRatio.get());
+	} // end getAspectRatio
+
+	/**
+	 * @return The newest amplitude, in Volts.
+	 */
+	public double getAmplitude() {
+		return Double.longBitsToDouble(amplitude.get());
+	} // end getAmplitude
+
+	/**
+	 * @return The newest frequency, in Hz.
+	 */
+	public double getFrequency() {
+		return Double.longBitsToDouble(frequency.get());
+	} // end getFrequency
+
+	/**
+	 * Asks for a refresh unless one is pending already.
+	 */
+	private void requestRefresh() {
+
+		if (refreshPending.compareAndSet(false, true)) {
+
+			EventQueue.invokeLater(new Runnable() {
+				public void run() {
+					scheduleRefresh();
+				}
+			});
+
+		} // end if
+
+	} // end requestRefresh
+
+	/**
+	 * Refreshes right away if the last refresh is at least one interval ago, otherwise sets the timer for when it will be.
+	 */
+	private void scheduleRefresh() {
+
+		long wait = lastRefresh + refreshInterval - System.nanoTime();
+
+		if (wait <= 0)
+			refresh();
+		else {
+
+			refreshTimer.setInitialDelay((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+			refreshTimer.restart();
+
+		} // end if-else
+
+	} // end scheduleRefresh
+
+	private void refresh() {
+
+		// Cleared first, so a value published while the listeners run gets a refresh of its own.
+		refreshPending.set(false);
+		lastRefresh = System.nanoTime();
+
+		for (Listener listener : listeners) {
+
+			try {
+				listener.telemetryUpdated(this);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} // end try-catch
+
+		} // end for
+
+	} // end refresh
+
+} // end TelemetryBus
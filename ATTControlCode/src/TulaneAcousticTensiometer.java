@@ -5,6 +5,7 @@
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
@@ -15,7 +16,6 @@ import org.opencv.videoio.VideoWriter;
 import java.awt.Dimension;
 import java.awt.EventQueue;
 import java.awt.Frame;
-import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
@@ -57,6 +57,7 @@ import javax.swing.SwingConstants;
 import javax.swing.JToggleButton;
 import java.awt.event.ItemListener;
 import javax.swing.JCheckBox;
+import javax.swing.JOptionPane;
 
 /**
  * @author Jarrod Risley
@@ -68,9 +69,8 @@ public class TulaneAcousticTensiometer {
 	 * Local Variables
 	 */
 	private JFrame frmAcousticTweezingTensiometer;
-	private JPanel panel;
+	private LiveFeedView panel;
 	private JPanel dropletInfoPanel;
-	private Graphics g;
 	private JFileChooser fileChooser;
 	private JSpinner funcGenAmpSpinner;
 	private JSpinner funcGenFreqSpinner;
@@ -81,20 +81,28 @@ public class TulaneAcousticTensiometer {
 	private JCheckBox elasticityCheckBox;
 	
 	private DropletAnalyzer analyzer;
-	private AgilentFunctionGenerator agilent;
+	private final Object analysisLock = new Object(); // held while a thread uses the analyzer, whose scratch buffers are shared
+	private FunctionGenerator agilent;
 	private VideoCapture baslerCamera;
 	private PIDSubsystem pidSubsystem;
-	private Mat currentFrame;
-	private Mat returnFrame;
+	private FramePipeline cameraFrames;
+	private FramePipeline annotatedFrames;
 	private MatOfByte byteFrame;
 	private LiveFeedThread cameraFeed;
 	private AnalyzerThread frameAnalyzer;
 	private FunctionGeneratorThread funcGenThread;
-	private PIDAspectRatioThread pidThread;
+	private ControlLoopScheduler pidLoop;
 	private ElasticityAnalyzerThread elasticityThread;
 	private ExecutorService executor;
+	private TelemetryBus telemetry;
+	private boolean updatingFromModel = false; // set while the spinners are updated from the telemetry, so that isn't sent back to the instrument
 	
 	private static final int cameraLocation = 0;
+	private static final int framePipelineCapacity = 4;
+	private static final int elasticityRuns = 12; // runs in an elasticity session
+	private static final double syntheticFrameRate = 25.4;
+	private static final long frameWait = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final double telemetryRefreshRate = 20; // Hz - plenty for reading numbers off the screen
 	private boolean runElasticityAnalysis = false;
 	private boolean wasPIDEngaged = false;
 	private String path;
@@ -102,6 +110,11 @@ public class TulaneAcousticTensiometer {
 	private final double defaultP = 1;
 	private final double defaultI = 0;
 	private final double defaultD = 5;
+	private final double pidLoopRate = 25; // Hz - no faster than the camera, since the loop only acts on new frames
+	private final double pidIntegralLimit = 10;
+	private final double pidOutputLimit = 100; // Hz of frequency correction per update
+	private final double pidOutputRateLimit = 500; // Hz per second
+	private final double pidDerivativeFilter = 0.1; // seconds
 	
 	
 	
@@ -137,12 +150,21 @@ public class TulaneAcousticTensiometer {
 		/*
 		 * Initialize Instruments
 		 */
-		analyzer = new DropletAnalyzer(cameraLocation);
-		agilent = new AgilentFunctionGenerator();
+		agilent = FunctionGenerator.create();
+		
+		// -Datt.camera=synthetic films a simulated droplet driven by the function generator instead of using the camera.
+		if (System.getProperty("att.camera", "basler").equalsIgnoreCase("synthetic"))
+			analyzer = new DropletAnalyzer(new SyntheticDropletSource(agilent, syntheticFrameRate, true));
+		else
+			analyzer = new DropletAnalyzer(cameraLocation);
+		
 		baslerCamera = analyzer.getCamera();
+		telemetry = new TelemetryBus(telemetryRefreshRate);
 		
 		pidSubsystem = new PIDSubsystem(defaultP, defaultI, defaultD);
 			pidSubsystem.setSetpoint(1.2); // SET SETPOINT HERE
+			pidSubsystem.setLimits(pidIntegralLimit, pidOutputLimit, pidOutputRateLimit);
+			pidSubsystem.setDerivativeFilter(pidDerivativeFilter);
 		
 		/*
 		 * Initialize Frame
@@ -154,8 +176,7 @@ public class TulaneAcousticTensiometer {
 		frmAcousticTweezingTensiometer.setExtendedState(Frame.MAXIMIZED_BOTH);
 		frmAcousticTweezingTensiometer.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		
-		panel = new JPanel();
-		panel.setLayout(null);
+		panel = new LiveFeedView();
 		panel.setBorder(new EtchedBorder(EtchedBorder.LOWERED, null, null));
 		panel.setBackground(SystemColor.info);
 		
@@ -199,9 +220,9 @@ public class TulaneAcousticTensiometer {
 			public void itemStateChanged(ItemEvent arg0) {
 				
 				if(arg0.getStateChange() == ItemEvent.SELECTED)
-					pidThread.runnable = true;
+					pidLoop.start();
 				else if (arg0.getStateChange() == ItemEvent.DESELECTED)
-					pidThread.runnable = false;
+					pidLoop.stop();
 				
 			} // itemStateChanged
 			
@@ -290,13 +311,16 @@ public class TulaneAcousticTensiometer {
 			
 			public void stateChanged(ChangeEvent arg0) {
 				
+				if (updatingFromModel)
+					return;
+				
 				if (agilent == null)
 					System.out.println("I done goofed.");
 				
 				try {
 					
 					funcGenFreqSpinner.commitEdit();
-					agilent.setFrequecy((int) funcGenFreqSpinner.getValue());
+					agilent.setFrequecy(((Number) funcGenFreqSpinner.getValue()).doubleValue());
 					
 				} catch (ParseException e) {
 					// TODO Auto-generated catch block
@@ -319,13 +343,16 @@ public class TulaneAcousticTensiometer {
 			
 			public void stateChanged(ChangeEvent e) {
 				
+				if (updatingFromModel)
+					return;
+				
 				if (agilent == null)
 					System.out.println("I done goofed.");
 				
 				try {
 					
 					funcGenAmpSpinner.commitEdit();
-					agilent.setAmplitude((double) funcGenAmpSpinner.getValue());
+					agilent.setAmplitude(((Number) funcGenAmpSpinner.getValue()).doubleValue());
 					
 				} catch (ParseException e1) {
 					// TODO Auto-generated catch block
@@ -339,8 +366,168 @@ public class TulaneAcousticTensiometer {
 		funcGenAmpSpinner.setBounds(150, 122, 152, 20);
 		functGenTab.add(funcGenAmpSpinner);
 		
+		JCheckBox hardwareSweepCheckBox = new JCheckBox("Hardware-Timed Sweep");
+		hardwareSweepCheckBox.setToolTipText("Upload the sweep to the function generator as an AM envelope instead of stepping it from the computer.");
+		hardwareSweepCheckBox.addItemListener(new ItemListener() {
+			
+			public void itemStateChanged(ItemEvent arg0) {
+				agilent.setHardwareSweep(arg0.getStateChange() == ItemEvent.SELECTED);
+			} // end itemStateChanged
+			
+		}); // end addItemListener
+		hardwareSweepCheckBox.setBounds(150, 168, 200, 23);
+		functGenTab.add(hardwareSweepCheckBox);
+		
+		agilent.addSweepListener(new SweepListener() {
+			
+			public void sweepStarted() {
+				publishInstrument();
+			} // end sweepStarted
+			
+			public void phaseChanged(boolean compressing) {
+				
+				analyzer.checkSweepingStatus(compressing);
+				publishInstrument();
+				
+			} // end phaseChanged
+			
+			public void sweepFinished() {
+				publishInstrument();
+			} // end sweepFinished
+			
+		}); // end addSweepListener
+		
+		/*
+		 * Everything the worker threads measure reaches the display through the telemetry bus, on the event dispatch thread.
+		 * The spinners are updated with their listeners muted, so showing a value never writes it back to the instrument.
+		 */
+		telemetry.addListener(new TelemetryBus.Listener() {
+			
+			public void telemetryUpdated(TelemetryBus telemetry) {
+				
+				displayX.setText(Double.toString(telemetry.getCentroidX()));
+				displayY.setText(Double.toString(telemetry.getCentroidY()));
+				aspectRatio.setText(Double.toString(telemetry.getAspectRatio()));
+				dropletInfoPanel.repaint();
+				
+				updatingFromModel = true;
+				
+				try {
+					
+					showValue(funcGenFreqSpinner, telemetry.getFrequency());
+					showValue(funcGenAmpSpinner, telemetry.getAmplitude());
+					
+				} finally {
+					updatingFromModel = false;
+				} // end try-finally
+				
+			} // end telemetryUpdated
+			
+		}); // end addListener
+		
 		JPanel baslerTab = new JPanel();
 		tabbedPane.addTab("Camera", null, baslerTab, null);
+		baslerTab.setLayout(null);
+		
+		JCheckBox trackingCheckBox = new JCheckBox("Track Droplet (Region of Interest)");
+		trackingCheckBox.setToolTipText("Only search the full frame to find the droplet, then analyze a small window around it.");
+		trackingCheckBox.addItemListener(new ItemListener() {
+			
+			public void itemStateChanged(ItemEvent arg0) {
+				analyzer.setTrackingMode(arg0.getStateChange() == ItemEvent.SELECTED);
+			} // end itemStateChanged
+			
+		}); // end addItemListener
+		trackingCheckBox.setBounds(20, 30, 282, 23);
+		baslerTab.add(trackingCheckBox);
+		
+		JCheckBox ellipseFitCheckBox = new JCheckBox("Sub-Pixel Ellipse Fit");
+		ellipseFitCheckBox.setToolTipText("Measure the droplet by fitting an ellipse to its edge instead of using its bounding rectangle.");
+		ellipseFitCheckBox.addItemListener(new ItemListener() {
+			
+			public void itemStateChanged(ItemEvent arg0) {
+				analyzer.setMeasurementMode(arg0.getStateChange() == ItemEvent.SELECTED ? DropletAnalyzer.MeasurementMode.ELLIPSE_FIT
+						: DropletAnalyzer.MeasurementMode.BOUNDING_BOX);
+			} // end itemStateChanged
+			
+		}); // end addItemListener
+		ellipseFitCheckBox.setBounds(20, 56, 282, 23);
+		baslerTab.add(ellipseFitCheckBox);
+		
+		JLabel pyramidLabel = new JLabel("Search Resolution Level:");
+		pyramidLabel.setBounds(24, 86, 150, 20);
+		baslerTab.add(pyramidLabel);
+		
+		final JSpinner pyramidSpinner = new JSpinner();
+		pyramidSpinner.setModel(new SpinnerNumberModel(0, 0, 4, 1));
+		pyramidSpinner.setToolTipText("Find the droplet at 1/2^n of the camera resolution, then measure it at full resolution. 0 searches the full frame.");
+		pyramidSpinner.addChangeListener(new ChangeListener() {
+			
+			public void stateChanged(ChangeEvent arg0) {
+				analyzer.setPyramidLevel((int) pyramidSpinner.getValue());
+			} // end stateChanged
+			
+		}); // end addChangeListener
+		pyramidSpinner.setBounds(180, 86, 60, 20);
+		baslerTab.add(pyramidSpinner);
+		
+		JCheckBox rawCaptureCheckBox = new JCheckBox("Store Raw Frames (Lossless)");
+		rawCaptureCheckBox.setToolTipText("Also save every frame as analyzed, without annotations, for re-analysis. Takes effect at the next run.");
+		rawCaptureCheckBox.addItemListener(new ItemListener() {
+			
+			public void itemStateChanged(ItemEvent arg0) {
+				analyzer.setRawCapture(arg0.getStateChange() == ItemEvent.SELECTED);
+			} // end itemStateChanged
+			
+		}); // end addItemListener
+		rawCaptureCheckBox.setBounds(20, 112, 282, 23);
+		baslerTab.add(rawCaptureCheckBox);
+		
+		JLabel rawCompressionLabel = new JLabel("Raw Compression Level:");
+		rawCompressionLabel.setBounds(24, 142, 150, 20);
+		baslerTab.add(rawCompressionLabel);
+		
+		final JSpinner rawCompressionSpinner = new JSpinner();
+		rawCompressionSpinner.setModel(new SpinnerNumberModel(1, 0, 9, 1));
+		rawCompressionSpinner.setToolTipText("PNG compression of the raw frames: 0 is fastest and largest, 9 slowest and smallest.");
+		rawCompressionSpinner.addChangeListener(new ChangeListener() {
+			
+			public void stateChanged(ChangeEvent arg0) {
+				analyzer.setRawCompressionLevel((int) rawCompressionSpinner.getValue());
+			} // end stateChanged
+			
+		}); // end addChangeListener
+		rawCompressionSpinner.setBounds(180, 142, 60, 20);
+		baslerTab.add(rawCompressionSpinner);
+		
+		JCheckBox backgroundCheckBox = new JCheckBox("Subtract Static Background");
+		backgroundCheckBox.setToolTipText("Learn the horn, reflector and dust as background and ignore their edges when searching for the droplet.");
+		backgroundCheckBox.addItemListener(new ItemListener() {
+			
+			public void itemStateChanged(ItemEvent arg0) {
+				analyzer.setBackgroundSubtraction(arg0.getStateChange() == ItemEvent.SELECTED);
+			} // end itemStateChanged
+			
+		}); // end addItemListener
+		backgroundCheckBox.setBounds(20, 168, 282, 23);
+		baslerTab.add(backgroundCheckBox);
+		
+		JLabel backgroundRateLabel = new JLabel("Background Learning Rate:");
+		backgroundRateLabel.setBounds(24, 198, 150, 20);
+		baslerTab.add(backgroundRateLabel);
+		
+		final JSpinner backgroundRateSpinner = new JSpinner();
+		backgroundRateSpinner.setModel(new SpinnerNumberModel(0.02, 0.001, 1.0, 0.005));
+		backgroundRateSpinner.setToolTipText("Weight of each new frame in the background: higher values forget moved or changed features sooner.");
+		backgroundRateSpinner.addChangeListener(new ChangeListener() {
+			
+			public void stateChanged(ChangeEvent arg0) {
+				analyzer.setBackgroundLearningRate((double) backgroundRateSpinner.getValue());
+			} // end stateChanged
+			
+		}); // end addChangeListener
+		backgroundRateSpinner.setBounds(180, 198, 60, 20);
+		baslerTab.add(backgroundRateSpinner);
 		frmAcousticTweezingTensiometer.getContentPane().setLayout(groupLayout);
 		
 		JMenuBar menuBar = new JMenuBar();
@@ -367,12 +554,51 @@ public class TulaneAcousticTensiometer {
 		}); // end addActionListener
 		mnFile.add(mntmSetWorkingDirectory);
 		
+		JMenuItem mntmResumeSession = new JMenuItem("Resume Elasticity Session");
+		mntmResumeSession.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				
+				fileChooser = new JFileChooser(path);
+				fileChooser.setDialogTitle("Resume Elasticity Session");
+				fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				if(fileChooser.showOpenDialog(frmAcousticTweezingTensiometer) != JFileChooser.APPROVE_OPTION)
+					return;
+				
+				String runs = JOptionPane.showInputDialog(frmAcousticTweezingTensiometer, "Runs still to be done:", elasticityRuns);
+				
+				if (runs == null)
+					return;
+				
+				try {
+					elasticityThread.resume(fileChooser.getSelectedFile().getAbsolutePath(), Integer.parseInt(runs.trim()));
+				} catch (IllegalArgumentException e) {
+					
+					JOptionPane.showMessageDialog(frmAcousticTweezingTensiometer, "Enter a positive number of runs.");
+					return;
+					
+				} // end try-catch
+				
+				// The session carries on with the next press of Start.
+				elasticityCheckBox.setSelected(true);
+				System.out.println("Resuming the session in " + fileChooser.getSelectedFile().getAbsolutePath());
+				
+			} // end actionPerformed
+		}); // end addActionListener
+		mnFile.add(mntmResumeSession);
+		
 		
 		/*
 		 * Initialize Matricies
 		 */
-		currentFrame = new Mat();
-		returnFrame = new Mat();
+		Mat probe = new Mat();
+		baslerCamera.read(probe);
+		
+		if (probe.empty())
+			probe = new Mat(1080, 1920, CvType.CV_8UC3);
+		
+		cameraFrames = new FramePipeline(framePipelineCapacity, probe.rows(), probe.cols(), probe.type());
+		annotatedFrames = new FramePipeline(framePipelineCapacity, probe.rows(), probe.cols(), CvType.CV_8UC1);
+		probe.release();
 		byteFrame = new MatOfByte();
 		
 		/*
@@ -386,10 +612,9 @@ public class TulaneAcousticTensiometer {
 			frameAnalyzer.runnable = true;
 			funcGenThread = new FunctionGeneratorThread();
 			funcGenThread.runnable = true;
-			pidThread = new PIDAspectRatioThread();
+			pidLoop = new ControlLoopScheduler(cameraFrames, pidLoopRate, new PIDAspectRatioTask(), "PID Aspect Ratio Loop");
 			elasticityThread = new ElasticityAnalyzerThread();
 			elasticityThread.runnable = true;
-			executor.execute(pidThread);
 			executor.execute(cameraFeed);
 			
 		
@@ -403,33 +628,44 @@ public class TulaneAcousticTensiometer {
 	private class LiveFeedThread implements Runnable {
 		
 		protected volatile boolean runnable = false;
+		private FramePipeline.Reader annotated;
 
 		@Override
 		public void run() {
 			
 			synchronized(this) {
 				
+				annotated = annotatedFrames.newReader(false);
+				
 				while(runnable) {
 					
+					long grabStart = System.nanoTime();
+					
 					if(baslerCamera.grab()) {
 
 						try {
 							
-							if (panel.getWidth() > 0 || panel.getHeight() > 0) {
+							// The frame is timestamped when the camera delivered it; the loop latency is measured from here.
+							long captured = LoopLatency.recordSince(LoopLatency.GRAB, grabStart);
 							
-								baslerCamera.read(currentFrame);
-								Size sz = new Size(panel.getWidth(), panel.getHeight());
-								Mat clone = new Mat();
-								Imgproc.resize((agilent.isSweeping() && returnFrame.size().area() != 0) ? returnFrame:currentFrame, clone, sz, 0, 0, Imgproc.INTER_AREA);
-//								Imgcodecs.imencode(".bmp", currentFrame, byteFrame);
-//								clone.release();
-//								Image im = ImageIO.read(new ByteArrayInputStream(byteFrame.toArray()));
-
-								BufferedImage buff = (BufferedImage) toBufferedImage(clone);
-								//im.flush();
-								g = panel.getGraphics();
-								g.drawImage(buff, 0, 0, panel.getWidth(), panel.getHeight(), 0, 0, buff.getWidth(), buff.getHeight(), null);
-								buff.flush();
+							// Retrieve straight into the pipeline slot - the camera thread is the only writer.
+							Mat frame = cameraFrames.beginWrite();
+							
+							if (!baslerCamera.retrieve(frame)) {
+								
+								cameraFrames.abortWrite();
+								continue;
+								
+							} // end if
+							
+							LoopLatency.recordSince(LoopLatency.RETRIEVE, captured);
+							cameraFrames.publish(captured);
+							
+							// Frames the display can't keep up with are dropped here, before the annotated frame is even copied out.
+							if (panel.isReady()) {
+							
+								annotated.next();
+								panel.present((agilent.isSweeping() && annotated.getSequence() >= 0) ? annotated.getFrame():frame);
 
 								if (runnable == false) 
 								{
@@ -443,7 +679,16 @@ public class TulaneAcousticTensiometer {
 							System.out.println(e.getMessage());
 						} // end try-catch
 						
-					} // end if
+					} else {
+						
+						// No camera, or it stopped delivering - wait a frame's time instead of spinning on grab().
+						try {
+							TimeUnit.NANOSECONDS.sleep(frameWait);
+						} catch (InterruptedException e) {
+							break;
+						} // end try-catch
+						
+					} // end if-else
 					
 				} // end while
 			} // end syncrhonized
@@ -469,22 +714,24 @@ public class TulaneAcousticTensiometer {
 					
 				analyzer.beginTimer();
 				
+				FramePipeline.Reader frames = cameraFrames.newReader(false);
+				Mat analysisFrame = new Mat();
+				
 				while(runnable && agilent.isSweeping()) {
 				
-					Mat analysisFrame = new Mat();
-					Imgproc.cvtColor(currentFrame, analysisFrame, Imgproc.COLOR_BGR2GRAY);
-					returnFrame =  analyzer.analyzeFrame(analysisFrame);
-					analyzer.checkSweepingStatus(agilent.isCompressing());
+					if (!analyzeNextFrame(frames, analysisFrame))
+						continue;
 					
-					changeLabel(displayX, Double.toString(analyzer.getCentroidX()));
-					changeLabel(displayY, Double.toString(analyzer.getCentroidY()));
-					changeLabel(aspectRatio, Double.toString(analyzer.getAspectRatio()));
-					dropletInfoPanel.repaint();
 					
 				} // end while
 				
-				if (runnable)
-					analyzer.saveData();
+				if (runnable) {
+					
+					synchronized (analysisLock) {
+						analyzer.saveData();
+					} // end synchronized
+					
+				} // end if
 				
 			}// end synchronized
 			
@@ -500,13 +747,41 @@ public class TulaneAcousticTensiometer {
 	private class ElasticityAnalyzerThread implements Runnable {
 
 		protected volatile boolean runnable = false;
+		private volatile String resumeDirectory; // session to carry on with the next time this runs, if any
+		private volatile int resumeRuns;
+		
+		/**
+		 * Makes the next session continue an interrupted one instead of starting a new one.
+		 * 
+		 * @param directory - The interrupted session's directory.
+		 * @param runs - The number of runs still to be done.
+		 */
+		protected void resume(String directory, int runs) {
+			
+			if (runs < 1)
+				throw new IllegalArgumentException("At least one run must be left to resume a session.");
+			
+			resumeRuns = runs;
+			resumeDirectory = directory;
+			
+		} // end resume
 		
 		@Override
 		public void run() {
 			
 			synchronized(this) {
+				
+				int runs = elasticityRuns;
+				
+				if (resumeDirectory != null) {
 					
-				analyzer.setMaxRuns(11);
+					runs = resumeRuns;
+					analyzer.resumeSession(resumeDirectory, runs);
+					resumeDirectory = null;
+					
+				} else
+					analyzer.setMaxRuns(runs);
+				
 				analyzer.beginTimer();
 				
 				double height = 0;
@@ -514,27 +789,28 @@ public class TulaneAcousticTensiometer {
 				double startAmplitude = agilent.getAmplitude();
 				double endAmplitude;
 				
+				FramePipeline.Reader frames = cameraFrames.newReader(false);
+				Mat analysisFrame = new Mat();
+				
 				while(runnable && agilent.isSweeping() && analyzer.getAspectRatio() < 1.3) {
 				
-					Mat analysisFrame = new Mat();
-					Imgproc.cvtColor(currentFrame, analysisFrame, Imgproc.COLOR_BGR2GRAY);
-					returnFrame =  analyzer.analyzeFrame(analysisFrame);
+					analyzeNextFrame(frames, analysisFrame);
 					agilent.sweepTo(agilent.getAmplitude(), agilent.getAmplitude() + delta, false);
 					
-					changeLabel(displayX, Double.toString(analyzer.getCentroidX()));
-					changeLabel(displayY, Double.toString(analyzer.getCentroidY()));
-					changeLabel(aspectRatio, Double.toString(analyzer.getAspectRatio()));
-					dropletInfoPanel.repaint();
-					
 					height = analyzer.getCentroidY();
 					
 				} // end while
 				
 				endAmplitude = agilent.getAmplitude();
-				agilent.sweepTo(endAmplitude, startAmplitude, true);
+				agilent.sweepTo(startAmplitude, endAmplitude, true); // back down to where the run started
 	
-				if (runnable)
-					analyzer.multiRunSave();
+				if (runnable) {
+					
+					synchronized (analysisLock) {
+						analyzer.multiRunSave();
+					} // end synchronized
+					
+				} // end if
 				
 				try {
 					Thread.sleep(5000);
@@ -543,26 +819,24 @@ public class TulaneAcousticTensiometer {
 					e.printStackTrace();
 				} // end try-catch
 				
-				for (int z = 0; z < 11; z++) {
+				for (int z = 1; z < runs; z++) {
 					
 					while (runnable && agilent.isSweeping() && agilent.getAmplitude() < endAmplitude) {
 						
-						Mat analysisFrame = new Mat();
-						Imgproc.cvtColor(currentFrame, analysisFrame, Imgproc.COLOR_BGR2GRAY);
-						returnFrame =  analyzer.analyzeFrame(analysisFrame);
+						analyzeNextFrame(frames, analysisFrame);
 						agilent.sweepTo(agilent.getAmplitude(), agilent.getAmplitude() + delta, false);
 						
-						changeLabel(displayX, Double.toString(analyzer.getCentroidX()));
-						changeLabel(displayY, Double.toString(analyzer.getCentroidY()));
-						changeLabel(aspectRatio, Double.toString(analyzer.getAspectRatio()));
-						dropletInfoPanel.repaint();
-						
 					} // end while
 					
-					agilent.sweepTo(endAmplitude, startAmplitude, true);
+					agilent.sweepTo(startAmplitude, endAmplitude, true); // back down to where the run started
 					
-					if (runnable)
-						analyzer.multiRunSave();
+					if (runnable) {
+						
+						synchronized (analysisLock) {
+							analyzer.multiRunSave();
+						} // end synchronized
+						
+					} // end if
 					
 					try {
 						Thread.sleep(5000);
@@ -596,22 +870,9 @@ public class TulaneAcousticTensiometer {
 			synchronized(this) {
 				
 						
+				// Progress and the end of the sweep are reported through the SweepListener registered in initialize().
 				agilent.setSweeping(true);
 				agilent.amplitudeSweep();
-
-
-				while(runnable && agilent.isSweeping()) {
-
-					analyzer.checkSweepingStatus(agilent.isCompressing());
-					funcGenFreqSpinner.setValue((int) agilent.getFrequency());
-					funcGenAmpSpinner.setValue(agilent.getAmplitude());
-
-					//					changeLabel(displayX, Double.toString(analyzer.getCentroidX()));
-					//					changeLabel(displayY, Double.toString(analyzer.getCentroidY()));
-					//					changeLabel(aspectRatio, Double.toString(analyzer.getAspectRatio()));
-					//					dropletInfoPanel.repaint();
-
-				} // end inner while
 				
 			}// end synchronized
 			
@@ -620,39 +881,78 @@ public class TulaneAcousticTensiometer {
 	} // end FunctionGeneratorThread
 	
 	/**
-	 * Thread class that specifically deals with controlling the PID subsystem in charge of maintaining the droplet's aspect ratio.
+	 * Control loop task in charge of maintaining the droplet's aspect ratio. Run at a fixed rate by the PID control loop scheduler, on new frames only.
 	 * @author Jarrod Risley
 	 *
 	 */
-	private class PIDAspectRatioThread implements Runnable {
+	private class PIDAspectRatioTask extends ControlLoopScheduler.Task {
 
-		protected volatile boolean runnable = false;
 		protected double pidOutput;
 		
 		@Override
-		public void run() {
+		public void start() {
+			pidSubsystem.reset();
+		} // end start
+		
+		@Override
+		public void run(Mat frame, long timestamp) {
 			
-			synchronized(this) {
-								
-				while (true) {
-					
-					while(runnable && !agilent.isSweeping()) {
-
-						pidOutput = analyzer.performFeedbackAnalysis(pidSubsystem, currentFrame);
-						System.out.println(pidOutput); // replace this line once I know what the hell the PID subsystem does xD
-						agilent.setFrequecy(agilent.getFrequency() + pidOutput);
-
-					} // end inner while
+			// The sweep owns the function generator. Start afresh once it is over rather than integrating across it.
+			if (agilent.isSweeping()) {
 				
-				} // end outer while
+				pidSubsystem.reset();
+				return;
 				
-			}// end synchronized
+			} // end if
+			
+			// The analyzer thread may still be finishing its last frame after the sweep flag drops.
+			synchronized (analysisLock) {
+				
+				analyzer.setInstrumentState(agilent.getCommandedAmplitude(), agilent.getCommandedFrequency());
+				pidOutput = analyzer.performFeedbackAnalysis(pidSubsystem, frame, timestamp);
+				publishDroplet();
+				
+			} // end synchronized
+			
+			agilent.setFrequecy(agilent.getFrequency() + pidOutput, timestamp);
+			publishInstrument();
 			
 		} // end run
 		
-	} // end FunctionGeneratorThread
+	} // end PIDAspectRatioTask
 	
-	public Image toBufferedImage(Mat m){
+	/**
+	 * Pulls the newest camera frame out of the pipeline, analyzes it and publishes the annotated result for the live feed.
+	 * 
+	 * @param frames - The calling thread's reader on the camera pipeline.
+	 * @param analysisFrame - The calling thread's grayscale scratch frame.
+	 * @return True if a new frame was analyzed, false if no new frame arrived in time.
+	 */
+	private boolean analyzeNextFrame(FramePipeline.Reader frames, Mat analysisFrame) {
+		
+		if (!frames.next(frameWait))
+			return false;
+		
+		long start = System.nanoTime();
+		Imgproc.cvtColor(frames.getFrame(), analysisFrame, Imgproc.COLOR_BGR2GRAY);
+		LoopLatency.recordSince(LoopLatency.GRAY, start);
+		
+		// The annotated frame is the analyzer's buffer too, so it is copied out before the lock is let go.
+		synchronized (analysisLock) {
+			
+			analyzer.setInstrumentState(agilent.getCommandedAmplitude(), agilent.getCommandedFrequency());
+			annotatedFrames.publish(analyzer.analyzeFrame(analysisFrame, frames.getTimestamp()), frames.getTimestamp());
+			publishDroplet();
+			
+		} // end synchronized
+		
+		publishInstrument();
+		
+		return true;
+		
+	} // end analyzeNextFrame
+	
+	public static Image toBufferedImage(Mat m){
 		
         int type = BufferedImage.TYPE_BYTE_GRAY;
         if ( m.channels() > 1 ) {
@@ -667,7 +967,30 @@ public class TulaneAcousticTensiometer {
         return image;
     }
 	
-	private void  changeLabel(final JLabel label, final String text) {
-		label.setText(text);
-	}
+	/**
+	 * Hands the analyzer's latest measurement to the telemetry bus. Call from the thread that ran the analysis.
+	 */
+	private void publishDroplet() {
+		telemetry.publishDroplet(analyzer.getCentroidX(), analyzer.getCentroidY(), analyzer.getAspectRatio());
+	} // end publishDroplet
+	
+	/**
+	 * Hands the function generator's state to the telemetry bus. Reads the state mirror only, never the bus.
+	 */
+	private void publishInstrument() {
+		telemetry.publishInstrument(agilent.getCommandedAmplitude(), agilent.getCommandedFrequency());
+	} // end publishInstrument
+	
+	/**
+	 * Shows a value in a spinner unless it is showing it already, or the user is typing into it.
+	 */
+	private void showValue(JSpinner spinner, double value) {
+		
+		if (((JSpinner.DefaultEditor) spinner.getEditor()).getTextField().isFocusOwner())
+			return;
+		
+		if (((Number) spinner.getValue()).doubleValue() != value)
+			spinner.setValue(Double.valueOf(value));
+		
+	} // end showValue
 } // end Acoustic Tensiometer
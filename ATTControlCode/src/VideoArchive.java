@@ -0,0 +1,191 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoWriter;
+
+/**
+ * Writes a video as a directory of fixed-length segments with a frame index beside them. Read it back with VideoArchiveReader.
+ *
+ * Each segment is an ordinary video file ("Segment 00000.avi", "Segment 00001.avi", ...) holding the same number of frames, so
+ * any frame can be reached by opening one short file and seeking within it. Re-analysis reads the archive as one video through
+ * VideoArchiveReader.play(), so the segments keep the capture times and the droplet's starting position. The index, "Frame
+ * Index.attidx", has one record per frame: its capture timestamp, the experiment log record measured from it, its segment and
+ * its offset in the segment, and the phase it was recorded in.
+ *
+ * The index starts with a header: the magic number "ATTV", the format version, the length of the header and of one record
+ * (ints), the frame rate (double) and the number of frames per segment (int), padded to 32 bytes. The records follow:
+ * timestamp and log record (longs), segment, offset and phase (ints) and 4 bytes of padding. All numbers are little-endian.
+ * The index is written out at the end of every segment, so after a crash every complete segment is indexed.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class VideoArchive {
+
+	/*
+	 * Local Class Variables
+	 */
+	public static final String indexName = "Frame Index.attidx";
+
+	static final int magic = 0x56545441; // "ATTV" when read as little-endian bytes
+	static final int version = 1;
+	static final int headerLength = 32;
+	static final int recordLength = 32;
+
+	private final File directory;
+	private final int fourcc;
+	private final double fps;
+	private final int segmentFrames;
+	private final FileChannel index;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+	private VideoWriter segment;
+	private int segmentNumber = -1;
+	private int offset;
+	private long frames = 0;
+
+	/**
+	 * Constructor. Creates the directory and the index; the first segment is opened with the first frame.
+	 *
+	 * @param directory - The archive's directory. Files of an earlier archive in it are overwritten.
+	 * @param fourcc - Codec of the segments, as given by VideoWriter.fourcc(). An intra-frame codec such as MSVC seeks exactly.
+	 * @param fps - Frame rate written into the segments.
+	 * @param segmentSeconds - Length of a segment at that frame rate, in seconds.
+	 * @throws IOException If the index cannot be created.
+	 */
+	public VideoArchive(File directory, int fourcc, double fps, double segmentSeconds) throws IOException {
+
+		this.directory = directory;
+		this.fourcc = fourcc;
+		this.fps = fps;
+		segmentFrames = Math.max(1, (int) Math.round(fps * segmentSeconds));
+
+		if (!directory.exists())
+			directory.mkdirs();
+
+		index = FileChannel.open(new File(directory, indexName).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+
+		buffer.putInt(magic).putInt(version).putInt(headerLength).putInt(recordLength);
+		buffer.putDouble(fps).putInt(segmentFrames).putInt(0);
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * Appends a frame to the current segment, starting a new segment when it is full.
+	 *
+	 * @param frame - The frame. Every frame must have the size and color format of the first.
+	 * @param timestamp - Capture time of the frame, in nanoseconds from the start of the experiment.
+	 * @param record - Index of the experiment log record measured from the frame, or -1.
+	 * @param compressing - True if the frame was recorded while the droplet was compressing.
+	 * @throws IOException If the index cannot be written.
+	 */
+	public void write(Mat frame, long timestamp, long record, boolean compressing) throws IOException {
+
+		if (segment == null || offset == segmentFrames)
+			nextSegment(frame);
+
+		segment.write(frame);
+
+		if (buffer.remaining() < recordLength)
+			writeBuffer();
+
+		buffer.putLong(timestamp).putLong(record).putInt(segmentNumber).putInt(offset).putInt(compressing ? 1 : 0).putInt(0);
+		offset++;
+		frames++;
+
+	} // end write
+
+	/**
+	 * @return The number of frames written.
+	 */
+	public long size() {
+		return frames;
+	} // end size
+
+	/**
+	 * @return The number of frames in a full segment.
+	 */
+	public int getSegmentFrames() {
+		return segmentFrames;
+	} // end getSegmentFrames
+
+	/**
+	 * Closes the current segment and writes out the rest of the index.
+	 *
+	 * @throws IOException If the index cannot be written.
+	 */
+	public void close() throws IOException {
+
+		if (segment != null) {
+
+			segment.release();
+			segment = null;
+
+		} // end if
+
+		try {
+			writeBuffer();
+		} finally {
+			index.close();
+		} // end try-finally
+
+	} // end close
+
+	/**
+	 * @param directory - An archive's directory.
+	 * @param segment - Segment number, from 0.
+	 * @return The segment's video file.
+	 */
+	public static File segmentFile(File directory, int segment) {
+		return new File(directory, String.format("Segment %05d.avi", segment));
+	} // end segmentFile
+
+	/**
+	 * Closes the full segment, makes sure the index covers it, and opens the next one.
+	 */
+	private void nextSegment(Mat frame) throws IOException {
+
+		if (segment != null) {
+
+			segment.release();
+			writeBuffer();
+
+		} // end if
+
+		segmentNumber++;
+		offset = 0;
+
+		File file = segmentFile(directory, segmentNumber);
+		segment = new VideoWriter(file.getPath(), fourcc, fps, frame.size(), frame.channels() > 1);
+
+		if (!segment.isOpened())
+			System.out.println("WARNING: could not open " + file + " for writing.");
+
+	} // end nextSegment
+
+	private void writeBuffer() throws IOException {
+
+		buffer.flip();
+
+		try {
+
+			while (buffer.hasRemaining())
+				index.write(buffer);
+
+		} finally {
+			buffer.clear();
+		} // end try-finally
+
+	} // end writeBuffer
+
+} // end VideoArchive
@@ -0,0 +1,415 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Looks frames of a VideoArchive up by number, capture time or experiment log record, and opens the archive at any of them.
+ *
+ * The index is read into memory when the reader is created - 32 bytes a frame, so about 3 MB for an hour at 25 fps. Finding a
+ * frame never touches the video; seeking decodes only within the one segment that holds it. getRecord() gives the experiment
+ * log record measured from each frame, and getFrameOfRecord() the way back. The index is authoritative: the FRAME column of the
+ * log counts frames as they were queued, which differs once a DROP_OLDEST recorder has discarded frames.
+ *
+ * For example, to look at the compression peak of run 7, find the record with the highest B/A in that run's experiment log,
+ * then call open(getFrameOfRecord(record)). play() gives the whole archive as one VideoCapture, for re-analysis.
+ *
+ * @author Jarrod Risley
+ *
+ */
+public class VideoArchiveReader {
+
+	/*
+	 * Local Class Variables
+	 */
+	private final File directory;
+	private final double fps;
+	private final int segmentFrames;
+	private final long[] timestamps;
+	private final long[] records;
+	private final int[] segments;
+	private final int[] offsets;
+	private final boolean[] compressing;
+
+	/**
+	 * Constructor. Reads the archive's index.
+	 *
+	 * @param directory - The archive's directory.
+	 * @throws IOException If the index cannot be read or is not a video archive index.
+	 */
+	public VideoArchiveReader(File directory) throws IOException {
+
+		this.directory = directory;
+
+		File indexFile = new File(directory, VideoArchive.indexName);
+		FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+
+		try {
+
+			ByteBuffer header = ByteBuffer.allocate(VideoArchive.headerLength).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+
+			if (header.getInt(0) != VideoArchive.magic)
+				throw new IOException(indexFile + " is not a video archive index.");
+
+			if (header.getInt(4) > VideoArchive.version)
+				throw new IOException(indexFile + " was written by a newer version (format " + header.getInt(4) + ").");
+
+			int headerLength = header.getInt(8);
+			int recordLength = header.getInt(12);
+			fps = header.getDouble(16);
+			segmentFrames = header.getInt(24);
+
+			long count = (channel.size() - headerLength) / recordLength;
+
+			if (count > Integer.MAX_VALUE)
+				throw new IOException(indexFile + " has too many frames to read into memory.");
+
+			int frames = (int) count;
+			timestamps = new long[frames];
+			records = new long[frames];
+			segments = new int[frames];
+			offsets = new int[frames];
+			compressing = new boolean[frames];
+
+			ByteBuffer body = ByteBuffer.allocate(frames * recordLength).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, body, headerLength);
+
+			for (int z = 0; z < frames; z++) {
+
+				int position = z * recordLength;
+				timestamps[z] = body.getLong(position);
+				records[z] = body.getLong(position + 8);
+				segments[z] = body.getInt(position + 16);
+				offsets[z] = body.getInt(position + 20);
+				compressing[z] = body.getInt(position + 24) != 0;
+
+			} // end for
+
+		} finally {
+			channel.close();
+		} // end try-finally
+
+	} // end constructor
+
+	/*
+	 * Methods
+	 */
+
+	/**
+	 * @return The number of indexed frames.
+	 */
+	public int size() {
+		return timestamps.length;
+	} // end size
+
+	/**
+	 * @return The frame rate written into the segments.
+	 */
+	public double getFrameRate() {
+		return fps;
+	} // end getFrameRate
+
+	/**
+	 * @return The number of frames in a full segment.
+	 */
+	public int getSegmentFrames() {
+		return segmentFrames;
+	} // end getSegmentFrames
+
+	/**
+	 * @return The number of segments holding indexed frames.
+	 */
+	public int getSegmentCount() {
+		return segments.length == 0 ? 0 : segments[segments.length - 1] + 1;
+	} // end getSegmentCount
+
+	/**
+	 * @param segment - Segment number, from 0 to getSegmentCount() - 1.
+	 * @return The segment's video file.
+	 */
+	public File getSegmentFile(int segment) {
+		return VideoArchive.segmentFile(directory, segment);
+	} // end getSegmentFile
+
+	/**
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return The segment holding the frame.
+	 */
+	public int getSegment(int frame) {
+		return segments[frame];
+	} // end getSegment
+
+	/**
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return The frame's position within its segment, from 0.
+	 */
+	public int getOffset(int frame) {
+		return offsets[frame];
+	} // end getOffset
+
+	/**
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return The frame's capture time, in nanoseconds from the start of the experiment.
+	 */
+	public long getTimestamp(int frame) {
+		return timestamps[frame];
+	} // end getTimestamp
+
+	/**
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return The index of the experiment log record measured from the frame, or -1 if there is none.
+	 */
+	public long getRecord(int frame) {
+		return records[frame];
+	} // end getRecord
+
+	/**
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return True if the frame was recorded while the droplet was compressing.
+	 */
+	public boolean isCompressing(int frame) {
+		return compressing[frame];
+	} // end isCompressing
+
+	/**
+	 * @param timestamp - A time in nanoseconds from the start of the experiment.
+	 * @return The last frame captured at or before that time, or -1 if the first frame was captured later.
+	 */
+	public int getFrameAt(long timestamp) {
+
+		int low = 0;
+		int high = timestamps.length - 1;
+		int found = -1;
+
+		while (low <= high) {
+
+			int middle = (low + high) >>> 1;
+
+			if (timestamps[middle] <= timestamp) {
+
+				found = middle;
+				low = middle + 1;
+
+			} else
+				high = middle - 1;
+
+		} // end while
+
+		return found;
+
+	} // end getFrameAt
+
+	/**
+	 * @param record - Index of an experiment log record.
+	 * @return The frame the record was measured from, or -1 if no indexed frame has that record.
+	 */
+	public int getFrameOfRecord(long record) {
+
+		// Records increase with the frame number, but frames the log did not see have -1, so bisect on the frames that do.
+		int low = 0;
+		int high = records.length - 1;
+
+		while (low <= high) {
+
+			int middle = (low + high) >>> 1;
+			int probe = middle;
+
+			while (probe <= high && records[probe] < 0)
+				probe++;
+
+			if (probe > high)
+				high = middle - 1;
+			else if (records[probe] == record)
+				return probe;
+			else if (records[probe] < record)
+				low = probe + 1;
+			else
+				high = middle - 1;
+
+		} // end while
+
+		return -1;
+
+	} // end getFrameOfRecord
+
+	/**
+	 * Opens the segment holding a frame, positioned so that the next read() returns that frame. The caller releases the capture.
+	 *
+	 * @param frame - Frame number, from 0 to size() - 1.
+	 * @return The capture, or null if the segment cannot be opened.
+	 */
+	public VideoCapture open(int frame) {
+
+		VideoCapture capture = new VideoCapture(getSegmentFile(segments[frame]).getPath());
+
+		if (!capture.isOpened()) {
+
+			capture.release();
+			return null;
+
+		} // end if
+
+		if (offsets[frame] > 0)
+			capture.set(Videoio.CAP_PROP_POS_FRAMES, offsets[frame]);
+
+		return capture;
+
+	} // end open
+
+	/**
+	 * @return A capture that plays the whole archive as one video, segment after segment in index order. The caller releases it.
+	 */
+	public Playback play() {
+		return new Playback();
+	} // end play
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Video archive index ends early.");
+
+		} // end while
+
+	} // end readFully
+
+	/**
+	 * Plays the archive's segments back to back as one video, so it can be used anywhere a VideoCapture is. Frame numbers are the
+	 * index's, so getTimestamp() gives the capture time of every frame read. CAP_PROP_POS_FRAMES seeks to any indexed frame;
+	 * CAP_PROP_FRAME_WIDTH and CAP_PROP_FRAME_HEIGHT come from the segment being played.
+	 */
+	public class Playback extends VideoCapture {
+
+		private VideoCapture segment; // the open segment, positioned at frame position
+		private int segmentNumber = -1;
+		private int position = 0; // the frame grab() moves to
+		private boolean opened = true;
+
+		private Playback() {
+			super();
+		} // end constructor
+
+		@Override
+		public boolean isOpened() {
+			return opened;
+		} // end isOpened
+
+		@Override
+		public boolean grab() {
+
+			if (!opened || position >= size() || !openSegment())
+				return false;
+
+			if (!segment.grab())
+				return false;
+
+			position++;
+			return true;
+
+		} // end grab
+
+		@Override
+		public boolean retrieve(Mat image) {
+			return segment != null && segment.retrieve(image);
+		} // end retrieve
+
+		@Override
+		public boolean retrieve(Mat image, int flag) {
+			return segment != null && segment.retrieve(image, flag);
+		} // end retrieve
+
+		@Override
+		public boolean read(Mat image) {
+			return grab() && retrieve(image);
+		} // end read
+
+		@Override
+		public double get(int propId) {
+
+			switch (propId) {
+
+				case Videoio.CAP_PROP_FPS: return fps;
+				case Videoio.CAP_PROP_POS_FRAMES: return position;
+				case Videoio.CAP_PROP_FRAME_COUNT: return size();
+				case Videoio.CAP_PROP_FRAME_WIDTH:
+				case Videoio.CAP_PROP_FRAME_HEIGHT:
+					return position < size() && openSegment() ? segment.get(propId) : 0;
+				default: return 0;
+
+			} // end switch
+
+		} // end get
+
+		@Override
+		public boolean set(int propId, double value) {
+
+			if (propId != Videoio.CAP_PROP_POS_FRAMES || value < 0 || value > size())
+				return false;
+
+			position = (int) value;
+			closeSegment(); // reopened at the new position by the next grab()
+
+			return true;
+
+		} // end set
+
+		@Override
+		public void release() {
+
+			opened = false;
+			closeSegment();
+			super.release();
+
+		} // end release
+
+		/**
+		 * @param frame - Frame number, from 0 to size() - 1.
+		 * @return The frame's capture time, in nanoseconds from the start of the experiment.
+		 */
+		public long getTimestamp(int frame) {
+			return timestamps[frame];
+		} // end getTimestamp
+
+		/**
+		 * Makes sure the segment holding the frame at position is open. Within a segment the frames are read in turn.
+		 */
+		private boolean openSegment() {
+
+			if (segment != null && segmentNumber == segments[position])
+				return true;
+
+			closeSegment();
+			segment = VideoArchiveReader.this.open(position);
+
+			if (segment == null)
+				return false;
+
+			segmentNumber = segments[position];
+			return true;
+
+		} // end openSegment
+
+		private void closeSegment() {
+
+			if (segment != null) {
+
+				segment.release();
+				segment = null;
+
+			} // end if
+
+			segmentNumber = -1;
+
+		} // end closeSegment
+
+	} // end Playback
+
+} // end VideoArchiveReader